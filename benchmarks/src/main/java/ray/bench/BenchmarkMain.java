@@ -0,0 +1,25 @@
+package ray.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result carries
+ * its allocation rate (gc.alloc.rate.norm is bytes per ray) next to the rays
+ * per second.  Accepts the usual JMH command line, e.g.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar RenderBenchmark -p accel=Bvh
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
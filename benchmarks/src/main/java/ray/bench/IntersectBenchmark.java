@@ -0,0 +1,142 @@
+package ray.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ray.Camera;
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.surface.Box;
+import ray.surface.Cone;
+import ray.surface.Cylinder;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+
+/**
+ * Intersection kernels of the individual surfaces, and camera ray generation.
+ * Each invocation traces a fixed set of RAYS rays (scores are rays per second);
+ * about half of them hit the surface.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IntersectBenchmark {
+
+	static final int RAYS = 4096;
+	static final int WIDTH = 64;
+	static final int HEIGHT = 64;
+
+	Sphere sphere;
+	Box box;
+	Cylinder cylinder;
+	Cone cone;
+	Ray[] rays;
+	Ray scratch;
+	IntersectionRecord record;
+	Camera camera;
+
+	@Setup
+	public void setup() {
+		sphere = new Sphere();
+		sphere.setCenter(new Point3(0, 0, 0));
+		sphere.setRadius(1);
+
+		box = new Box();
+		box.setMinPt(new Point3(-1, -1, -1));
+		box.setMaxPt(new Point3(1, 1, 1));
+
+		cylinder = new Cylinder();
+		cylinder.setCenter(new Point3(0, 0, 0));
+		cylinder.setRadius(1);
+		cylinder.setHeight(2);
+
+		cone = new Cone();
+		cone.setCenter(new Point3(0, 0, 0));
+		cone.setTipz(2);
+		cone.setRadius(1);
+		cone.setHeight(2);
+
+		// Rays from a shell around the origin aimed at points in a 4 x 4 x 4 cube
+		Random random = new Random(Scenes.SEED);
+		rays = new Ray[RAYS];
+		for (int i = 0; i < RAYS; i++) {
+			Vector3 from = new Vector3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+			from.normalize();
+			from.scale(10);
+			Point3 origin = new Point3(from.x, from.y, from.z);
+			Vector3 direction = new Vector3(4 * random.nextDouble() - 2 - from.x,
+					4 * random.nextDouble() - 2 - from.y, 4 * random.nextDouble() - 2 - from.z);
+			rays[i] = new Ray(origin, direction);
+		}
+		scratch = new Ray();
+		record = new IntersectionRecord();
+
+		camera = (Scenes.load("TEST2/snow-man.xml", "none", WIDTH, HEIGHT)).getCamera();
+	}
+
+	private int trace(Surface surface) {
+		int hits = 0;
+		for (int i = 0; i < RAYS; i++) {
+			scratch.set(rays[i].origin, rays[i].direction);
+			scratch.start = 0;
+			scratch.end = Double.POSITIVE_INFINITY;
+			if (surface.intersect(record, scratch)) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RAYS)
+	public int sphere() {
+		return trace(sphere);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RAYS)
+	public int box() {
+		return trace(box);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RAYS)
+	public int cylinder() {
+		return trace(cylinder);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RAYS)
+	public int cone() {
+		return trace(cone);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WIDTH * HEIGHT)
+	public void cameraGetRay(Blackhole blackhole) {
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				camera.getRay(scratch, (x + 0.5) / WIDTH, (y + 0.5) / HEIGHT);
+				blackhole.consume(scratch.direction.x);
+			}
+		}
+	}
+}
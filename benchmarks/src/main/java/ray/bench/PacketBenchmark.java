@@ -0,0 +1,92 @@
+package ray.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ray.Camera;
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.RayPacket;
+import ray.Scene;
+import ray.Workspace;
+
+/**
+ * Primary visibility only: the closest hit of every pixel center of MYTEST,
+ * traced one ray at a time (packet = 1) or in packet x packet blocks through
+ * Scene.intersectPacket.  Blocks that are not coherent are traced singly, as
+ * RayTracerWorker would after splitting them.  Scores are rays per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PacketBenchmark {
+
+	static final int WIDTH = 128;
+	static final int HEIGHT = 96;
+
+	@Param({ "none", "Bvh" })
+	public String accel;
+
+	@Param({ "1", "2", "4" })
+	public int packet;
+
+	Scene scene;
+	Camera camera;
+	Ray ray;
+	IntersectionRecord record;
+	RayPacket rayPacket;
+	Workspace work;
+
+	@Setup
+	public void setup() {
+		scene = Scenes.load("MYTEST/MYTEST.xml", accel, WIDTH, HEIGHT);
+		camera = scene.getCamera();
+		ray = new Ray();
+		record = new IntersectionRecord();
+		rayPacket = new RayPacket();
+		work = new Workspace();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WIDTH * HEIGHT)
+	public int primaryRays() {
+		int count = 0;
+		for (int y0 = 0; y0 < HEIGHT; y0 += packet) {
+			for (int x0 = 0; x0 < WIDTH; x0 += packet) {
+				rayPacket.size = 0;
+				for (int y = y0; y < y0 + packet; y++) {
+					for (int x = x0; x < x0 + packet; x++) {
+						camera.getRay(rayPacket.rays[rayPacket.size++], (x + 0.5) / WIDTH, (y + 0.5) / HEIGHT);
+					}
+				}
+				rayPacket.setup();
+				if (packet > 1 && rayPacket.coherent) {
+					scene.intersectPacket(rayPacket, work);
+					for (int i = 0; i < rayPacket.size; i++) {
+						count += rayPacket.hit[i] ? 1 : 0;
+					}
+				} else {
+					for (int i = 0; i < rayPacket.size; i++) {
+						count += scene.intersect(record, rayPacket.rays[i], false, work) ? 1 : 0;
+					}
+				}
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,61 @@
+package ray.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ray.RayTracer;
+import ray.Scene;
+
+/**
+ * End to end renders of every TEST2 scene and MYTEST.xml at a fixed resolution,
+ * using the same tile scheduler as the command line renderer.  Scores are
+ * primary rays (pixels) per second.  The fork adds the vector module, so
+ * scenes without a structure use the vector sphere batch as the README's
+ * command line does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+public class RenderBenchmark {
+
+	static final int WIDTH = 160;
+	static final int HEIGHT = 120;
+
+	@Param({ "TEST2/double-cone.xml", "TEST2/flat-red-cone.xml", "TEST2/four-spheres.xml",
+		"TEST2/green-cone-and-sphere.xml", "TEST2/one-blue-cylinder.xml",
+		"TEST2/one-shiny-cylinder.xml", "TEST2/snow-man.xml", "TEST2/solids.xml",
+		"TEST2/two-boxes.xml", "TEST2/wire-box-3.xml", "MYTEST/MYTEST.xml" })
+	public String scene;
+
+	@Param({ "none", "Bvh" })
+	public String accel;
+
+	Scene loaded;
+
+	@Setup
+	public void setup() {
+		loaded = Scenes.load(scene, accel, WIDTH, HEIGHT);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WIDTH * HEIGHT)
+	public Object render() {
+		RayTracer.render(loaded);
+		return loaded.getImage();
+	}
+}
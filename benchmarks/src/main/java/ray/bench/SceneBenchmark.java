@@ -0,0 +1,111 @@
+package ray.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.Scene;
+import ray.Workspace;
+import ray.light.Light;
+import ray.math.Color;
+import ray.math.Vector3;
+import ray.shader.Phong;
+
+/**
+ * Scene level kernels: closest hit queries through Scene.intersect on the
+ * generated MYTEST scene, and Phong shading (including its shadow rays) of
+ * precomputed hits on snow-man.xml.  Scores are rays (or shaded hits) per second.
+ * As in RenderBenchmark, the fork adds the vector module for the sphere batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SceneBenchmark {
+
+	static final int WIDTH = 64;
+	static final int HEIGHT = 48;
+	static final int HITS = 1024;
+
+	@Param({ "none", "Bvh", "Grid" })
+	public String accel;
+
+	Scene intersectScene;
+	Ray[] rays;
+
+	Scene shadeScene;
+	IntersectionRecord[] hits;
+	Vector3[] toEye;
+	ArrayList<Light> lights;
+
+	IntersectionRecord record;
+	Color color;
+	Workspace work;
+
+	@Setup
+	public void setup() {
+		intersectScene = Scenes.load("MYTEST/MYTEST.xml", accel, WIDTH, HEIGHT);
+		rays = Scenes.cameraRays(intersectScene.getCamera(), WIDTH, HEIGHT);
+
+		// Collect the first HITS camera ray hits on Phong surfaces, cycling if needed
+		shadeScene = Scenes.load("TEST2/snow-man.xml", accel, WIDTH, HEIGHT);
+		lights = shadeScene.getLights();
+		Ray[] shadeRays = Scenes.cameraRays(shadeScene.getCamera(), WIDTH, HEIGHT);
+		ArrayList<IntersectionRecord> found = new ArrayList<IntersectionRecord>();
+		for (Ray ray : shadeRays) {
+			IntersectionRecord hit = new IntersectionRecord();
+			if (shadeScene.intersect(hit, ray, false) && hit.surface.getShader() instanceof Phong) {
+				found.add(hit);
+			}
+		}
+		hits = new IntersectionRecord[HITS];
+		toEye = new Vector3[HITS];
+		for (int i = 0; i < HITS; i++) {
+			hits[i] = found.get(i % found.size());
+			toEye[i] = new Vector3();
+			toEye[i].sub(shadeScene.getCamera().getViewPoint(), hits[i].location);
+		}
+
+		record = new IntersectionRecord();
+		color = new Color();
+		work = new Workspace();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(WIDTH * HEIGHT)
+	public int sceneIntersect() {
+		int count = 0;
+		for (int i = 0; i < rays.length; i++) {
+			if (intersectScene.intersect(record, rays[i], false, work)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(HITS)
+	public void phongShade(Blackhole blackhole) {
+		for (int i = 0; i < HITS; i++) {
+			hits[i].surface.getShader().shade(color, shadeScene, lights, toEye[i], hits[i], work);
+			blackhole.consume(color.r);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package ray.bench;
+
+import java.io.File;
+import java.util.Random;
+
+import ray.Camera;
+import ray.Parser;
+import ray.Ray;
+import ray.Scene;
+import ray.accel.Bvh;
+import ray.accel.Grid;
+
+/**
+ * Helpers shared by the benchmarks: locating and loading the scene files at a
+ * fixed resolution, and generating reproducible rays.
+ */
+final class Scenes {
+
+	/** Seed used for every random number in the benchmarks. */
+	static final long SEED = 461;
+
+	private Scenes() { }
+
+	/**
+	 * Find a scene file relative to the repository root.  The root is taken from
+	 * the ray.root system property, or else is the working directory or its parent,
+	 * whichever contains TEST2.
+	 */
+	static File find(String name) {
+		String root = System.getProperty("ray.root");
+		if (root == null) {
+			root = new File("TEST2").isDirectory() ? "." : "..";
+		}
+		File file = new File(root, name);
+		if (!file.isFile()) {
+			throw new IllegalStateException("Scene not found: " + file.getAbsolutePath()
+					+ " (set -Dray.root to the repository root)");
+		}
+		return file;
+	}
+
+	/**
+	 * Parse a scene, resize its image and attach the named acceleration structure
+	 * ("none", "Bvh" or "Grid").  The scene is initialized and ready to trace.
+	 */
+	static Scene load(String name, String accel, int width, int height) {
+		Scene scene = (Scene) new Parser().parse(find(name).getPath(), Scene.class);
+		scene.getImage().setSize(width, height);
+		if (accel.equals("Bvh")) {
+			scene.setAccel(new Bvh());
+		} else if (accel.equals("Grid")) {
+			scene.setAccel(new Grid());
+		} else if (!accel.equals("none")) {
+			throw new IllegalArgumentException("Unknown accel: " + accel);
+		}
+		scene.initialize();
+		return scene;
+	}
+
+	/**
+	 * Camera rays through randomly jittered positions of a width x height pixel grid.
+	 */
+	static Ray[] cameraRays(Camera camera, int width, int height) {
+		Random random = new Random(SEED);
+		Ray[] rays = new Ray[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				Ray ray = new Ray();
+				camera.getRay(ray, (x + random.nextDouble()) / width, (y + random.nextDouble()) / height);
+				rays[y * width + x] = ray;
+			}
+		}
+		return rays;
+	}
+}
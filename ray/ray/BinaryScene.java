@@ -0,0 +1,532 @@
+package ray;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import ray.accel.AccelStruct;
+import ray.light.Light;
+import ray.math.Color;
+import ray.math.Tuple3;
+import ray.shader.Shader;
+import ray.surface.Surface;
+
+/**
+ * Reads and writes scenes in a compact binary form, for scenes that are
+ * rendered over and over: RayTracer's -binary option turns an XML scene into
+ * <input_file>.rtb, and .rtb files are rendered like XML ones.  Loading maps the
+ * file and reads it in place, so there is no text to tokenize and no reflection
+ * per element; each surface costs one constructor call and a few reads.  The
+ * scene's acceleration structure is stored after it is built, and Bvh and Grid
+ * restore theirs straight from the arrays in the file rather than building again.
+ *
+ * All numbers are little endian.  The file holds, in order: the magic number and
+ * version, the image size, the camera, the lights and the distance they are
+ * merged within (see Scene.lightMergeDistance), the scene's shaders, its
+ * surfaces and its acceleration structure.  Shaders, surfaces and acceleration
+ * structures take part through their write and read methods.  A shader or
+ * surface is written in full, with its class, where it is first referred to,
+ * and as an index after that; so shared prototypes of Instances are stored once,
+ * however many instances use them.
+ */
+public class BinaryScene {
+
+	/** File name extension of binary scenes. */
+	public static final String EXTENSION = ".rtb";
+
+	private static final int MAGIC = 0x42535452; // "RTSB"
+	private static final int VERSION = 4;
+
+	/** References: the default material, and an object defined right here. */
+	private static final int DEFAULT = -1;
+	private static final int DEFINITION = -2;
+
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+	/**
+	 * The only packages classes named in a file may come from.  Binary scenes are
+	 * also received from other machines (see TileServer), and a name from
+	 * anywhere else on the class path is refused before the class is loaded.
+	 */
+	private static final String[] SCENE_PACKAGES = { "ray.surface.", "ray.shader.", "ray.light.", "ray.accel." };
+
+	/**
+	 * Write scene to fileName, replacing any existing file.  The scene is
+	 * initialized first, so that its acceleration structure is built and stored.
+	 *
+	 * @param scene the scene to write
+	 * @param fileName the output filename
+	 */
+	public static void write(Scene scene, String fileName) throws IOException {
+		scene.initialize();
+
+		Path path = Paths.get(fileName);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			Output out = new Output(channel, true);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			Image image = scene.getImage();
+			out.writeInt(image == null ? 0 : image.getWidth());
+			out.writeInt(image == null ? 0 : image.getHeight());
+
+			Camera camera = scene.getCamera();
+			out.writeTuple(camera.viewPoint);
+			out.writeTuple(camera.viewDir);
+			out.writeTuple(camera.viewUp);
+			out.writeTuple(camera.projNormal);
+			out.writeDouble(camera.viewWidth);
+			out.writeDouble(camera.viewHeight);
+			out.writeDouble(camera.projDistance);
+
+			out.writeInt(scene.lights.size());
+			for (Light light : scene.lights) {
+				out.writeTuple(light.position);
+				out.writeColor(light.intensity);
+			}
+			out.writeDouble(scene.lightMergeDistance);
+
+			out.writeInt(scene.shaders.size());
+			for (Shader shader : scene.shaders) {
+				out.writeShader(shader);
+			}
+
+			out.writeInt(scene.surfaces.size());
+			for (Surface surface : scene.surfaces) {
+				out.writeSurface(surface);
+			}
+
+			if (scene.accel == null) {
+				out.writeInt(DEFAULT);
+			} else {
+				out.writeClass(scene.accel.getClass());
+				scene.accel.write(out);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * A SHA-256 digest of everything that decides where the camera rays land:
+	 * the image size, the camera and the surfaces, written as write would write
+	 * them but without their shaders.  Two scenes with the same digest differ
+	 * at most in their shaders and lights.
+	 *
+	 * @param scene the scene to digest
+	 * @param surfaceIndex filled with every surface of the scene, parts of
+	 *        groups and instances included, numbered in the order written; the
+	 *        numbering is the same for every scene with the same digest
+	 * @return the digest
+	 * @throws UnsupportedOperationException if a surface cannot be written
+	 */
+	public static byte[] digestGeometry(Scene scene, IdentityHashMap<Surface, Integer> surfaceIndex) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+		Output out = new Output(new WritableByteChannel() {
+			public int write(ByteBuffer source) {
+				int length = source.remaining();
+				digest.update(source);
+				return length;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() { }
+		}, false);
+		try {
+			Image image = scene.getImage();
+			out.writeInt(image == null ? 0 : image.getWidth());
+			out.writeInt(image == null ? 0 : image.getHeight());
+			Camera camera = scene.getCamera();
+			out.writeTuple(camera.viewPoint);
+			out.writeTuple(camera.viewDir);
+			out.writeTuple(camera.viewUp);
+			out.writeTuple(camera.projNormal);
+			out.writeDouble(camera.viewWidth);
+			out.writeDouble(camera.viewHeight);
+			out.writeDouble(camera.projDistance);
+			out.writeInt(scene.surfaces.size());
+			for (Surface surface : scene.surfaces) {
+				out.writeSurface(surface);
+			}
+			out.flush();
+		} catch (IOException e) {
+			// The channel above never throws
+			throw new Error(e);
+		}
+		surfaceIndex.putAll(out.surfaces);
+		return digest.digest();
+	}
+
+	/**
+	 * Read a scene written by write.  If it has an acceleration structure that
+	 * could be restored, initializing the scene will not build it again.
+	 *
+	 * @param fileName the binary scene file
+	 * @return the scene
+	 */
+	public static Scene read(String fileName) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+			throw new IOException(fileName + " is not a binary scene");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException(fileName + " is a binary scene of version " + version
+					+ ", expected version " + VERSION);
+		}
+		Input in = new Input(buffer);
+		Scene scene = new Scene();
+
+		int width = in.readInt();
+		int height = in.readInt();
+		if (width > 0 && height > 0) {
+			scene.setImage(Image.create(width, height));
+		}
+
+		Camera camera = new Camera();
+		in.readTuple(camera.viewPoint);
+		in.readTuple(camera.viewDir);
+		in.readTuple(camera.viewUp);
+		in.readTuple(camera.projNormal);
+		camera.viewWidth = in.readDouble();
+		camera.viewHeight = in.readDouble();
+		camera.projDistance = in.readDouble();
+		scene.setCamera(camera);
+
+		int lightCount = in.count(48);
+		for (int i = 0; i < lightCount; i++) {
+			Light light = new Light();
+			in.readTuple(light.position);
+			in.readColor(light.intensity);
+			scene.addLight(light);
+		}
+		scene.setLightMergeDistance(in.readDouble());
+
+		int shaderCount = in.count(4);
+		for (int i = 0; i < shaderCount; i++) {
+			scene.addShader(in.readShader());
+		}
+
+		int surfaceCount = in.count(4);
+		scene.surfaces.ensureCapacity(surfaceCount);
+		for (int i = 0; i < surfaceCount; i++) {
+			scene.addSurface(in.readSurface());
+		}
+
+		int accelClass = in.readInt();
+		if (accelClass != DEFAULT) {
+			AccelStruct accel = (AccelStruct) in.newInstance(accelClass, AccelStruct.class);
+			accel.read(in);
+			scene.setAccel(accel);
+		}
+		return scene;
+	}
+
+	/**
+	 * Where shaders, surfaces and acceleration structures write their values.
+	 * Values are buffered and written to the file in large blocks.
+	 */
+	public static final class Output {
+
+		private final WritableByteChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+		/** Index of every class, shader and surface written so far. */
+		private final HashMap<Class<?>, Integer> classes = new HashMap<Class<?>, Integer>();
+		private final IdentityHashMap<Shader, Integer> shaders = new IdentityHashMap<Shader, Integer>();
+		private final IdentityHashMap<Surface, Integer> surfaces = new IdentityHashMap<Surface, Integer>();
+
+		/** If false, shader references are left out, as by digestGeometry. */
+		private final boolean withShaders;
+
+		Output(WritableByteChannel channel, boolean withShaders) {
+			this.channel = channel;
+			this.withShaders = withShaders;
+		}
+
+		public void writeInt(int value) throws IOException {
+			ensure(4);
+			buffer.putInt(value);
+		}
+
+		public void writeDouble(double value) throws IOException {
+			ensure(8);
+			buffer.putDouble(value);
+		}
+
+		public void writeTuple(Tuple3 tuple) throws IOException {
+			ensure(24);
+			buffer.putDouble(tuple.x).putDouble(tuple.y).putDouble(tuple.z);
+		}
+
+		public void writeColor(Color color) throws IOException {
+			ensure(24);
+			buffer.putDouble(color.r).putDouble(color.g).putDouble(color.b);
+		}
+
+		/** Write the first length entries of values, preceded by length. */
+		public void writeInts(int[] values, int length) throws IOException {
+			writeInt(length);
+			for (int i = 0; i < length; i++) {
+				writeInt(values[i]);
+			}
+		}
+
+		/** Write the first length entries of values, preceded by length. */
+		public void writeDoubles(double[] values, int length) throws IOException {
+			writeInt(length);
+			for (int i = 0; i < length; i++) {
+				writeDouble(values[i]);
+			}
+		}
+
+		public void writeString(String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeInt(bytes.length);
+			for (int i = 0; i < bytes.length; i++) {
+				ensure(1);
+				buffer.put(bytes[i]);
+			}
+		}
+
+		/** Write a class, by name the first time and by index after that. */
+		void writeClass(Class<?> c) throws IOException {
+			Integer index = classes.get(c);
+			if (index != null) {
+				writeInt(index);
+				return;
+			}
+			classes.put(c, classes.size());
+			writeInt(DEFINITION);
+			writeString(c.getName());
+		}
+
+		/** Write a reference to a shader, defining it if it has not been written yet. */
+		public void writeShader(Shader shader) throws IOException {
+			if (!withShaders) {
+				return;
+			}
+			if (shader == Shader.DEFAULT_MATERIAL) {
+				writeInt(DEFAULT);
+				return;
+			}
+			Integer index = shaders.get(shader);
+			if (index != null) {
+				writeInt(index);
+				return;
+			}
+			shaders.put(shader, shaders.size());
+			writeInt(DEFINITION);
+			writeClass(shader.getClass());
+			shader.write(this);
+		}
+
+		/** Write a reference to a surface, defining it if it has not been written yet. */
+		public void writeSurface(Surface surface) throws IOException {
+			Integer index = surfaces.get(surface);
+			if (index != null) {
+				writeInt(index);
+				return;
+			}
+			surfaces.put(surface, surfaces.size());
+			writeInt(DEFINITION);
+			writeClass(surface.getClass());
+			writeShader(surface.getShader());
+			surface.write(this);
+		}
+
+		/** Write an array of references to surfaces, preceded by its length. */
+		public void writeSurfaces(Surface[] values) throws IOException {
+			writeInt(values.length);
+			for (Surface surface : values) {
+				writeSurface(surface);
+			}
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Where shaders, surfaces and acceleration structures read their values back,
+	 * in the order they wrote them.  Reads go straight to the mapped file.
+	 */
+	public static final class Input {
+
+		private final ByteBuffer buffer;
+
+		/** The classes and their zero argument constructors, and the shaders and surfaces, read so far. */
+		private final ArrayList<Class<?>> classes = new ArrayList<Class<?>>();
+		private final ArrayList<MethodHandle> constructors = new ArrayList<MethodHandle>();
+		private final ArrayList<Shader> shaders = new ArrayList<Shader>();
+		private final ArrayList<Surface> surfaces = new ArrayList<Surface>();
+
+		Input(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int readInt() {
+			return buffer.getInt();
+		}
+
+		public double readDouble() {
+			return buffer.getDouble();
+		}
+
+		public void readTuple(Tuple3 out) {
+			out.set(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+		}
+
+		public void readColor(Color out) {
+			out.set(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+		}
+
+		public int[] readInts() {
+			int[] values = new int[count(4)];
+			buffer.asIntBuffer().get(values);
+			buffer.position(buffer.position() + 4 * values.length);
+			return values;
+		}
+
+		public double[] readDoubles() {
+			double[] values = new double[count(8)];
+			buffer.asDoubleBuffer().get(values);
+			buffer.position(buffer.position() + 8 * values.length);
+			return values;
+		}
+
+		public String readString() {
+			byte[] bytes = new byte[count(1)];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Read the length of an array of values taking at least bytes each.
+		 *
+		 * @throws Error if the rest of the file is too short to hold them
+		 */
+		int count(int bytes) {
+			int count = buffer.getInt();
+			if (count < 0 || (long) count * bytes > buffer.remaining()) {
+				throw new Error("Array of " + count + " values runs past the end of the file");
+			}
+			return count;
+		}
+
+		public Shader readShader() {
+			int index = buffer.getInt();
+			if (index == DEFAULT) {
+				return Shader.DEFAULT_MATERIAL;
+			}
+			if (index != DEFINITION) {
+				return shaders.get(index);
+			}
+			Shader shader = (Shader) newInstance(buffer.getInt(), Shader.class);
+			shaders.add(shader);
+			shader.read(this);
+			return shader;
+		}
+
+		public Surface readSurface() {
+			int index = buffer.getInt();
+			if (index != DEFINITION) {
+				return surfaces.get(index);
+			}
+			Surface surface = (Surface) newInstance(buffer.getInt(), Surface.class);
+			surfaces.add(surface);
+			surface.setShader(readShader());
+			surface.read(this);
+			return surface;
+		}
+
+		public Surface[] readSurfaces() {
+			Surface[] values = new Surface[count(4)];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = readSurface();
+			}
+			return values;
+		}
+
+		/**
+		 * @return a new object of the class written as classIndex, whose name follows
+		 *         if it is a definition
+		 * @throws Error if the class is not a base, or not in one of SCENE_PACKAGES
+		 */
+		Object newInstance(int classIndex, Class<?> base) {
+			if (classIndex == DEFINITION) {
+				String className = readString();
+				try {
+					Class<?> c = Class.forName(sceneClassName(className), false, BinaryScene.class.getClassLoader());
+					constructors.add(MethodHandles.publicLookup()
+							.findConstructor(c, MethodType.methodType(void.class))
+							.asType(CONSTRUCTOR_TYPE));
+					classes.add(c);
+				} catch (ClassNotFoundException e) {
+					throw new Error("Class could not be found: " + className);
+				} catch (ReflectiveOperationException e) {
+					throw new Error("Error instantiating object of class: " + className);
+				}
+				classIndex = constructors.size() - 1;
+			}
+			if (classIndex < 0 || classIndex >= classes.size() || !base.isAssignableFrom(classes.get(classIndex))) {
+				throw new Error("Class number " + classIndex + " is not a " + base.getName());
+			}
+			try {
+				return constructors.get(classIndex).invokeExact();
+			} catch (Throwable e) {
+				throw new Error("Error instantiating object of class number " + classIndex, e);
+			}
+		}
+
+		/**
+		 * @return className, if it names a class in one of SCENE_PACKAGES
+		 * @throws Error otherwise
+		 */
+		private static String sceneClassName(String className) {
+			for (String prefix : SCENE_PACKAGES) {
+				if (className.startsWith(prefix) && className.indexOf('.', prefix.length()) < 0) {
+					return className;
+				}
+			}
+			throw new Error("Class " + className + " is not allowed in a binary scene");
+		}
+	}
+}
@@ -17,6 +17,7 @@ public class Camera {
 	
 	protected final Point3 viewPoint = new Point3();
 	public void setViewPoint(Point3 viewPoint) { this.viewPoint.set(viewPoint); }
+	public Point3 getViewPoint() { return viewPoint; }
 	
 	protected final Vector3 viewDir = new Vector3(0, 0, -1);
 	public void setViewDir(Vector3 viewDir) { this.viewDir.set(viewDir); }
@@ -77,8 +78,11 @@ public class Camera {
 		outRay.origin.set(viewPoint);
 		outRay.start = 0;
 		outRay.end = Double.POSITIVE_INFINITY;
-		outRay.direction.set(Vector3.getScaledVector(basisW, -projDistance));
-		outRay.direction.add(Vector3.getScaledVector(basisU, inU * viewWidth - viewWidth * 0.5));
-		outRay.direction.add(Vector3.getScaledVector(basisV, inV * viewHeight - viewHeight * 0.5));
+		double u = inU * viewWidth - viewWidth * 0.5;
+		double v = inV * viewHeight - viewHeight * 0.5;
+		outRay.direction.set(
+				basisW.x * -projDistance + basisU.x * u + basisV.x * v,
+				basisW.y * -projDistance + basisU.y * u + basisV.y * v,
+				basisW.z * -projDistance + basisU.z * u + basisV.z * v);
 	}
 }
@@ -0,0 +1,297 @@
+package ray;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import ray.surface.Surface;
+
+/**
+ * What each pixel of a render cost, measured by one of the Workspace counters
+ * or by the clock.  Workers read the measure before and after tracing a pixel
+ * and add the difference to it, so a pixel holds the cost of all the rays
+ * traced for it: its share of a packet, the corner samples and refinement of
+ * adaptive antialiasing, and every progressive pass that traced it.  Pixels of
+ * a tile are only ever written by the thread rendering that tile.
+ *
+ * The map is written next to the image as a color ramp (black through blue,
+ * red and yellow to white, scaled so that the 99th percentile is yellow) and
+ * as a grayscale PFM holding the raw costs, rows from the bottom of the image
+ * up as the format wants.  Selected with RayTracer's -heatmap option.
+ *
+ * The costs are kept on the heap for images Image.create keeps there, and
+ * otherwise in a memory-mapped scratch file, in segments of whole rows as
+ * MappedImage keeps its pixels; close() deletes the file.
+ */
+public class CostMap {
+
+	/** What a pixel's cost counts. */
+	public enum Measure {
+		/** Intersection tests, as Workspace.surfaceTests counts them. */
+		TESTS,
+		/** Shadow rays cast. */
+		SHADOWS,
+		/** Nanoseconds, including shading. */
+		NANOS
+	}
+
+	private final Measure measure;
+	private final int width;
+	private final int height;
+
+	/** Cost of each pixel; pixel (x, y) is (y % rowsPerSegment) * width + x of segment y / rowsPerSegment. */
+	private final FloatBuffer[] costs;
+	private final int rowsPerSegment;
+
+	/** The scratch file the costs are mapped from, or null if they are on the heap. */
+	private Path file;
+
+	/** Ramp stops, evenly spaced from no cost to the scale, then white above it. */
+	private static final float[][] RAMP = { { 0, 0, 0 }, { 0.1f, 0.1f, 0.6f }, { 0.8f, 0.1f, 0.3f },
+			{ 1, 0.6f, 0 }, { 1, 1, 0.2f } };
+
+	/**
+	 * @param measure what to count
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 */
+	public CostMap(Measure measure, int width, int height) {
+		this.measure = measure;
+		this.width = width;
+		this.height = height;
+		if (!Image.isMapped(width, height)) {
+			rowsPerSegment = Math.max(1, height);
+			costs = new FloatBuffer[] { FloatBuffer.wrap(new float[width * height]) };
+			return;
+		}
+		rowsPerSegment = Math.max(1, Integer.MAX_VALUE / 4 / Math.max(1, width));
+		costs = new FloatBuffer[(height + rowsPerSegment - 1) / rowsPerSegment];
+		try {
+			file = Files.createTempFile("costs", ".raw");
+			file.toFile().deleteOnExit();
+			// The mappings stay valid once the channel is closed
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				for (int i = 0; i < costs.length; i++) {
+					int rows = Math.min(rowsPerSegment, height - i * rowsPerSegment);
+					costs[i] = channel.map(FileChannel.MapMode.READ_WRITE, 4L * width * rowsPerSegment * i,
+							4L * width * rows).order(ByteOrder.nativeOrder()).asFloatBuffer();
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not map cost map " + file, e);
+		}
+	}
+
+	/**
+	 * Delete the scratch file of a mapped map.  The map is unusable afterwards.
+	 */
+	public void close() {
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			file = null;
+		}
+	}
+
+	/**
+	 * @return the measure of the calling thread so far, to pass to add
+	 */
+	public long start(Workspace work) {
+		switch (measure) {
+		case TESTS:
+			long tests = 0;
+			for (int i = 0; i < Surface.MAX_CLASSES; i++) {
+				tests += work.surfaceTests[i];
+			}
+			return tests;
+		case SHADOWS:
+			return work.shadowRays;
+		default:
+			return System.nanoTime();
+		}
+	}
+
+	/**
+	 * Add what was measured since start to pixel (x, y).
+	 */
+	public void add(int x, int y, Workspace work, long start) {
+		add(x, y, start(work) - start);
+	}
+
+	private void add(int x, int y, float cost) {
+		FloatBuffer segment = costs[y / rowsPerSegment];
+		int i = (y % rowsPerSegment) * width + x;
+		segment.put(i, segment.get(i) + cost);
+	}
+
+	/**
+	 * Share what was measured since start evenly among the pixels of
+	 * [x0, x1) x [y0, y1), as traced together in one packet.
+	 */
+	public void addSpread(int x0, int y0, int x1, int y1, Workspace work, long start) {
+		float share = (float) (start(work) - start) / ((x1 - x0) * (y1 - y0));
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				add(x, y, share);
+			}
+		}
+	}
+
+	/**
+	 * @return the cost of pixel (x, y)
+	 */
+	public float get(int x, int y) {
+		return costs[y / rowsPerSegment].get((y % rowsPerSegment) * width + x);
+	}
+
+	/**
+	 * @return the cost of the given fraction of the pixels is at most this
+	 */
+	public float percentile(double fraction) {
+		return percentiles(fraction)[0];
+	}
+
+	/**
+	 * The costs are selected rather than sorted, so no copy of them is made: a
+	 * non-negative float orders as its bits do, so one pass counts the costs by
+	 * their top 16 bits, which finds the group of costs holding each percentile,
+	 * and a second counts the low 16 bits of the costs in those groups.
+	 *
+	 * @return for each fraction, the cost that fraction of the pixels is at most
+	 */
+	public float[] percentiles(double... fractions) {
+		long pixels = (long) width * height;
+		float[] result = new float[fractions.length];
+		if (pixels == 0) {
+			return result;
+		}
+		int[] high = new int[1 << 16];
+		for (FloatBuffer segment : costs) {
+			for (int i = 0; i < segment.limit(); i++) {
+				high[bits(segment.get(i)) >>> 16]++;
+			}
+		}
+		int[] groups = new int[fractions.length];
+		long[] ranks = new long[fractions.length];
+		for (int k = 0; k < fractions.length; k++) {
+			ranks[k] = Math.max(0, Math.min(pixels - 1, (long) Math.floor(fractions[k] * pixels)));
+			while (ranks[k] >= high[groups[k]]) {
+				ranks[k] -= high[groups[k]++];
+			}
+		}
+		int[][] low = new int[fractions.length][1 << 16];
+		for (FloatBuffer segment : costs) {
+			for (int i = 0; i < segment.limit(); i++) {
+				int bits = bits(segment.get(i));
+				for (int k = 0; k < fractions.length; k++) {
+					if (bits >>> 16 == groups[k]) {
+						low[k][bits & 0xffff]++;
+					}
+				}
+			}
+		}
+		for (int k = 0; k < fractions.length; k++) {
+			int j = 0;
+			while (ranks[k] >= low[k][j]) {
+				ranks[k] -= low[k][j++];
+			}
+			result[k] = Float.intBitsToFloat(groups[k] << 16 | j);
+		}
+		return result;
+	}
+
+	/** @return the bits of a cost, which is never negative, with -0 taken as 0 */
+	private static int bits(float cost) {
+		return Float.floatToIntBits(cost + 0.0f);
+	}
+
+	/**
+	 * @return the average cost of a pixel
+	 */
+	public double mean() {
+		double total = 0;
+		for (FloatBuffer segment : costs) {
+			for (int i = 0; i < segment.limit(); i++) {
+				total += segment.get(i);
+			}
+		}
+		return total / ((long) width * height);
+	}
+
+	/**
+	 * Write the map as a color ramp to fileName.png and raw to fileName.pfm.
+	 *
+	 * @param fileName the output file name, without extension
+	 */
+	public void write(String fileName) throws IOException {
+		float scale = percentile(0.99);
+		if (scale <= 0) {
+			scale = 1;
+		}
+		Image ramp = Image.create(width, height);
+		try {
+			writeRamp(ramp, scale);
+			new PngWriter(ramp).write(fileName + ".png");
+		} finally {
+			if (ramp instanceof MappedImage) {
+				((MappedImage) ramp).close();
+			}
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName + ".pfm")))) {
+			// A negative scale marks little endian floats
+			out.writeBytes("Pf\n" + width + " " + height + "\n-1.0\n");
+			for (FloatBuffer segment : costs) {
+				for (int i = 0; i < segment.limit(); i++) {
+					out.writeInt(Integer.reverseBytes(Float.floatToIntBits(segment.get(i))));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Color every pixel of ramp by its cost over scale.
+	 */
+	private void writeRamp(Image ramp, float scale) {
+		int stops = RAMP.length - 1;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				float v = get(x, y) / scale;
+				if (v >= 1) {
+					// Above the scale, fade from the last stop to white at twice the scale
+					float w = Math.min(v - 1, 1);
+					float[] last = RAMP[stops];
+					ramp.setPixelRGB(last[0] + (1 - last[0]) * w, last[1] + (1 - last[1]) * w,
+							last[2] + (1 - last[2]) * w, x, y);
+					continue;
+				}
+				int i = (int) (v * stops);
+				float t = v * stops - i;
+				float[] a = RAMP[i];
+				float[] b = RAMP[i + 1];
+				ramp.setPixelRGB(a[0] + (b[0] - a[0]) * t, a[1] + (b[1] - a[1]) * t, a[2] + (b[2] - a[2]) * t, x, y);
+			}
+		}
+	}
+
+	/**
+	 * @return a line describing the distribution of the costs
+	 */
+	public String summary() {
+		String unit = measure == Measure.TESTS ? "tests" : measure == Measure.SHADOWS ? "shadow rays" : "ns";
+		float[] percentiles = percentiles(0.5, 0.99, 1);
+		return String.format("cost per pixel in %s: mean %.1f, median %.0f, 99th percentile %.0f, max %.0f", unit,
+				mean(), percentiles[0], percentiles[1], percentiles[2]);
+	}
+}
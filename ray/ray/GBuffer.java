@@ -0,0 +1,317 @@
+package ray;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import ray.light.Light;
+import ray.surface.Surface;
+
+/**
+ * What the camera ray of every pixel hit and which lights were blocked from
+ * there, kept in a file next to the scene so that a later render of the same
+ * scene with other lights or materials can skip tracing.  Shading a pixel
+ * needs only its hit (surface, location and normal) and, for every light,
+ * whether the shadow ray reached it; for a given image size, camera and set of
+ * surfaces the first depends on nothing else and the second only on the light
+ * positions.  Shaders are looked up from the stored surface when the pixel is
+ * shaded, so edited shaders, or surfaces given other shaders, are picked up.
+ *
+ * The file starts with a header naming the image size, the number of lights
+ * and two keys: a digest of the camera and surfaces
+ * (BinaryScene.digestGeometry) and one of the light positions.  Opening it for
+ * a scene compares them:
+ *
+ *   - all match: hits and shadows are replayed, so no ray is traced and the
+ *     scene need not even be initialized;
+ *   - only the light positions differ: hits are replayed and shadow rays traced
+ *     again, their results replacing the stored ones;
+ *   - anything else, or a file a render did not finish: everything is traced
+ *     and recorded afresh.
+ *
+ * Each pixel then holds the index of the surface hit (-1 for a miss) and of
+ * the instance part, the location and normal, and one bit per light, set if
+ * the light was blocked.  Pixels are mapped like MappedImage's, in segments of
+ * whole rows.  Used with RayTracer's -relight option.
+ */
+public class GBuffer {
+
+	/** 'RTGB' and the layout version. */
+	private static final int MAGIC = 0x42475452;
+	private static final int VERSION = 1;
+
+	/** Header size, and the offsets of the keys in it. */
+	private static final int HEADER = 128;
+	private static final int GEOMETRY_KEY = 24;
+	private static final int LIGHTS_KEY = 56;
+	private static final int KEY_BYTES = 32;
+
+	private final int width;
+	private final int height;
+	private final int lightCount;
+	private final int shadowWords;
+	private final byte[] geometryKey;
+	private final byte[] lightsKey;
+
+	/** Surfaces by the index stored for them, and the other way round. */
+	private final Surface[] surfaces;
+	private final IdentityHashMap<Surface, Integer> surfaceIndex = new IdentityHashMap<Surface, Integer>();
+
+	private final boolean replayHits;
+	private final boolean replayShadows;
+
+	/** Bytes per pixel and per row, and rows per mapped segment. */
+	private final int stride;
+	private final long rowBytes;
+	private final int rowsPerSegment;
+	private final MappedByteBuffer[] segments;
+
+	private final Path file;
+	private FileChannel channel;
+
+	/**
+	 * Open or create the buffer of a scene, which must have its image set.
+	 *
+	 * @param scene the scene about to be rendered
+	 * @param fileName the buffer file
+	 * @throws UnsupportedOperationException if the scene has a surface or shader
+	 *         that cannot be stored in a binary scene, and so cannot be digested
+	 */
+	public GBuffer(Scene scene, String fileName) throws IOException {
+		file = Paths.get(fileName);
+		width = scene.getImage().getWidth();
+		height = scene.getImage().getHeight();
+		ArrayList<Light> lights = scene.getShadingLights();
+		lightCount = lights.size();
+		shadowWords = Math.max(1, (lightCount + 63) >>> 6);
+		stride = 8 + 6 * 8 + 8 * shadowWords;
+		rowBytes = (long) stride * width;
+		rowsPerSegment = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+
+		geometryKey = BinaryScene.digestGeometry(scene, surfaceIndex);
+		lightsKey = digestLights(lights);
+		surfaces = new Surface[surfaceIndex.size()];
+		for (Map.Entry<Surface, Integer> entry : surfaceIndex.entrySet()) {
+			surfaces[entry.getValue()] = entry.getKey();
+		}
+
+		// Compare the stored header with this scene's
+		boolean hits = false;
+		boolean shadows = false;
+		if (Files.exists(file) && Files.size(file) == HEADER + rowBytes * height) {
+			try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+				while (header.hasRemaining() && in.read(header) >= 0) { }
+				hits = header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == width
+						&& header.getInt(12) == height && header.getInt(16) == lightCount && header.getInt(20) == 1
+						&& keyEquals(header, GEOMETRY_KEY, geometryKey);
+				shadows = hits && keyEquals(header, LIGHTS_KEY, lightsKey);
+			}
+		}
+		replayHits = hits;
+		replayShadows = shadows;
+
+		if (replayShadows) {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+		} else {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			if (!replayHits) {
+				channel.truncate(0);
+			}
+			// Marked incomplete until close()
+			writeHeader(0);
+		}
+		FileChannel.MapMode mode = replayShadows ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+		int count = (height + rowsPerSegment - 1) / rowsPerSegment;
+		segments = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			int rows = Math.min(rowsPerSegment, height - i * rowsPerSegment);
+			segments[i] = channel.map(mode, HEADER + rowBytes * rowsPerSegment * i, rowBytes * rows);
+			segments[i].order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * @return a digest of the number of lights and their positions
+	 */
+	private static byte[] digestLights(ArrayList<Light> lights) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+		ByteBuffer bytes = ByteBuffer.allocate(4 + 24 * lights.size()).order(ByteOrder.LITTLE_ENDIAN);
+		bytes.putInt(lights.size());
+		for (Light light : lights) {
+			bytes.putDouble(light.position.x);
+			bytes.putDouble(light.position.y);
+			bytes.putDouble(light.position.z);
+		}
+		bytes.flip();
+		digest.update(bytes);
+		return digest.digest();
+	}
+
+	private static boolean keyEquals(ByteBuffer header, int offset, byte[] key) {
+		byte[] stored = new byte[KEY_BYTES];
+		for (int i = 0; i < KEY_BYTES; i++) {
+			stored[i] = header.get(offset + i);
+		}
+		return Arrays.equals(stored, key);
+	}
+
+	private void writeHeader(int complete) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(lightCount).putInt(complete);
+		header.put(geometryKey).put(lightsKey);
+		header.clear();
+		long position = 0;
+		while (header.hasRemaining()) {
+			position += channel.write(header, position);
+		}
+	}
+
+	/**
+	 * @return true if the stored hits are used instead of tracing camera rays
+	 */
+	public boolean replaysHits() {
+		return replayHits;
+	}
+
+	/**
+	 * @return true if the stored shadows are used instead of tracing shadow rays
+	 */
+	public boolean replaysShadows() {
+		return replayShadows;
+	}
+
+	/**
+	 * @return the number of longs in a pixel's shadow bits
+	 */
+	public int shadowWords() {
+		return shadowWords;
+	}
+
+	/**
+	 * @return what the buffer is used for in this render
+	 */
+	public String mode() {
+		if (replayShadows) {
+			return "replaying hits and shadows";
+		}
+		return replayHits ? "replaying hits, tracing shadows" : "recording hits and shadows";
+	}
+
+	/**
+	 * @return the segment holding row y
+	 */
+	private ByteBuffer segment(int y) {
+		return segments[y / rowsPerSegment];
+	}
+
+	/**
+	 * @return the offset of pixel (x, y) in its segment
+	 */
+	private int offset(int x, int y) {
+		return (int) ((y % rowsPerSegment) * rowBytes) + x * stride;
+	}
+
+	/**
+	 * Store the hit of pixel (x, y).
+	 *
+	 * @param record the hit, or null if the camera ray missed
+	 */
+	public void storeHit(int x, int y, IntersectionRecord record) {
+		ByteBuffer buffer = segment(y);
+		int i = offset(x, y);
+		if (record == null) {
+			buffer.putInt(i, -1);
+			return;
+		}
+		buffer.putInt(i, surfaceIndex.get(record.surface));
+		buffer.putInt(i + 4, record.part == null ? -1 : surfaceIndex.get(record.part));
+		buffer.putDouble(i + 8, record.location.x);
+		buffer.putDouble(i + 16, record.location.y);
+		buffer.putDouble(i + 24, record.location.z);
+		buffer.putDouble(i + 32, record.normal.x);
+		buffer.putDouble(i + 40, record.normal.y);
+		buffer.putDouble(i + 48, record.normal.z);
+	}
+
+	/**
+	 * Set record to the stored hit of pixel (x, y).  Its t is not stored.
+	 *
+	 * @return false if the camera ray missed, leaving record unchanged
+	 */
+	public boolean loadHit(int x, int y, IntersectionRecord record) {
+		ByteBuffer buffer = segment(y);
+		int i = offset(x, y);
+		int surface = buffer.getInt(i);
+		if (surface < 0) {
+			return false;
+		}
+		int part = buffer.getInt(i + 4);
+		record.surface = surfaces[surface];
+		record.part = part < 0 ? null : surfaces[part];
+		record.location.set(buffer.getDouble(i + 8), buffer.getDouble(i + 16), buffer.getDouble(i + 24));
+		record.normal.set(buffer.getDouble(i + 32), buffer.getDouble(i + 40), buffer.getDouble(i + 48));
+		record.t = 0;
+		return true;
+	}
+
+	/**
+	 * Store the shadow bits of pixel (x, y), bit i of mask[i / 64] set if light
+	 * i was blocked.
+	 */
+	public void storeShadows(int x, int y, long[] mask) {
+		ByteBuffer buffer = segment(y);
+		int i = offset(x, y) + 56;
+		for (int w = 0; w < shadowWords; w++) {
+			buffer.putLong(i + 8 * w, mask[w]);
+		}
+	}
+
+	/**
+	 * Set mask to the stored shadow bits of pixel (x, y).
+	 */
+	public void loadShadows(int x, int y, long[] mask) {
+		ByteBuffer buffer = segment(y);
+		int i = offset(x, y) + 56;
+		for (int w = 0; w < shadowWords; w++) {
+			mask[w] = buffer.getLong(i + 8 * w);
+		}
+	}
+
+	/**
+	 * Finish a render that used the buffer: if it recorded anything, write the
+	 * keys of the scene it recorded and mark the file complete.  Not to be called
+	 * if the render failed, so that the next one records afresh.
+	 */
+	public void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		if (!replayShadows) {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+			writeHeader(1);
+		}
+		channel.close();
+		channel = null;
+	}
+}
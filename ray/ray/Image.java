@@ -52,8 +52,45 @@ public class Image {
 	public Image(Image oldImage) {
 		
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width * height * 3; i++)
-			data[i] = oldImage.data[i];
+		float[] row = new float[width * 3];
+		for (int y = 0; y < height; y++) {
+			oldImage.getRow(row, y);
+			System.arraycopy(row, 0, data, y * width * 3, width * 3);
+		}
+	}
+	
+	/**
+	 * If set (with RayTracer's -mapped option), create() always returns a
+	 * MappedImage.
+	 */
+	public static boolean mapFramebuffers = false;
+	
+	/**
+	 * Create an image of the given size, on the heap if its pixels take at most
+	 * a quarter of the maximum heap (and fit in one array), and as a MappedImage
+	 * otherwise.
+	 *
+	 * @param inW input width
+	 * @param inH input height
+	 * @return the new image
+	 */
+	public static Image create(int inW, int inH) {
+		
+		if (isMapped(inW, inH)) {
+			return new MappedImage(inW, inH);
+		}
+		return new Image(inW, inH);
+	}
+	
+	/**
+	 * @return whether create(inW, inH) makes a MappedImage, and so whether other
+	 *         buffers kept per pixel of such an image belong off the heap too
+	 */
+	static boolean isMapped(int inW, int inH) {
+		
+		long floats = 3L * inW * inH;
+		return mapFramebuffers || floats > Integer.MAX_VALUE - 8
+				|| 4 * floats > Runtime.getRuntime().maxMemory() / 4;
 	}
 	
 	/**
@@ -138,6 +175,18 @@ public class Image {
 		data[idx + 2] = (float) inB;
 	}
 	
+	/**
+	 * Copy one row of pixels, three floats each, into out.  Rows are counted from
+	 * the top, the order image files store them in; row r holds the pixels with
+	 * y = height - 1 - r.
+	 * @param out output array of at least 3 * width floats
+	 * @param row the row, from the top
+	 */
+	public void getRow(float[] out, int row) {
+		
+		System.arraycopy(data, row * width * 3, out, 0, width * 3);
+	}
+	
 	/**
 	 * Computes the index in the data array.
 	 * @param inX inX
@@ -182,10 +231,45 @@ public class Image {
 	
 	/**
 	 * Write this image to the filename.  The output is always written as a PNG regardless
-	 * of the extension on the filename given.
+	 * of the extension on the filename given.  Encoding is spread over the render
+	 * threads by PngWriter.
 	 * @param fileName the output filename
 	 */
 	public void write(String fileName) {
+		write(fileName, true);
+	}
+	
+	/**
+	 * Write this image to the filename as write(String) does.
+	 * @param fileName the output filename
+	 * @param parallel false to encode on the calling thread, for snapshots taken
+	 *        while the render pool is busy with a pass
+	 */
+	public void write(String fileName, boolean parallel) {
+		
+		RenderEvents.Write event = new RenderEvents.Write();
+		event.begin();
+		try {
+			new PngWriter(this, PngWriter.DEFAULT_LEVEL, parallel).write(fileName);
+			if (event.shouldCommit()) {
+				event.file = fileName;
+				event.bytes = new File(fileName).length();
+				event.commit();
+			}
+		}
+		catch (Exception e) {
+			System.out.println("Error occured while attempting to write file: "+fileName);
+			System.err.println(e);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Write this image to the filename through ImageIO, one pixel at a time.  The
+	 * file decodes to the same pixels as one written by write().
+	 * @param fileName the output filename
+	 */
+	public void writeImageIO(String fileName) {
 		
 		// For some reason java can't write the BufferedImages produced directly from the
 		// image data, so we have to recreate the image to produce one for output.
@@ -22,6 +22,12 @@ public class IntersectionRecord {
   /** A reference to the actual surface. */
   public Surface surface = null;
 
+  /**
+   * When surface is an Instance, the part of its prototype that was hit.
+   * Meaningless for other surfaces.
+   */
+  public Surface part = null;
+
   /** The t value along the ray at which the intersection occurred. */
   public double t = 0;
   
@@ -35,6 +41,7 @@ public class IntersectionRecord {
     location.set(inRecord.location);
     normal.set(inRecord.normal);
     surface = inRecord.surface;
+    part = inRecord.part;
     t = inRecord.t;
 
   }
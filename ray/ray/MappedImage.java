@@ -0,0 +1,196 @@
+package ray;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import ray.math.Color;
+
+/**
+ * An image whose pixels live in a memory-mapped scratch file instead of on the
+ * heap, for renders too large for a float[] or for the heap.  The layout is the
+ * same as Image's: three floats per pixel, rows top down.  A mapping can cover
+ * at most 2 GB, so the file is mapped in segments of whole rows.
+ *
+ * Render threads write their pixels straight into the mapping, and the page
+ * cache writes them back as memory gets short, so the heap only ever holds the
+ * rows being encoded.  Call close() once the image has been written to delete
+ * the scratch file.
+ */
+public class MappedImage extends Image {
+
+	/** Floats per row and rows per mapped segment. */
+	private long rowFloats;
+	private int rowsPerSegment;
+
+	/** The mapped segments; floats [i * rowsPerSegment * rowFloats, ...) are in segments[i]. */
+	private FloatBuffer[] segments;
+
+	/** The scratch file and whether this image created it. */
+	private Path file;
+	private boolean temporary;
+	private FileChannel channel;
+
+	/**
+	 * Create an image backed by a new temporary file.
+	 *
+	 * @param inW input width
+	 * @param inH input height
+	 */
+	public MappedImage(int inW, int inH) {
+		this(inW, inH, null);
+	}
+
+	/**
+	 * Create an image backed by the given file, which is overwritten.
+	 *
+	 * @param inW input width
+	 * @param inH input height
+	 * @param file the scratch file, or null for a temporary one
+	 */
+	public MappedImage(int inW, int inH, Path file) {
+		super(0, 0);
+		this.file = file;
+		setSize(inW, inH);
+	}
+
+	/**
+	 * Set the size of the image by remapping the scratch file.  Destroys all current image data.
+	 * @param newWidth width
+	 * @param newHeight height
+	 */
+	public void setSize(int newWidth, int newHeight) {
+		width = newWidth;
+		height = newHeight;
+		data = null;
+		if (width == 0 || height == 0) {
+			// Called by the Image constructor before the file is known
+			segments = new FloatBuffer[0];
+			return;
+		}
+		unmap();
+		try {
+			if (file == null) {
+				file = Files.createTempFile("framebuffer", ".raw");
+				file.toFile().deleteOnExit();
+				temporary = true;
+			}
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			rowFloats = 3L * width;
+			rowsPerSegment = (int) Math.max(1, Integer.MAX_VALUE / 4 / rowFloats);
+			int count = (height + rowsPerSegment - 1) / rowsPerSegment;
+			segments = new FloatBuffer[count];
+			for (int i = 0; i < count; i++) {
+				int rows = Math.min(rowsPerSegment, height - i * rowsPerSegment);
+				MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_WRITE,
+						4L * rowFloats * rowsPerSegment * i, 4L * rowFloats * rows);
+				segments[i] = bytes.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not map framebuffer " + file, e);
+		}
+	}
+
+	/**
+	 * Set the image to black
+	 */
+	public void clear() {
+		float[] row = new float[(int) rowFloats];
+		for (int y = 0; y < height; y++) {
+			setRow(row, y);
+		}
+	}
+
+	/**
+	 * @see Image#getPixelColor(Color, int, int)
+	 */
+	public void getPixelColor(Color outPixel, int inX, int inY) {
+		int row = height - 1 - inY;
+		FloatBuffer segment = segments[row / rowsPerSegment];
+		int idx = (int) ((row % rowsPerSegment) * rowFloats) + 3 * inX;
+		outPixel.set(segment.get(idx + 0), segment.get(idx + 1), segment.get(idx + 2));
+	}
+
+	/**
+	 * @see Image#setPixelColor(Color, int, int)
+	 */
+	public void setPixelColor(Color inPixel, int inX, int inY) {
+		setPixelRGB(inPixel.r, inPixel.g, inPixel.b, inX, inY);
+	}
+
+	/**
+	 * @see Image#setPixelRGB(double, double, double, int, int)
+	 */
+	public void setPixelRGB(double inR, double inG, double inB, int inX, int inY) {
+		int row = height - 1 - inY;
+		FloatBuffer segment = segments[row / rowsPerSegment];
+		int idx = (int) ((row % rowsPerSegment) * rowFloats) + 3 * inX;
+		segment.put(idx + 0, (float) inR);
+		segment.put(idx + 1, (float) inG);
+		segment.put(idx + 2, (float) inB);
+	}
+
+	/**
+	 * @see Image#getRow(float[], int)
+	 */
+	public void getRow(float[] out, int row) {
+		FloatBuffer segment = segments[row / rowsPerSegment];
+		segment.get((int) ((row % rowsPerSegment) * rowFloats), out, 0, (int) rowFloats);
+	}
+
+	private void setRow(float[] in, int row) {
+		FloatBuffer segment = segments[row / rowsPerSegment];
+		segment.put((int) ((row % rowsPerSegment) * rowFloats), in, 0, (int) rowFloats);
+	}
+
+	/**
+	 * Not available: the pixels are not in a float[].
+	 */
+	public BufferedImage asBufferedImage() {
+		throw new UnsupportedOperationException("A mapped image has no BufferedImage view");
+	}
+
+	/**
+	 * Drop the mapping and delete the scratch file if this image created it.  The
+	 * image is empty afterwards.
+	 */
+	public void close() {
+		unmap();
+		width = 0;
+		height = 0;
+		segments = new FloatBuffer[0];
+		if (temporary) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			file = null;
+			temporary = false;
+		}
+	}
+
+	/**
+	 * Close the channel.  The mappings stay valid until they are garbage collected,
+	 * which is the only way to unmap a file in Java.
+	 */
+	private void unmap() {
+		segments = new FloatBuffer[0];
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			channel = null;
+		}
+	}
+}
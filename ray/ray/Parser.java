@@ -1,21 +1,24 @@
 package ray;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import ray.math.Color;
 import ray.math.Tuple3;
@@ -98,23 +101,39 @@ import ray.math.Tuple3;
  * methods for each child type and they must take exactly one parameter
  * of the type of the child node.
  *
+ * The file is read as a stream with StAX, so no document tree is built, and
+ * each element is turned into its object as soon as it ends.  The setXXX and
+ * addXXX methods, the zero argument constructor and the classes named by type
+ * attributes are looked up once per class and kept as MethodHandles (see
+ * Binding), so the cost per element does not depend on how many methods its
+ * parent class has.
+ *
  * @author arbree Aug 18, 2005
  * Parser.java
  * Copyright 2005 Program of Computer Graphics, Cornell University
  */
 public class Parser {
 
-	/** Java document builder used to parse XML * */
-	private DocumentBuilder db;
+	/** StAX factory used to read the XML * */
+	private XMLInputFactory factory;
 
-	/** Map of references to their names **/
-	public static HashMap<String, Object> references = new HashMap<String, Object>();
+	/**
+	 * Map of references to their names, for the document being parsed.  Each
+	 * Parser has its own, so scenes can be parsed on several threads at once and
+	 * names do not carry over from one scene to the next.
+	 */
+	private final HashMap<String, Object> references = new HashMap<String, Object>();
 
 	/** Creates a new Parser. */
 	public Parser() {
 
 		try {
-			db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			// Scenes come over the network to RenderServer and TileServer, so a
+			// document must not be able to read files or URLs through entities
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
 		} catch (Exception e) {
 
 			throw new Error("Error instantiating the parser.");
@@ -200,13 +219,7 @@ public class Parser {
 				throw new Error("Tuple3 is not of length 3 ("
 						+ tempArray.size() + ")");
 			}
-			Tuple3 result;
-			try {
-				result = (Tuple3) c.newInstance();
-			} catch (Exception e) {
-				throw new Error("Error instantiating object of class: "
-						+ c.getName());
-			}
+			Tuple3 result = (Tuple3) Binding.of(c).newInstance();
 			result.x = ((Double) tempArray.get(0)).doubleValue();
 			result.y = ((Double) tempArray.get(1)).doubleValue();
 			result.z = ((Double) tempArray.get(2)).doubleValue();
@@ -219,13 +232,7 @@ public class Parser {
 				throw new Error("Color is not of length 3 (" + tempArray.size()
 						+ ")");
 			}
-			Color result;
-			try {
-				result = (Color) c.newInstance();
-			} catch (Exception e) {
-				throw new Error("Error instantiating object of class: "
-						+ c.getName());
-			}
+			Color result = (Color) Binding.of(c).newInstance();
 			result.r = ((Double) tempArray.get(0)).doubleValue();
 			result.g = ((Double) tempArray.get(1)).doubleValue();
 			result.b = ((Double) tempArray.get(2)).doubleValue();
@@ -239,6 +246,11 @@ public class Parser {
 						"Image declaration specifies only width and height");
 			}
 			Image result;
+			if (c == Image.class) {
+				// Let very large images go out of core
+				return Image.create(((Integer) tempArray.get(0)).intValue(),
+						((Integer) tempArray.get(1)).intValue());
+			}
 			try {
 				Constructor imageConstructor = c.getConstructor(new Class[] {
 						Integer.TYPE, Integer.TYPE });
@@ -258,91 +270,37 @@ public class Parser {
 	}
 
 	/**
-	 * Return the Method object representing the string methodName in Class c.
-	 * Return null if no such method if found.
-	 *
-	 * @param c the class to find a method in
-	 * @param methodName the name of the method to find
-	 * @return the Method object if a method is found, null otherwise
+	 * @return true if nodes of class c are parsed from their text rather than
+	 *         from child nodes
 	 */
-	@SuppressWarnings("rawtypes")
-	private Method findMethod(Class c, String methodName) {
-
-		// Get the method list
-		Method[] methods = c.getMethods();
-		for (int j = 0; j < methods.length; j++) {
-			Method m = methods[j];
-			if (methodName.equalsIgnoreCase(m.getName())) {
-				return m;
-			}
-		}
-		return null;
+	private static boolean isText(Class<?> c) {
 
+		return (c.isArray() && c.getComponentType().isPrimitive())
+				|| c == String.class || c == Integer.class || c == Double.class
+				|| c == Color.class || Tuple3.class.isAssignableFrom(c)
+				|| Image.class.isAssignableFrom(c);
 	}
 
 	/**
-	 * Parse an object node. The node is assumed to be of Class c and is
-	 * represented by Node n.
+	 * Parse an object node. The node is assumed to be of Class c and the reader
+	 * is positioned on its start tag.  On return the reader is positioned on its
+	 * end tag.
 	 *
-	 * @param c Class type to read from node n
-	 * @param n the node to parse into an instance of c
+	 * @param c Class type to read from the node
+	 * @param in the reader, on the start of the node to parse into an instance of c
 	 * @return the object read
 	 */
-	@SuppressWarnings("rawtypes")
-	private Object parseObject(Class<?> c, Node n) {
+	private Object parseObject(Class<?> c, XMLStreamReader in) throws XMLStreamException {
 
 		Object resultingObject = null;
-		NamedNodeMap attributes = n.getAttributes();
-		Node typeAttribute = attributes.getNamedItem("type");
-		Node nameAttribute = attributes.getNamedItem("name");
-		Node refAttribute = attributes.getNamedItem("ref");
-
-		if (typeAttribute != null) {
-			String className = typeAttribute.getNodeValue();
-			try {
-				Class<?> possibleClass;
-				// Try to look up the class; if it fails, try looking in the package
-				// of the given base type
-				try {
-					possibleClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					possibleClass = Class.forName(c.getPackage().getName()
-							+ "." + className);
-				}
-				if (c.isAssignableFrom(possibleClass)) {
-					c = possibleClass; // Set the current active class to user specified type
-				} else {
-					throw new Error("Type " + className
-							+ " does not extend or implement " + c.getName());
-				}
-			} catch (ClassNotFoundException e) {
-				throw new Error("Class could not be found: " + className);
-			}
-		}
+		String typeAttribute = in.getAttributeValue(null, "type");
+		String nameAttribute = in.getAttributeValue(null, "name");
+		String refAttribute = in.getAttributeValue(null, "ref");
 
 		// If the node specifies a type, check that it is assignable to the current
 		// output type for this node
 		if (typeAttribute != null) {
-			String className = typeAttribute.getNodeValue();
-			try {
-				Class<?> possibleClass;
-				// Try to look up the class; if it fails, try looking in the package
-				// of the given base type
-				try {
-					possibleClass = Class.forName(className);
-				} catch (ClassNotFoundException e) {
-					possibleClass = Class.forName(c.getPackage().getName()
-							+ "." + className);
-				}
-				if (c.isAssignableFrom(possibleClass)) {
-					c = possibleClass; // Set the current active class to user specified type
-				} else {
-					throw new Error("Type " + className
-							+ " does not extend or implement " + c.getName());
-				}
-			} catch (ClassNotFoundException e) {
-				throw new Error("Class could not be found: " + className);
-			}
+			c = Binding.of(c).subclass(typeAttribute);
 		}
 
 		// Check that our current type is valid
@@ -350,29 +308,24 @@ public class Parser {
 			throw new Error("Cannot parse arrays of non-primitive types");
 		}
 
-		// Get the sub elements of this node
-		NodeList children = n.getChildNodes();
-
 		//If the object is a reference, just return the value referenced
 		if (refAttribute != null) {
-			String name = refAttribute.getNodeValue();
-			resultingObject = references.get(name);
+			resultingObject = references.get(refAttribute);
 			if (resultingObject == null) {
-				throw new Error("Unresolved reference: " + name);
+				throw new Error("Unresolved reference: " + refAttribute);
 			}
+			skipElement(in);
 		}
 
 		// Check for certain special classes of the current node
-		else if ((c.isArray() && c.getComponentType().isPrimitive())
-				|| c == String.class || c == Integer.class || c == Double.class
-				|| c == Color.class || Tuple3.class.isAssignableFrom(c)
-				|| Image.class.isAssignableFrom(c)) {
-
-			// Interpret the text values of all children nodes as objects
-			for (int i = 0; i < children.getLength(); i++) {
-				Node child = children.item(i);
-				if (child.getNodeType() == Node.TEXT_NODE) {
-					resultingObject = parseObject(c, child.getNodeValue());
+		else if (isText(c)) {
+
+			// Interpret the text of the node as an object
+			while (in.next() != XMLStreamConstants.END_ELEMENT) {
+				int event = in.getEventType();
+				if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE
+						|| event == XMLStreamConstants.CDATA) {
+					resultingObject = parseObject(c, in.getText());
 				} else {
 					throw new Error(
 							"Found a non-text node while trying to parse a "
@@ -385,77 +338,28 @@ public class Parser {
 		else {
 
 			// Create one!
-			try {
-				resultingObject = c.newInstance();
-			} catch (Exception e) {
-				throw new Error("Error instantiating object of class: "
-						+ c.getName());
-			}
-
-			// For each child
-			for (int i = 0; i < children.getLength(); i++) {
-				Node child = children.item(i);
+			Binding binding = Binding.of(c);
+			resultingObject = binding.newInstance();
 
-				// Skip non-element nodes
-				if (child.getNodeType() != Node.ELEMENT_NODE) {
+			// For each child element; text and comments are skipped
+			while (in.next() != XMLStreamConstants.END_ELEMENT) {
+				if (in.getEventType() != XMLStreamConstants.START_ELEMENT) {
 					continue;
 				}
 
-				//Find the method to use for adding
-				Method foundMethod = null;
-				String childName = child.getNodeName();
-
-				// Check setXXX
-				foundMethod = findMethod(c, "set" + childName);
-
-				// If can't find setXXX method, look for addXXX method instead
-				if (foundMethod == null)
-					foundMethod = findMethod(c, "add" + childName);
-
-				// Its an error if no method was found
-				if (foundMethod == null) {
-					throw new Error("Could not find a method to use to add "
-							+ childName + " to the class type " + c.getName()
-							+ ".");
-				}
-
-				// Check that the method has the right number of parameters
-				Class[] parameterTypes = foundMethod.getParameterTypes();
-				if (parameterTypes.length != 1) {
-					throw new Error("Method " + foundMethod.getName()
-							+ " must take exactly one parameter.");
-				}
-
-				// If the type is primitive, switch to corresponding Object type
-				// to parse. Method invocation will automatically take care of
-				// converting Object types back into primitives.
-				Class parameterType = parameterTypes[0];
-				if (parameterType.isPrimitive()) {
-					if (parameterType == Integer.TYPE) {
-						parameterType = Integer.class;
-					} else if (parameterType == Float.TYPE) {
-						parameterType = Float.class;
-					} else if (parameterType == Double.TYPE) {
-						parameterType = Double.class;
-					} else {
-						throw new Error("Cannot parse primitives of type "
-								+ parameterType);
-					}
-				}
-
-				// Recursively parse value of child element
-				Object childValue = parseObject(parameterType, child);
+				//Find the method to use for adding, and parse the child as its parameter
+				Binding.Property property = binding.property(in.getLocalName());
+				Object childValue = parseObject(property.type, in);
 
 				// Call the setter method with the parsed value;
 				try {
 
 					//Invoke the setter method
-					foundMethod.invoke(resultingObject,
-							new Object[] { childValue });
+					property.setter.invokeExact(resultingObject, childValue);
 
-				} catch (Exception e) {
+				} catch (Throwable e) {
 					System.err.println("Error invoking the method "
-							+ foundMethod.getName() + ".");
+							+ property.name + ".");
 					e.printStackTrace();
 				}
 			}
@@ -463,14 +367,29 @@ public class Parser {
 
 		//Place the object in the reference list
 		if (nameAttribute != null) {
-			String name = nameAttribute.getNodeValue();
-			references.put(name, resultingObject);
+			references.put(nameAttribute, resultingObject);
 		}
 
 		return resultingObject;
 
 	}
 
+	/**
+	 * Skip the node whose start tag the reader is on, with everything inside it.
+	 */
+	private static void skipElement(XMLStreamReader in) throws XMLStreamException {
+
+		int depth = 1;
+		while (depth > 0) {
+			int event = in.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
 	/**
 	 * Parses a given file to generate an object of the given class.
 	 *
@@ -480,15 +399,11 @@ public class Parser {
 	 */
 	public Object parse(String filename, Class<?> c) {
 
-		File file = new File(filename);
-
 		// Parse the XML
 		Object result = null;
-		try {
+		try (InputStream stream = new BufferedInputStream(new FileInputStream(filename))) {
 
-			Document doc = db.parse(file);
-			Element root = doc.getDocumentElement();
-			result = parseObject(c, root);
+			result = parse(stream, c);
 
 		} catch (Exception e) {
 			System.out.println("Exception occurred while parsing: " + filename);
@@ -498,4 +413,191 @@ public class Parser {
 		return result;
 	}
 
+	/**
+	 * Parses XML read from a stream to generate an object of the given class.
+	 * The stream is not closed.
+	 *
+	 * @param stream the XML to parse
+	 * @param c the class of the object to parse
+	 * @return a new object of the given class
+	 * @throws XMLStreamException if the stream is not well formed XML
+	 */
+	public Object parse(InputStream stream, Class<?> c) throws XMLStreamException {
+
+		references.clear();
+		XMLStreamReader in = factory.createXMLStreamReader(stream);
+		try {
+			in.nextTag();
+			return parseObject(c, in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * What the parser needs to know about one class, looked up on first use and
+	 * kept for the life of the class: its zero argument constructor, the classes
+	 * its nodes' type attributes named, and a MethodHandle for every child node
+	 * name seen so far.  Children are bound as before: the first method of
+	 * getMethods() named set<name>, ignoring case, or else the first named
+	 * add<name>.
+	 */
+	private static final class Binding {
+
+		private static final ClassValue<Binding> BINDINGS = new ClassValue<Binding>() {
+			protected Binding computeValue(Class<?> c) {
+				return new Binding(c);
+			}
+		};
+
+		private static final MethodType SETTER_TYPE =
+				MethodType.methodType(void.class, Object.class, Object.class);
+		private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+		/** A bound child node: its setter (object, value) and the type to parse it as. */
+		static final class Property {
+			final String name;
+			final MethodHandle setter;
+			final Class<?> type;
+
+			Property(String name, MethodHandle setter, Class<?> type) {
+				this.name = name;
+				this.setter = setter;
+				this.type = type;
+			}
+		}
+
+		private final Class<?> c;
+
+		/** One argument set and add methods by lower case name, first of each name only. */
+		private final HashMap<String, Method> methods = new HashMap<String, Method>();
+
+		private final ConcurrentHashMap<String, Property> properties = new ConcurrentHashMap<String, Property>();
+		private final ConcurrentHashMap<String, Class<?>> subclasses = new ConcurrentHashMap<String, Class<?>>();
+		private volatile MethodHandle constructor;
+
+		private Binding(Class<?> c) {
+			this.c = c;
+			for (Method m : c.getMethods()) {
+				String name = m.getName().toLowerCase(Locale.ROOT);
+				if (name.startsWith("set") || name.startsWith("add")) {
+					methods.putIfAbsent(name, m);
+				}
+			}
+		}
+
+		static Binding of(Class<?> c) {
+			return BINDINGS.get(c);
+		}
+
+		/**
+		 * @return a new instance from the zero argument constructor
+		 */
+		Object newInstance() {
+			MethodHandle handle = constructor;
+			try {
+				if (handle == null) {
+					handle = MethodHandles.publicLookup().findConstructor(c, MethodType.methodType(void.class))
+							.asType(CONSTRUCTOR_TYPE);
+					constructor = handle;
+				}
+				return handle.invokeExact();
+			} catch (Throwable e) {
+				throw new Error("Error instantiating object of class: "
+						+ c.getName());
+			}
+		}
+
+		/**
+		 * Resolve the class named by a type attribute on a node of this class.  The
+		 * name is either fully qualified or relative to the package of this class.
+		 * Classes are not initialized before they are checked, so a scene cannot
+		 * run the static initializer of whatever class it names.
+		 */
+		Class<?> subclass(String className) {
+			Class<?> possibleClass = subclasses.get(className);
+			if (possibleClass != null) {
+				return possibleClass;
+			}
+			try {
+				// Try to look up the class; if it fails, try looking in the package
+				// of the given base type
+				try {
+					possibleClass = Class.forName(className, false, Parser.class.getClassLoader());
+				} catch (ClassNotFoundException e) {
+					possibleClass = Class.forName(c.getPackage().getName()
+							+ "." + className, false, Parser.class.getClassLoader());
+				}
+			} catch (ClassNotFoundException e) {
+				throw new Error("Class could not be found: " + className);
+			}
+			if (!c.isAssignableFrom(possibleClass)) {
+				throw new Error("Type " + className
+						+ " does not extend or implement " + c.getName());
+			}
+			subclasses.put(className, possibleClass);
+			return possibleClass;
+		}
+
+		/**
+		 * @return the binding of child nodes named childName
+		 */
+		Property property(String childName) {
+			Property property = properties.get(childName);
+			if (property == null) {
+				property = bind(childName);
+				properties.put(childName, property);
+			}
+			return property;
+		}
+
+		private Property bind(String childName) {
+
+			// Check setXXX; if there is none, look for addXXX instead
+			String lowerName = childName.toLowerCase(Locale.ROOT);
+			Method foundMethod = methods.get("set" + lowerName);
+			if (foundMethod == null) {
+				foundMethod = methods.get("add" + lowerName);
+			}
+
+			// Its an error if no method was found
+			if (foundMethod == null) {
+				throw new Error("Could not find a method to use to add "
+						+ childName + " to the class type " + c.getName()
+						+ ".");
+			}
+
+			// Check that the method has the right number of parameters
+			Class<?>[] parameterTypes = foundMethod.getParameterTypes();
+			if (parameterTypes.length != 1) {
+				throw new Error("Method " + foundMethod.getName()
+						+ " must take exactly one parameter.");
+			}
+
+			// If the type is primitive, switch to corresponding Object type
+			// to parse. The handle converts it back into the primitive.
+			Class<?> parameterType = parameterTypes[0];
+			if (parameterType.isPrimitive()) {
+				if (parameterType == Integer.TYPE) {
+					parameterType = Integer.class;
+				} else if (parameterType == Float.TYPE) {
+					parameterType = Float.class;
+				} else if (parameterType == Double.TYPE) {
+					parameterType = Double.class;
+				} else {
+					throw new Error("Cannot parse primitives of type "
+							+ parameterType);
+				}
+			}
+
+			try {
+				MethodHandle setter = MethodHandles.publicLookup().unreflect(foundMethod).asType(SETTER_TYPE);
+				return new Property(foundMethod.getName(), setter, parameterType);
+			} catch (IllegalAccessException e) {
+				throw new Error("Cannot access method " + foundMethod.getName()
+						+ " of class " + c.getName());
+			}
+		}
+	}
+
 }
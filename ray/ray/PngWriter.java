@@ -0,0 +1,359 @@
+package ray;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an Image as an 8 bit RGB PNG, using every thread of the render pool
+ * unless told to encode on the calling thread.  The rows are cut into bands;
+ * each band is quantized, filtered and deflated on its own, and the compressed
+ * bands are joined into one zlib stream the way pigz does it: every band but
+ * the last ends with a sync flush, so the raw deflate streams can simply be
+ * concatenated, and their Adler-32 checksums are combined arithmetically.  Each
+ * band is primed with the last 32K of the previous band's filtered rows, so
+ * little compression is lost.
+ *
+ * Pixels are quantized exactly as Color.toInt does it, so the file decodes to
+ * the same pixels as one written through ImageIO by Image.writeImageIO.
+ */
+public class PngWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+
+	/** Filtered bytes per band, give or take a row. */
+	private static final int BAND_BYTES = 1 << 20;
+
+	/** Size of the deflate window, and so of the dictionary each band is primed with. */
+	private static final int WINDOW = 32 * 1024;
+
+	private static final int ADLER_BASE = 65521;
+
+	/**
+	 * Deflate level used by Image.write.  Rendered images compress well with the
+	 * PNG filters alone, and level 1 already beats the files ImageIO writes.
+	 */
+	public static final int DEFAULT_LEVEL = 1;
+
+	private final int width;
+	private final int height;
+	private final Image image;
+	private final int level;
+	private final boolean parallel;
+
+	/**
+	 * @param image the image to write
+	 */
+	public PngWriter(Image image) {
+		this(image, DEFAULT_LEVEL);
+	}
+
+	/**
+	 * @param image the image to write
+	 * @param level the deflate level, 0 to 9
+	 */
+	public PngWriter(Image image, int level) {
+		this(image, level, true);
+	}
+
+	/**
+	 * @param image the image to write
+	 * @param level the deflate level, 0 to 9
+	 * @param parallel whether to encode on the render pool; false encodes the
+	 *        bands one after another on the calling thread, for writes made while
+	 *        a render is still holding the pool
+	 */
+	public PngWriter(Image image, int level, boolean parallel) {
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.image = image;
+		this.level = level;
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Encode the image and write it to fileName, replacing any existing file.
+	 */
+	public void write(String fileName) throws IOException {
+		Path path = Paths.get(fileName);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			write(channel);
+		}
+	}
+
+	/**
+	 * Encode the image and write it to channel, which is left open.  Bands are
+	 * written in order as soon as they are done, with at most two per pool thread
+	 * in flight, so the heap used does not grow with the image.  A serial writer
+	 * encodes each band just before writing it.
+	 */
+	public void write(WritableByteChannel channel) throws IOException {
+		int stride = 1 + 3 * width;
+		int rowsPerBand = Math.max(1, BAND_BYTES / stride);
+		int bands = (height + rowsPerBand - 1) / rowsPerBand;
+
+		ByteBuffer header = ByteBuffer.allocate(13);
+		header.putInt(width).putInt(height);
+		header.put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+		byte[] zlibHeader = { 0x78, (byte) 0x9c };
+
+		ForkJoinPool pool = parallel ? RayTracer.getPool() : null;
+		int window = parallel ? 2 * pool.getParallelism() : 0;
+		ArrayDeque<Future<Band>> pending = new ArrayDeque<Future<Band>>();
+		try {
+			writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+			writeChunk(channel, "IHDR", header.array(), 0, 13);
+			writeChunk(channel, "IDAT", zlibHeader, 0, zlibHeader.length);
+
+			// The zlib stream ends with the Adler-32 of all filtered bytes
+			long adler = 1;
+			int submitted = 0;
+			for (int i = 0; i < bands; i++) {
+				Band band;
+				if (parallel) {
+					while (submitted < bands && submitted < i + window) {
+						final int first = submitted * rowsPerBand;
+						final int last = Math.min(height, first + rowsPerBand);
+						final boolean finish = submitted == bands - 1;
+						pending.add(pool.submit(new Callable<Band>() {
+							public Band call() {
+								return encode(first, last, finish);
+							}
+						}));
+						submitted++;
+					}
+					band = take(pending);
+				} else {
+					int first = i * rowsPerBand;
+					band = encode(first, Math.min(height, first + rowsPerBand), i == bands - 1);
+				}
+				adler = combineAdler(adler, band.adler, band.length);
+				writeChunk(channel, "IDAT", band.compressed, 0, band.compressedLength);
+			}
+			byte[] adlerBytes = new byte[4];
+			putInt(adlerBytes, 0, (int) adler);
+			writeChunk(channel, "IDAT", adlerBytes, 0, 4);
+			writeChunk(channel, "IEND", new byte[0], 0, 0);
+		} finally {
+			for (Future<Band> future : pending) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest band in flight, once it is done
+	 */
+	private static Band take(ArrayDeque<Future<Band>> pending) throws IOException {
+		try {
+			return pending.remove().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/** One band of rows, filtered and deflated. */
+	private static class Band {
+		byte[] compressed;
+		int compressedLength;
+		long adler;
+		long length;
+	}
+
+	/**
+	 * Filter and deflate rows [first, last).
+	 */
+	private Band encode(int first, int last, boolean finish) {
+		byte[] filtered = filter(first, last);
+		Band band = new Band();
+		band.length = filtered.length;
+		Adler32 adler = new Adler32();
+		adler.update(filtered);
+		band.adler = adler.getValue();
+
+		Deflater deflater = new Deflater(level, true);
+		if (first > 0) {
+			// Prime the window with the end of the previous band, as one stream would have it
+			int stride = 1 + 3 * width;
+			byte[] before = filter(Math.max(0, first - (WINDOW + stride - 1) / stride), first);
+			int length = Math.min(WINDOW, before.length);
+			deflater.setDictionary(before, before.length - length, length);
+		}
+		deflater.setInput(filtered);
+		if (finish) {
+			deflater.finish();
+		}
+		byte[] out = new byte[filtered.length / 2 + 1024];
+		int length = 0;
+		while (true) {
+			if (length == out.length) {
+				byte[] grown = new byte[2 * out.length];
+				System.arraycopy(out, 0, grown, 0, length);
+				out = grown;
+			}
+			length += deflater.deflate(out, length, out.length - length,
+					finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+			// A sync flush is complete once it leaves room in the buffer
+			if (finish ? deflater.finished() : length < out.length) {
+				break;
+			}
+		}
+		deflater.end();
+		band.compressed = out;
+		band.compressedLength = length;
+		return band;
+	}
+
+	/**
+	 * Quantize and filter rows [first, last), each preceded by its filter type.
+	 * The row above the range is quantized too, since the Up, Average and Paeth
+	 * filters refer to it.
+	 */
+	private byte[] filter(int first, int last) {
+		int rowBytes = 3 * width;
+		int stride = 1 + rowBytes;
+		byte[] previous = new byte[rowBytes];
+		byte[] current = new byte[rowBytes];
+		byte[][] candidates = new byte[5][rowBytes];
+		float[] row = new float[rowBytes];
+		if (first > 0) {
+			quantize(first - 1, previous, row);
+		}
+		byte[] filtered = new byte[(last - first) * stride];
+		for (int y = first; y < last; y++) {
+			quantize(y, current, row);
+			int best = filterRow(current, previous, candidates);
+			int o = (y - first) * stride;
+			filtered[o] = (byte) best;
+			System.arraycopy(candidates[best], 0, filtered, o + 1, rowBytes);
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return filtered;
+	}
+
+	/**
+	 * Quantize PNG row y into out, exactly as Image.writeImageIO does through
+	 * Color.gammaCorrect(1.0) and Color.toInt.  row is scratch space.
+	 */
+	private void quantize(int y, byte[] out, float[] row) {
+		image.getRow(row, y);
+		for (int i = 0; i < out.length; i++) {
+			double v = row[i];
+			out[i] = (byte) (int) (255.0 * Math.max(Math.min(v, 1.0), 0.0) + 0.5);
+		}
+	}
+
+	/**
+	 * Apply the five PNG filters to row, with prior the row above (all zero for
+	 * the first row), and pick the one whose output has the smallest sum of
+	 * absolute values, the usual heuristic.
+	 *
+	 * @return the filter type; its output is in candidates[type]
+	 */
+	private static int filterRow(byte[] row, byte[] prior, byte[][] candidates) {
+		int n = row.length;
+		byte[] none = candidates[0], sub = candidates[1], up = candidates[2];
+		byte[] average = candidates[3], paeth = candidates[4];
+		long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+		for (int i = 0; i < n; i++) {
+			int x = row[i] & 0xff;
+			int a = i >= 3 ? row[i - 3] & 0xff : 0;
+			int b = prior[i] & 0xff;
+			int c = i >= 3 ? prior[i - 3] & 0xff : 0;
+			none[i] = (byte) x;
+			sub[i] = (byte) (x - a);
+			up[i] = (byte) (x - b);
+			average[i] = (byte) (x - ((a + b) >>> 1));
+			paeth[i] = (byte) (x - paeth(a, b, c));
+			sumNone += Math.abs(none[i]);
+			sumSub += Math.abs(sub[i]);
+			sumUp += Math.abs(up[i]);
+			sumAverage += Math.abs(average[i]);
+			sumPaeth += Math.abs(paeth[i]);
+		}
+		long[] sums = { sumNone, sumSub, sumUp, sumAverage, sumPaeth };
+		int best = 0;
+		for (int type = 1; type < 5; type++) {
+			if (sums[type] < sums[best]) {
+				best = type;
+			}
+		}
+		return best;
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * @return the Adler-32 of two byte strings joined, given the checksum of each
+	 *         and the length of the second (zlib's adler32_combine)
+	 */
+	static long combineAdler(long adler1, long adler2, long length2) {
+		long rem = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (rem * sum1) % ADLER_BASE;
+		sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+		sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - rem;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if (sum2 >= 2L * ADLER_BASE) sum2 -= 2L * ADLER_BASE;
+		if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+		return sum1 | (sum2 << 16);
+	}
+
+	private static void writeChunk(WritableByteChannel channel, String type, byte[] bytes, int offset, int length)
+			throws IOException {
+		byte[] head = new byte[8];
+		putInt(head, 0, length);
+		for (int i = 0; i < 4; i++) {
+			head[4 + i] = (byte) type.charAt(i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(head, 4, 4);
+		crc.update(bytes, offset, length);
+		byte[] tail = new byte[4];
+		putInt(tail, 0, (int) crc.getValue());
+		writeFully(channel, ByteBuffer.wrap(head));
+		writeFully(channel, ByteBuffer.wrap(bytes, offset, length));
+		writeFully(channel, ByteBuffer.wrap(tail));
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,188 @@
+package ray;
+
+/**
+ * A group of up to MAX_SIZE rays traced together, such as the camera rays of a
+ * 2x2 or 4x4 block of pixels.  Each ray keeps its own record, so tracing a
+ * packet gives exactly the results of tracing its rays one by one; the packet
+ * only adds a frustum test that rejects a box for all of its rays at once.
+ *
+ * The frustum test needs a common origin and directions whose components all
+ * have the same signs.  setup() checks this and clears coherent otherwise, in
+ * which case the packet should be split or its rays traced singly.
+ */
+public class RayPacket {
+
+  /** The largest packet, 4x4 rays; active rays are tracked in an int bit mask. */
+  public static final int MAX_SIZE = 16;
+
+  /**
+   * Relative padding of surface bounds in primitiveMisses.  Unlike a node box,
+   * which every ray tests with hitsBox itself, a surface is only skipped if the
+   * frustum misses its box, and its own intersection test may round the hit a
+   * hair outside that box.
+   */
+  private static final double PRIMITIVE_PADDING = 1e-6;
+
+  /** Number of rays in use. */
+  public int size;
+
+  /** The rays, their records, and whether each hit anything. */
+  public final Ray[] rays = new Ray[MAX_SIZE];
+  public final IntersectionRecord[] records = new IntersectionRecord[MAX_SIZE];
+  public final boolean[] hit = new boolean[MAX_SIZE];
+
+  /** Intersection scratch: the closest t so far for each ray. */
+  public final double[] mint = new double[MAX_SIZE];
+
+  /** Reciprocal directions of each ray, as computed for single ray traversal. */
+  public final double[] invx = new double[MAX_SIZE];
+  public final double[] invy = new double[MAX_SIZE];
+  public final double[] invz = new double[MAX_SIZE];
+
+  /** True if all rays share an origin and direction signs. */
+  public boolean coherent;
+
+  /** Direction sign bits shared by all rays: 1 for negative x, 2 for y, 4 for z. */
+  public int negative;
+
+  /** The smallest and largest reciprocal direction along x, y and z. */
+  private final double[] invMin = new double[3];
+  private final double[] invMax = new double[3];
+
+  /** The smallest start and largest end of all rays. */
+  private double minStart;
+  private double maxEnd;
+
+  public RayPacket() {
+    for (int i = 0; i < MAX_SIZE; i++) {
+      rays[i] = new Ray();
+      records[i] = new IntersectionRecord();
+    }
+  }
+
+  /**
+   * Prepare the packet for tracing once its first size rays are set.
+   */
+  public void setup() {
+    Ray first = rays[0];
+    coherent = true;
+    minStart = Double.POSITIVE_INFINITY;
+    maxEnd = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; i++) {
+      Ray ray = rays[i];
+      hit[i] = false;
+      invx[i] = 1 / ray.direction.x;
+      invy[i] = 1 / ray.direction.y;
+      invz[i] = 1 / ray.direction.z;
+      int sign = (invx[i] < 0 ? 1 : 0) | (invy[i] < 0 ? 2 : 0) | (invz[i] < 0 ? 4 : 0);
+      if (i == 0) {
+        negative = sign;
+      } else if (sign != negative || ray.origin.x != first.origin.x
+          || ray.origin.y != first.origin.y || ray.origin.z != first.origin.z) {
+        coherent = false;
+      }
+      minStart = Math.min(minStart, ray.start);
+      maxEnd = Math.max(maxEnd, ray.end);
+    }
+    invMin[0] = invMax[0] = invx[0];
+    invMin[1] = invMax[1] = invy[0];
+    invMin[2] = invMax[2] = invz[0];
+    for (int i = 1; i < size; i++) {
+      invMin[0] = Math.min(invMin[0], invx[i]);
+      invMax[0] = Math.max(invMax[0], invx[i]);
+      invMin[1] = Math.min(invMin[1], invy[i]);
+      invMax[1] = Math.max(invMax[1], invy[i]);
+      invMin[2] = Math.min(invMin[2], invz[i]);
+      invMax[2] = Math.max(invMax[2], invz[i]);
+    }
+  }
+
+  /**
+   * Recompute the largest end of the rays after some of them were shortened.
+   */
+  public void updateEnd() {
+    maxEnd = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; i++) {
+      maxEnd = Math.max(maxEnd, rays[i].end);
+    }
+  }
+
+  /**
+   * Tests the box [min, max] (six doubles starting at offset) against the whole
+   * packet.  The slab distances of every ray are products of the same box offset
+   * with a reciprocal inside [invMin, invMax], and rounding is monotonic, so the
+   * bounds computed here contain each ray's own values.  Any NaN makes the test
+   * give up, as hitsBox does.
+   *
+   * @return true only if no ray of a coherent packet can hit the box
+   */
+  public boolean missesBox(double[] box, int offset) {
+    return coherent && misses(box[offset + 0], box[offset + 1], box[offset + 2],
+        box[offset + 3], box[offset + 4], box[offset + 5], 0);
+  }
+
+  /**
+   * As missesBox, for a box stored as floats.
+   */
+  public boolean missesBox(float[] box, int offset) {
+    return coherent && misses(box[offset + 0], box[offset + 1], box[offset + 2],
+        box[offset + 3], box[offset + 4], box[offset + 5], 0);
+  }
+
+  /**
+   * As missesBox, for the bounding box of a surface; the box is padded slightly
+   * since the surface computes its hits independently of the box.
+   */
+  public boolean primitiveMisses(double[] box, int offset) {
+    if (!coherent) {
+      return false;
+    }
+    double size = 0;
+    for (int k = 0; k < 6; k++) {
+      size = Math.max(size, Math.abs(box[offset + k]));
+    }
+    return misses(box[offset + 0], box[offset + 1], box[offset + 2],
+        box[offset + 3], box[offset + 4], box[offset + 5], size * PRIMITIVE_PADDING);
+  }
+
+  /**
+   * As primitiveMisses, for a box stored as floats.
+   */
+  public boolean primitiveMisses(float[] box, int offset) {
+    if (!coherent) {
+      return false;
+    }
+    double size = 0;
+    for (int k = 0; k < 6; k++) {
+      size = Math.max(size, Math.abs(box[offset + k]));
+    }
+    return misses(box[offset + 0], box[offset + 1], box[offset + 2],
+        box[offset + 3], box[offset + 4], box[offset + 5], size * PRIMITIVE_PADDING);
+  }
+
+  private boolean misses(double minx, double miny, double minz, double maxx, double maxy, double maxz, double pad) {
+    Ray ray = rays[0];
+    double x1 = minx - pad - ray.origin.x, x2 = maxx + pad - ray.origin.x;
+    double y1 = miny - pad - ray.origin.y, y2 = maxy + pad - ray.origin.y;
+    double z1 = minz - pad - ray.origin.z, z2 = maxz + pad - ray.origin.z;
+
+    // Lower and upper bounds of each ray's near and far slab distances
+    double nearLo = Math.max(Math.max(
+        Math.min(lower(x1, 0), lower(x2, 0)),
+        Math.min(lower(y1, 1), lower(y2, 1))),
+        Math.min(lower(z1, 2), lower(z2, 2)));
+    double farHi = Math.min(Math.min(
+        Math.max(upper(x1, 0), upper(x2, 0)),
+        Math.max(upper(y1, 1), upper(y2, 1))),
+        Math.max(upper(z1, 2), upper(z2, 2)));
+    return nearLo > farHi || nearLo > maxEnd || farHi < minStart;
+  }
+
+  private double lower(double offset, int axis) {
+    return Math.min(offset * invMin[axis], offset * invMax[axis]);
+  }
+
+  private double upper(double offset, int axis) {
+    return Math.max(offset * invMin[axis], offset * invMax[axis]);
+  }
+}
@@ -1,12 +1,29 @@
 package ray;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import ray.light.Light;
-import ray.math.Color;
+import ray.accel.AccelStruct;
+import ray.surface.SphereBatch;
+import ray.surface.Surface;
 
 /**
  * A simple ray tracer.
@@ -14,14 +31,114 @@ import ray.math.Color;
  * @author ags, modified by DS 2/2012
  */
 public class RayTracer {
-	public static String testFolderPath;
+	/**
+	 * Folder of the last file or directory given to getFileLists.  Only the main
+	 * thread sets it, and loading a scene does not depend on it, since scenes are
+	 * read by their full path.
+	 */
+	public static volatile String testFolderPath;
+	
+	/** Number of render threads, set with -threads. Defaults to one per core. */
+	public static int threads = Runtime.getRuntime().availableProcessors();
+	
+	/** Width and height in pixels of the tiles handed to render threads, set with -tile. */
+	public static int tileSize = 16;
+	
+	/** Width and height of the primary ray packets, set with -packet (1, 2 or 4). 1 traces rays singly. */
+	public static int packetSize = 1;
+	
+	/**
+	 * Most primary rays per pixel for adaptive antialiasing, set with -aa N; 1 (the
+	 * default) traces one ray through each pixel center.  See
+	 * RayTracerWorker.renderTileAdaptive.
+	 */
+	public static int maxSamples = 1;
+	
+	/** Largest difference between a pixel's corners, per channel of the final color, left unrefined; set with -aathreshold. */
+	public static double aaThreshold = 0.05;
+	
+	/**
+	 * If set with -progressive, render a coarse pass of one ray per
+	 * progressiveBlock x progressiveBlock block first and then refine it, writing
+	 * snapshots of the partial image along the way.
+	 */
+	public static boolean progressive = false;
+	public static int progressiveBlock = 8;
+	
+	/**
+	 * Progressive snapshots are written every snapshotSeconds seconds, or each time
+	 * another snapshotPercent percent of the pixels are done; set with -snapshot N
+	 * or -snapshot N%.  0 disables that trigger.
+	 */
+	public static double snapshotSeconds = 1;
+	public static double snapshotPercent = 0;
+	
+	/** If set with -stats, print ray and intersection test counts after each render (see RenderEvents). */
+	public static boolean printCounts = false;
+	
+	/**
+	 * If set with -heatmap tests, shadows or nanos, record what each pixel cost
+	 * and write it to <input_file>.cost.png and .cost.pfm (see CostMap).
+	 */
+	public static CostMap.Measure heatmap = null;
+	
+	/**
+	 * If set with -relight, keep the hits and shadows of each render in
+	 * <input_file>.gbuf and shade from them when the scene is rendered again with
+	 * only its lights or shaders changed (see GBuffer).  One-pass renders without
+	 * antialiasing only.
+	 */
+	public static boolean relight = false;
+	
+	/** If set with -allocs, report the bytes allocated by the render loop instead of writing images. */
+	public static boolean measureAllocations = false;
+	
+	/** If set with -binary, write each input scene as a binary scene (see BinaryScene) instead of rendering it. */
+	public static boolean writeBinary = false;
+	
+	/** Whether shaders try the last occluder of each light first, cleared with -nocache. */
+	public static boolean cacheOccluders = true;
+	
+	/**
+	 * Many lights.  With -mergelights D, lights within D of each other are shaded
+	 * as one (see Light.merge).  Lights adding no more than lightCutoff to any
+	 * channel of a hit cast no shadow ray and are left out; set with -lightcutoff,
+	 * or if negative Shader.QUANTUM divided by the number of lights, which keeps
+	 * every image within one 8 bit level of shading all lights.  With
+	 * -lightsamples N only N lights are picked at each hit, in proportion to
+	 * their contributions (see Shader.shade).
+	 */
+	public static double mergeLights = -1;
+	public static double lightCutoff = -1;
+	public static int lightSamples = 0;
+	
+	/**
+	 * If set with -pipeline, load the next scenes of a batch and write the
+	 * finished images on their own threads while the current scene renders (see
+	 * renderPipelined).  pipelineDepth is how many scenes may be loaded ahead, and
+	 * how many images may wait to be written.
+	 */
+	public static boolean pipeline = false;
+	public static int pipelineDepth = 2;
+	
+	/** Directory RenderServer writes output=PATH files under, set with -outdir. */
+	public static File serveOutputDirectory = new File(".");
+	
+	/** Secret shared by tile workers and their coordinators, read from the file given with -secret. */
+	public static byte[] tileSecret = null;
+	
+	/** If set with -workers, render on these worker processes instead of in this one (see TileCoordinator). */
+	public static TileCoordinator coordinator = null;
+	
+	/** Pool shared by all renders of this process. */
+	private static ForkJoinPool pool;
 	
 	public static String getTestFolderPath() { return testFolderPath; }
 	/**
 	 * If filename is a directory, set testFolderPath = fn.
-	 * And return a list of all .xml files inside the directory
+	 * And return a list of all .xml and binary scene files inside the directory
 	 * @param fn Filename or directory
-	 * @return fn itself in case fn is a file, or all .xml files inside fn
+	 * @return fn itself in case fn is a file, or all scene files inside fn
 	 */
 	public static final ArrayList<String> getFileLists(String fn) {
 		if(fn.endsWith("/"))
@@ -39,7 +156,7 @@ public class RayTracer {
 			} else {
 				testFolderPath = fn + "/";
 				for(String fl : file.list()) {
-					if(fl.endsWith(".xml")) {
+					if(fl.endsWith(".xml") || fl.endsWith(BinaryScene.EXTENSION)) {
 						output.add(testFolderPath + fl);
 					}
 				}	
@@ -54,91 +171,743 @@ public class RayTracer {
 	 * for the ray tracer. It tries to render each one and write it out to a PNG
 	 * file named <input_file>.png.
 	 *
+	 * Options may appear before the files they apply to:
+	 *   -threads N   render with N threads
+	 *   -tile N      use N x N pixel tiles
+	 *   -packet N    trace primary rays in N x N packets (N = 2 or 4)
+	 *   -aa N        adaptive antialiasing with at most N rays per pixel (one-pass renders)
+	 *   -aathreshold T  refine pixels whose corner colors differ by more than T (0..1)
+	 *   -mapped      keep framebuffers in memory-mapped scratch files (see MappedImage);
+	 *                images too large for the heap are mapped anyway
+	 *   -progressive render coarse to fine, writing snapshots to <input_file>.partial.png
+	 *   -snapshot N  write a snapshot every N seconds, or with N% every N percent of pixels
+	 *   -nocache     disable the per-light shadow occluder cache
+	 *   -float       keep the bounds of large BVHs and batched spheres in single
+	 *                precision, halving their memory; hits and shading stay in
+	 *                double (see AccelStruct.singlePrecision, SphereBatch)
+	 *   -mergelights D  shade lights within distance D of each other as one; kept
+	 *                in the .rtb files -binary writes
+	 *   -lightcutoff C  skip lights adding at most C to every channel of a hit
+	 *                (default: just too little to change an 8 bit pixel)
+	 *   -lightsamples N  shade each hit with N lights picked at random, in
+	 *                proportion to their contributions
+	 *   -binary      write each scene to <input_file>.rtb, with its acceleration
+	 *                structure built, instead of rendering it; .rtb files given as
+	 *                input are loaded directly (see BinaryScene)
+	 *   -stats       print ray counts and intersection tests by surface class
+	 *   -heatmap M   also write the cost of each pixel, in intersection tests, shadow
+	 *                rays or nanoseconds (M = tests, shadows or nanos), to
+	 *                <input_file>.cost.png as a color ramp and .cost.pfm as raw floats
+	 *   -relight     keep hits and shadows in <input_file>.gbuf, and when only the
+	 *                lights or shaders change shade from them instead of tracing
+	 *                (see GBuffer)
+	 *   -allocs      check that the render loop allocates nothing (see measureAllocations)
+	 *   -pipeline    load and write the scenes of a batch while others render
+	 *   -secret FILE the secret shared by workers and coordinators, read from FILE
+	 *   -maxscene MB largest scene file a worker accepts
+	 *   -worker [ADDR:]PORT  render tiles for coordinators connecting to PORT of
+	 *                ADDR (default: loopback only), given -secret (see TileServer)
+	 *   -workers H:P,H:P  render on the workers at these addresses, given -secret,
+	 *                with the options given so far (see TileCoordinator)
+	 *   -outdir DIR  directory the -serve output=PATH files are written under
+	 *                (default: the current directory)
+	 *   -serve PORT  stay resident and render scenes sent over HTTP to localhost:PORT,
+	 *                with the options given so far; requests must carry the token
+	 *                printed at startup (see RenderServer)
+	 *
 	 * @param args
 	 */
 	public static final void main(String[] args) {
-		Parser parser = new Parser();
 		for (int ctr = 0; ctr < args.length; ctr++) {
+			if (args[ctr].equals("-threads") && ctr + 1 < args.length) {
+				threads = Math.max(1, Integer.parseInt(args[++ctr]));
+				continue;
+			} else if (args[ctr].equals("-tile") && ctr + 1 < args.length) {
+				tileSize = Math.max(1, Integer.parseInt(args[++ctr]));
+				continue;
+			} else if (args[ctr].equals("-packet") && ctr + 1 < args.length) {
+				packetSize = Math.max(1, Math.min(4, Integer.parseInt(args[++ctr])));
+				continue;
+			} else if (args[ctr].equals("-aa") && ctr + 1 < args.length) {
+				maxSamples = Math.max(1, Integer.parseInt(args[++ctr]));
+				continue;
+			} else if (args[ctr].equals("-aathreshold") && ctr + 1 < args.length) {
+				aaThreshold = Double.parseDouble(args[++ctr]);
+				continue;
+			} else if (args[ctr].equals("-mapped")) {
+				Image.mapFramebuffers = true;
+				continue;
+			} else if (args[ctr].equals("-progressive")) {
+				progressive = true;
+				continue;
+			} else if (args[ctr].equals("-snapshot") && ctr + 1 < args.length) {
+				String value = args[++ctr];
+				if (value.endsWith("%")) {
+					snapshotPercent = Double.parseDouble(value.substring(0, value.length() - 1));
+					snapshotSeconds = 0;
+				} else {
+					snapshotSeconds = Double.parseDouble(value);
+					snapshotPercent = 0;
+				}
+				continue;
+			} else if (args[ctr].equals("-nocache")) {
+				cacheOccluders = false;
+				continue;
+			} else if (args[ctr].equals("-float")) {
+				SphereBatch.singlePrecision = true;
+				AccelStruct.singlePrecision = true;
+				continue;
+			} else if (args[ctr].equals("-mergelights") && ctr + 1 < args.length) {
+				mergeLights = Double.parseDouble(args[++ctr]);
+				continue;
+			} else if (args[ctr].equals("-lightcutoff") && ctr + 1 < args.length) {
+				lightCutoff = Double.parseDouble(args[++ctr]);
+				continue;
+			} else if (args[ctr].equals("-lightsamples") && ctr + 1 < args.length) {
+				lightSamples = Math.max(0, Integer.parseInt(args[++ctr]));
+				continue;
+			} else if (args[ctr].equals("-stats")) {
+				printCounts = true;
+				continue;
+			} else if (args[ctr].equals("-heatmap") && ctr + 1 < args.length) {
+				String measure = args[++ctr];
+				try {
+					heatmap = CostMap.Measure.valueOf(measure.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					System.out.println("Unknown -heatmap measure " + measure + "; usage: -heatmap tests|shadows|nanos");
+					return;
+				}
+				continue;
+			} else if (args[ctr].equals("-relight")) {
+				relight = true;
+				continue;
+			} else if (args[ctr].equals("-allocs")) {
+				measureAllocations = true;
+				continue;
+			} else if (args[ctr].equals("-binary")) {
+				writeBinary = true;
+				continue;
+			} else if (args[ctr].equals("-pipeline")) {
+				pipeline = true;
+				continue;
+			} else if (args[ctr].equals("-secret") && ctr + 1 < args.length) {
+				String secretFilename = args[++ctr];
+				try {
+					tileSecret = new String(Files.readAllBytes(new File(secretFilename).toPath()),
+							StandardCharsets.UTF_8).trim().getBytes(StandardCharsets.UTF_8);
+				} catch (IOException e) {
+					System.out.println("Could not read secret from " + secretFilename);
+					System.err.println(e);
+					return;
+				}
+				continue;
+			} else if (args[ctr].equals("-maxscene") && ctr + 1 < args.length) {
+				TileServer.maxSceneBytes = (int) Math.min(Integer.MAX_VALUE, Long.parseLong(args[++ctr]) << 20);
+				continue;
+			} else if (args[ctr].equals("-workers") && ctr + 1 < args.length) {
+				if (tileSecret == null || tileSecret.length == 0) {
+					System.out.println("-workers needs the workers' secret, given with -secret FILE before it");
+					return;
+				}
+				coordinator = new TileCoordinator(TileCoordinator.parseAddresses(args[++ctr]), tileSecret);
+				continue;
+			} else if (args[ctr].equals("-worker") && ctr + 1 < args.length) {
+				String address = args[++ctr];
+				if (tileSecret == null || tileSecret.length == 0) {
+					System.out.println("-worker needs a secret, given with -secret FILE before it");
+					return;
+				}
+				try {
+					int colon = address.lastIndexOf(':');
+					int port = Integer.parseInt(address.substring(colon + 1));
+					TileServer server = colon < 0 ? new TileServer(port, tileSecret)
+							: new TileServer(InetAddress.getByName(address.substring(0, colon)), port, tileSecret);
+					System.out.println("Serving tiles on " + server.getAddress().getHostAddress() + ":"
+							+ server.getPort());
+				} catch (IOException e) {
+					System.out.println("Could not serve on " + address);
+					System.err.println(e);
+				}
+				return;
+			} else if (args[ctr].equals("-outdir") && ctr + 1 < args.length) {
+				serveOutputDirectory = new File(args[++ctr]);
+				continue;
+			} else if (args[ctr].equals("-serve") && ctr + 1 < args.length) {
+				int port = Integer.parseInt(args[++ctr]);
+				try {
+					RenderServer server = new RenderServer(port, serveOutputDirectory);
+					System.out.println("Serving renders on localhost:" + server.getPort() + ", writing under "
+							+ server.getOutputDirectory());
+					System.out.println("X-Render-Token: " + server.getToken());
+				} catch (IOException e) {
+					System.out.println("Could not serve on port " + port);
+					System.err.println(e);
+				}
+				return;
+			}
+			
 			ArrayList<String> fileLists = getFileLists(args[ctr]);
+			if (pipeline && !writeBinary && !measureAllocations && coordinator == null) {
+				renderPipelined(fileLists);
+				continue;
+			}
 			
 			for (String inputFilename : fileLists) {
-				String outputFilename = inputFilename + ".png";
 	
 				// Parse the input file
-				Scene scene = (Scene) parser.parse(inputFilename, Scene.class);
+				Scene scene = loadScene(inputFilename);
+				if (scene == null) {
+					continue;
+				}
+				if (writeBinary) {
+					String binaryFilename = inputFilename + BinaryScene.EXTENSION;
+					System.out.printf("Writing %s\n", binaryFilename);
+					try {
+						BinaryScene.write(scene, binaryFilename);
+					} catch (IOException e) {
+						System.out.println("Error occured while attempting to write file: " + binaryFilename);
+						System.err.println(e);
+					}
+					continue;
+				}
+				if (measureAllocations) {
+					System.out.printf("Measuring %-25s  %d bytes allocated after warm-up.\n", 
+							inputFilename, measureAllocations(scene));
+					continue;
+				}
 				System.out.printf("Rendering %-25s  ", inputFilename);
 				
+				if (coordinator != null) {
+					if (renderDistributed(scene, inputFilename)) {
+						writeImage(scene, inputFilename);
+					}
+					continue;
+				}
+				
 				// Render the scene
-				renderImage(scene);
+				String snapshotFilename = inputFilename + ".partial.png";
+				if (progressive) {
+					renderImage(scene, snapshotFilename);
+				} else {
+					renderImage(scene);
+				}
 	
 				// Write the image out
-				scene.getImage().write(outputFilename);
+				writeImage(scene, inputFilename);
 			}
 		}
 	}
 
+	/**
+	 * Render a scene on the workers of coordinator and print the time taken.
+	 *
+	 * @param scene the scene, as read from inputFilename
+	 * @param inputFilename the file the workers are sent
+	 * @return false if the render failed
+	 */
+	static boolean renderDistributed(Scene scene, String inputFilename) {
+		long startTime = System.currentTimeMillis();
+		try {
+			long reissued = coordinator.render(scene, inputFilename);
+			System.out.printf(" done in %5.2f seconds on workers, %d tiles re-issued.\n",
+					(System.currentTimeMillis() - startTime) / 1000.0, reissued);
+			return true;
+		} catch (IOException e) {
+			System.out.println("Distributed render failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Write the rendered image of a scene to <input_file>.png, and its cost map if
+	 * it has one, remove its
+	 * progressive snapshot and release a mapped framebuffer and cost map.
+	 *
+	 * @param scene the rendered scene
+	 * @param inputFilename the file the scene was read from
+	 */
+	static void writeImage(Scene scene, String inputFilename) {
+		scene.getImage().write(inputFilename + ".png");
+		if (scene.getCostMap() != null) {
+			try {
+				scene.getCostMap().write(inputFilename + ".cost");
+			} catch (IOException e) {
+				System.out.println("Error occured while attempting to write file: " + inputFilename + ".cost.png");
+				System.err.println(e);
+			}
+			scene.getCostMap().close();
+		}
+		if (progressive) {
+			new File(inputFilename + ".partial.png").delete();
+		}
+		if (scene.getImage() instanceof MappedImage) {
+			((MappedImage) scene.getImage()).close();
+		}
+	}
+
+	/**
+	 * Render the scenes of a batch in three overlapping stages, so that the pool
+	 * is not idle while a scene is parsed or an image encoded.  A loader thread
+	 * reads scenes and builds their acceleration structures up to pipelineDepth
+	 * scenes ahead, the calling thread renders them in order on the pool, and a
+	 * writer thread writes each finished image while the next one renders.  Each
+	 * stage has its own Parser, so nothing is shared between stages but the scenes
+	 * handed along; the images are the same as those of a sequential batch.  With
+	 * -relight the loader also attaches each scene's GBuffer, as renderImage does,
+	 * and skips building the structure of scenes whose shadows are replayed.
+	 *
+	 * @param inputFilenames the scene files, rendered in order
+	 */
+	public static void renderPipelined(final List<String> inputFilenames) {
+		long startTime = System.currentTimeMillis();
+		ExecutorService loader = Executors.newSingleThreadExecutor(stageThreads("loader"));
+		ExecutorService writer = Executors.newSingleThreadExecutor(stageThreads("writer"));
+		ArrayDeque<Future<Scene>> loading = new ArrayDeque<Future<Scene>>();
+		ArrayDeque<Future<?>> writing = new ArrayDeque<Future<?>>();
+		int rendered = 0;
+		try {
+			int submitted = 0;
+			for (int i = 0; i < inputFilenames.size(); i++) {
+				while (submitted < inputFilenames.size() && submitted <= i + pipelineDepth) {
+					final String fileName = inputFilenames.get(submitted++);
+					loading.add(loader.submit(new Callable<Scene>() {
+						public Scene call() {
+							Scene scene = loadScene(fileName);
+							if (scene != null) {
+								scene.initializeLights();
+								GBuffer gbuffer = relight ? openGBuffer(scene, snapshotFilename(fileName)) : null;
+								if (tracesRays(gbuffer)) {
+									scene.initialize();
+								}
+							}
+							return scene;
+						}
+					}));
+				}
+				final String inputFilename = inputFilenames.get(i);
+				final Scene scene = awaitStage(loading.remove());
+				if (scene == null) {
+					continue;
+				}
+				if (scene.getGBuffer() != null) {
+					System.out.println("Relighting: " + scene.getGBuffer().mode() + "...");
+				}
+				System.out.printf("Rendering %-25s  ", inputFilename);
+				renderInitialized(scene, snapshotFilename(inputFilename), System.currentTimeMillis());
+				closeGBuffer(scene);
+				rendered++;
+
+				while (writing.size() >= pipelineDepth) {
+					awaitStage(writing.remove());
+				}
+				writing.add(writer.submit(new Runnable() {
+					public void run() {
+						writeImage(scene, inputFilename);
+					}
+				}));
+			}
+			while (!writing.isEmpty()) {
+				awaitStage(writing.remove());
+			}
+		} finally {
+			loader.shutdownNow();
+			writer.shutdown();
+		}
+		System.out.printf("Batch of %d scenes done in %5.2f seconds.\n", rendered,
+				(System.currentTimeMillis() - startTime) / 1000.0);
+	}
+
+	/**
+	 * @return where a pipelined render of the scene writes partial images, or null for one pass
+	 */
+	private static String snapshotFilename(String inputFilename) {
+		return progressive ? inputFilename + ".partial.png" : null;
+	}
+
+	/**
+	 * @return a factory for the daemon threads of a pipeline stage
+	 */
+	private static ThreadFactory stageThreads(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "pipeline-" + name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Wait for a pipeline stage, rethrowing what it threw.
+	 */
+	private static <T> T awaitStage(Future<T> stage) {
+		try {
+			return stage.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Read a scene from an XML file or, if its name ends in BinaryScene.EXTENSION,
+	 * from a binary scene.
+	 *
+	 * @param fileName the scene file
+	 * @return the scene, or null if it could not be read
+	 */
+	public static Scene loadScene(String fileName) {
+		RenderEvents.Parse event = new RenderEvents.Parse();
+		event.begin();
+		Scene scene;
+		if (fileName.endsWith(BinaryScene.EXTENSION)) {
+			try {
+				scene = BinaryScene.read(fileName);
+			} catch (IOException e) {
+				System.out.println("Exception occurred while reading: " + fileName);
+				System.err.println(e);
+				return null;
+			}
+		} else {
+			scene = (Scene) new Parser().parse(fileName, Scene.class);
+		}
+		if (scene != null) {
+			scene.setFileName(fileName);
+			if (mergeLights >= 0) {
+				scene.setLightMergeDistance(mergeLights);
+			}
+			event.scene = fileName;
+			event.commit();
+		}
+		return scene;
+	}
+
 	/**
 	 * The renderImage method renders the entire scene.
 	 *
 	 * @param scene The scene to be rendered
 	 */
 	public static void renderImage(Scene scene) {
-		// Get the output image
-		Image image = scene.getImage();
-		Camera cam = scene.getCamera();
-
-		// Set the camera aspect ratio to match output image
-		int width = image.getWidth();
-		int height = image.getHeight();
+		renderImage(scene, null);
+	}
 
+	/**
+	 * The renderImage method renders the entire scene.  With a snapshot file it
+	 * renders progressively, writing the partial image there from time to time.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param snapshotFilename where to write partial images, or null to render in one pass
+	 */
+	public static void renderImage(Scene scene, String snapshotFilename) {
 		// Timing counters
 		long startTime = System.currentTimeMillis();
 
-		ArrayList<Light> lights = scene.getLights();
-		double invHeight = 1.0 / height;
-		double invWidth = 1.0 / width;
-		
-		System.out.println("Initializing worker threads...");
-		List<RayTracerWorker> workers = new LinkedList<RayTracerWorker>();
-		List<Thread> threads = new LinkedList<Thread>();
-		for (int i = 0; i < 32; i++) {
-		  RayTracerWorker worker = new RayTracerWorker(cam, scene, new Ray(), new Color(), lights, invWidth, invHeight);
-		  Thread thread = new Thread(worker);
-		  workers.add(worker);
-		  threads.add(thread);
+		scene.initializeLights();
+		GBuffer gbuffer = relight ? openGBuffer(scene, snapshotFilename) : null;
+		if (gbuffer != null) {
+			System.out.println("Relighting: " + gbuffer.mode() + "...");
 		}
-		
-		System.out.println("Distributing work between workers...");
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-			  workers.get((x + y) % workers.size()).todo.add(new Work(x, y, new Color(255, 255, 255)));
+		if (tracesRays(gbuffer)) {
+			if (scene.getAccel() != null) {
+				System.out.println((scene.getAccel().isPrebuilt() ? "Using prebuilt " : "Building ")
+						+ scene.getAccel().getClass().getSimpleName() + "...");
 			}
+			scene.initialize();
 		}
-		
-		System.out.println("Starting workers...");
-		for (Thread thread : threads) {
-		  thread.start();
+		renderInitialized(scene, snapshotFilename, startTime);
+		closeGBuffer(scene);
+	}
+
+	/**
+	 * @return false if the scene's buffer replays shadows, and so traces no ray at all
+	 */
+	private static boolean tracesRays(GBuffer gbuffer) {
+		return gbuffer == null || !gbuffer.replaysShadows();
+	}
+
+	/**
+	 * Finish and detach the buffer openGBuffer attached to a rendered scene, if any.
+	 */
+	private static void closeGBuffer(Scene scene) {
+		GBuffer gbuffer = scene.getGBuffer();
+		if (gbuffer == null) {
+			return;
 		}
-		
-		System.out.println("Waiting on workers...");
-		for (Thread thread : threads) {
-		  try {
-        thread.join();
-        thread = null;
-      } catch (InterruptedException e) {
-      }
+		scene.setGBuffer(null);
+		try {
+			gbuffer.close();
+		} catch (IOException e) {
+			System.out.println("Could not finish " + scene.getFileName() + ".gbuf: " + e.getMessage());
 		}
-		
-		System.out.println("Coloring image...");
-		for (RayTracerWorker worker : workers) {
-		  for (Work work : worker.todo) {
-		    image.setPixelColor(work.color, (int) work.x, (int) work.y);
-		  }
+	}
+
+	/**
+	 * Open <input_file>.gbuf for a scene about to be rendered and attach it.
+	 *
+	 * @return the buffer, or null if the render cannot use one
+	 */
+	private static GBuffer openGBuffer(Scene scene, String snapshotFilename) {
+		if (scene.getFileName() == null || snapshotFilename != null || maxSamples > 1) {
+			System.out.println("Relighting needs a scene file and a one-pass render without -aa; rendering in full.");
+			return null;
+		}
+		String fileName = scene.getFileName() + ".gbuf";
+		try {
+			GBuffer gbuffer = new GBuffer(scene, fileName);
+			scene.setGBuffer(gbuffer);
+			return gbuffer;
+		} catch (IOException e) {
+			System.out.println("Could not open " + fileName + ": " + e.getMessage() + "; rendering in full.");
+		} catch (UnsupportedOperationException e) {
+			System.out.println("Cannot relight " + scene.getFileName() + ": " + e.getMessage() + "; rendering in full.");
+		}
+		return null;
+	}
+
+	/**
+	 * The second half of renderImage, for a scene that has already been
+	 * initialized: render it and print the time since startTime.
+	 */
+	static void renderInitialized(Scene scene, String snapshotFilename, long startTime) {
+		if (heatmap != null) {
+			scene.setCostMap(new CostMap(heatmap, scene.getImage().getWidth(), scene.getImage().getHeight()));
+		}
+		if (scene.getSphereBatch() != null) {
+			System.out.println("Batching " + scene.getSphereBatch().size() + " spheres ("
+					+ scene.getSphereBatch().kernel() + ")...");
+		}
+
+		List<RayTracerWorker> workers;
+		if (snapshotFilename == null) {
+			workers = render(scene).getWorkers();
+		} else {
+			workers = renderProgressive(scene, snapshotFilename);
 		}
 
 		// Output time
 		long totalTime = (System.currentTimeMillis() - startTime);
 		System.out.printf(" done in %5.2f seconds.\n", totalTime / 1000.0);
+		printShadowStatistics(workers);
+		printSampleStatistics(scene, workers);
+		if (printCounts) {
+			printCounts(workers);
+		}
+		if (scene.getCostMap() != null) {
+			System.out.println("  " + scene.getCostMap().summary());
+		}
+	}
+
+	/**
+	 * Render an initialized scene in passes of decreasing block size, starting
+	 * with one ray per progressiveBlock x progressiveBlock block, until every pixel
+	 * has been traced.  Each pass traces only pixels no earlier pass traced, so the
+	 * whole render costs about as much as render(scene) and ends with the same
+	 * image.  With -aa the last pass instead renders every pixel adaptively, as
+	 * render(scene) does, which costs the coarse passes (about a third of a ray
+	 * per pixel) on top.  The partial image is written to snapshotFilename after
+	 * the coarse pass and then as set by snapshotSeconds and snapshotPercent.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param snapshotFilename where to write partial images
+	 * @return the workers of all passes, for their statistics
+	 */
+	public static List<RayTracerWorker> renderProgressive(Scene scene, String snapshotFilename) {
+		RenderEvents.Trace event = new RenderEvents.Trace();
+		event.begin();
+		Image image = scene.getImage();
+		long pixels = (long) image.getWidth() * image.getHeight();
+		long traced = 0;
+		long lastTime = System.nanoTime();
+		long lastTraced = 0;
+		ArrayList<RayTracerWorker> workers = new ArrayList<RayTracerWorker>();
+		
+		int coarsest = Integer.highestOneBit(Math.max(1, progressiveBlock));
+		for (int step = coarsest; step >= 1; step /= 2) {
+			boolean full = step == coarsest || (step == 1 && maxSamples > 1);
+			RenderTask pass = new RenderTask(scene, tileSize, step, full ? 0 : 2 * step);
+			ForkJoinTask<Void> running = getPool().submit(pass);
+			while (!running.isDone()) {
+				try {
+					running.get(50, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					long done = traced + pass.getTraced();
+					boolean due = snapshotSeconds > 0 && System.nanoTime() - lastTime >= snapshotSeconds * 1e9;
+					due |= snapshotPercent > 0 && 100.0 * (done - lastTraced) / pixels >= snapshotPercent;
+					if (due) {
+						writeSnapshot(image, snapshotFilename);
+						lastTime = System.nanoTime();
+						lastTraced = done;
+					}
+				} catch (InterruptedException e) {
+					running.cancel(true);
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			traced += pass.getTraced();
+			workers.addAll(pass.getWorkers());
+			
+			if (step == coarsest && step > 1) {
+				writeSnapshot(image, snapshotFilename);
+				lastTime = System.nanoTime();
+				lastTraced = traced;
+			}
+		}
+		commitTrace(event, scene, workers);
+		return workers;
+	}
+
+	/**
+	 * Write a partial image next to its final name and move it into place, so
+	 * nobody watching the file ever sees half of a PNG.  The snapshot is encoded on
+	 * the calling thread: a pass may be holding every thread of the render pool,
+	 * and bands queued behind it would not be encoded until the pass ends.
+	 */
+	static void writeSnapshot(Image image, String fileName) {
+		File target = new File(fileName);
+		File temp = new File(fileName + ".tmp");
+		image.write(temp.getPath(), false);
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Error occured while attempting to write file: " + fileName);
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * Trace all tiles of an initialized scene on the shared pool.  Workers write
+	 * straight into the scene's image.  Prints nothing.
+	 *
+	 * @param scene The scene to be rendered
+	 * @return the finished task, for its workers' statistics
+	 */
+	public static RenderTask render(Scene scene) {
+		RenderEvents.Trace event = new RenderEvents.Trace();
+		event.begin();
+		RenderTask task = new RenderTask(scene, tileSize);
+		getPool().invoke(task);
+		commitTrace(event, scene, task.getWorkers());
+		return task;
+	}
+
+	/**
+	 * End the Trace event of a render and commit its counters.
+	 */
+	private static void commitTrace(RenderEvents.Trace event, Scene scene, List<RayTracerWorker> workers) {
+		event.end();
+		event.scene = scene.getFileName();
+		event.pixels = (long) scene.getImage().getWidth() * scene.getImage().getHeight();
+		event.threads = threads;
+		event.commit();
+		RenderEvents.commitCounts(scene, workers);
+	}
+
+	/**
+	 * Print how often the cached occluder answered a shadow ray.
+	 *
+	 * @param workers the workers of the finished render
+	 */
+	static void printShadowStatistics(List<RayTracerWorker> workers) {
+		long rays = 0, tests = 0, hits = 0;
+		for (RayTracerWorker worker : workers) {
+			rays += worker.work.shadowRays;
+			tests += worker.work.occluderTests;
+			hits += worker.work.occluderHits;
+		}
+		if (rays > 0 && cacheOccluders) {
+			System.out.printf("  %d shadow rays, %d answered by the cached occluder (%.1f%%, %.1f%% of cache tries)\n",
+					rays, hits, 100.0 * hits / rays, tests > 0 ? 100.0 * hits / tests : 0.0);
+		}
+	}
+
+	/**
+	 * Print the rays traced and the intersection tests they took, by surface class.
+	 *
+	 * @param workers the workers of the finished render
+	 */
+	static void printCounts(List<RayTracerWorker> workers) {
+		RenderEvents.Counts counts = new RenderEvents.Counts(workers);
+		System.out.printf("  %d primary rays, %d hit; %d shadow rays, %d blocked\n", counts.primaryRays,
+				counts.primaryHits, counts.shadowRays, counts.shadowsBlocked);
+		for (int i = 0; i < Surface.classCount(); i++) {
+			long tests = counts.surfaceTests[i];
+			if (tests > 0) {
+				System.out.printf("  %-12s %12d tests, %11d hits (%.1f%%)\n", Surface.className(i), tests,
+						counts.surfaceHits[i], 100.0 * counts.surfaceHits[i] / tests);
+			}
+		}
+	}
+
+	/**
+	 * Print how many primary rays adaptive antialiasing traced per pixel.
+	 *
+	 * @param scene the rendered scene
+	 * @param workers the workers of the finished render
+	 */
+	static void printSampleStatistics(Scene scene, List<RayTracerWorker> workers) {
+		long samples = 0, refined = 0;
+		for (RayTracerWorker worker : workers) {
+			samples += worker.samples;
+			refined += worker.refinedPixels;
+		}
+		if (samples > 0) {
+			long pixels = (long) scene.getImage().getWidth() * scene.getImage().getHeight();
+			System.out.printf("  %.2f rays per pixel, %d of %d pixels refined (%.1f%%)\n",
+					(double) samples / pixels, refined, pixels, 100.0 * refined / pixels);
+		}
+	}
+
+	/**
+	 * Render the scene on the calling thread until the JIT has settled, then once
+	 * more while reading this thread's allocated-bytes counter.  The render loop
+	 * reuses the thread's RayTracerWorker and Workspace for everything, so the
+	 * result should be zero; anything else is a regression in the hot path.
+	 *
+	 * @param scene The scene to be rendered
+	 * @return the number of bytes allocated by the measured render
+	 */
+	public static long measureAllocations(Scene scene) {
+		scene.initialize();
+		int width = scene.getImage().getWidth();
+		int height = scene.getImage().getHeight();
+		RayTracerWorker worker = new RayTracerWorker(scene);
+		for (int i = 0; i < 10; i++) {
+			worker.renderTile(0, 0, width, height);
+		}
+		
+		com.sun.management.ThreadMXBean threadBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		long overhead = threadBean.getThreadAllocatedBytes(threadId) - before;
+		before = threadBean.getThreadAllocatedBytes(threadId);
+		worker.renderTile(0, 0, width, height);
+		return threadBean.getThreadAllocatedBytes(threadId) - before - overhead;
+	}
+
+	/**
+	 * @return the render pool, recreated if the requested thread count changed
+	 */
+	static synchronized ForkJoinPool getPool() {
+		if (pool == null || pool.getParallelism() != threads) {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
 	}
 
 }
@@ -1,57 +1,385 @@
 package ray;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
 
 import ray.light.Light;
 import ray.math.Color;
 import ray.math.Vector3;
+import ray.shader.Shader;
+import ray.surface.Surface;
 
-public class RayTracerWorker implements Runnable {
+/**
+ * Per thread rendering state.  Each thread of the render pool gets its own
+ * worker, so the ray, colors and records below are reused for every pixel
+ * that thread traces and nothing is allocated per pixel.
+ */
+public class RayTracerWorker {
   private Camera cam;
   private Scene scene;
-  private Ray ray;
-  public Queue<Work> todo;
-  private Color rayColor;
+  private Image image;
   private ArrayList<Light> lights;
   private double invWidth;
   private double invHeight;
+  private CostMap costs;
+  private GBuffer gbuffer;
   
-  public RayTracerWorker(Camera cam, Scene scene, Ray ray, Color rayColor, ArrayList<Light> lights, double invWidth, double invHeight) {
-    this.cam = cam;
+  private final Ray ray = new Ray();
+  private final Color rayColor = new Color();
+  private final IntersectionRecord eyeRecord = new IntersectionRecord();
+  private final Vector3 toEye = new Vector3();
+  private final RayPacket packet = new RayPacket();
+  
+  /** Adaptive antialiasing: the pixel corner samples of a tile, grown on demand. */
+  private Color[] cornerColors = new Color[0];
+  private Color[] cornerDisplay = new Color[0];
+  private Surface[] cornerSurfaces = new Surface[0];
+  private final Color sample = new Color();
+  
+  /** Render options, RayTracer's unless set otherwise with setOptions. */
+  private int maxSamples;
+  private double aaThreshold;
+  private int packetSize;
+  
+  /** Antialiasing statistics: primary rays traced and pixels that needed more than their corners. */
+  long samples = 0;
+  long refinedPixels = 0;
+  final Workspace work = new Workspace();
+  
+  public RayTracerWorker(Scene scene) {
     this.scene = scene;
-    this.ray = ray;
-    this.rayColor = rayColor;
-    this.lights = lights;
-    this.invWidth = invWidth;
-    this.invHeight = invHeight;
-    todo = new LinkedList<Work>();
+    this.cam = scene.getCamera();
+    this.image = scene.getImage();
+    this.lights = scene.getShadingLights();
+    this.invWidth = 1.0 / image.getWidth();
+    this.invHeight = 1.0 / image.getHeight();
+    this.costs = scene.getCostMap();
+    this.gbuffer = scene.getGBuffer();
+    setOptions(RayTracer.maxSamples, RayTracer.aaThreshold, RayTracer.packetSize, RayTracer.cacheOccluders,
+        RayTracer.lightCutoff, RayTracer.lightSamples);
+    work.lightPower = new double[lights.size()];
+    double power = 0;
+    for (int i = 0; i < lights.size(); i++) {
+      Color intensity = lights.get(i).intensity;
+      power += intensity.r + intensity.g + intensity.b;
+      work.lightPower[i] = power;
+    }
+    if (gbuffer != null) {
+      work.shadowMask = new long[gbuffer.shadowWords()];
+      work.replayShadows = gbuffer.replaysShadows();
+    }
   }
   
-  public RayTracerWorker assign(Work work) {
-    todo.add(work);
-    return this;
+  /**
+   * Render with these options instead of RayTracer's, as named after the
+   * fields of RayTracer they stand for.  A negative lightCutoff is one
+   * Shader.QUANTUM shared among the scene's lights.
+   */
+  void setOptions(int maxSamples, double aaThreshold, int packetSize, boolean cacheOccluders,
+      double lightCutoff, int lightSamples) {
+    this.maxSamples = maxSamples;
+    this.aaThreshold = aaThreshold;
+    this.packetSize = packetSize;
+    work.cacheOccluders = cacheOccluders;
+    work.lightCutoff = lightCutoff >= 0 ? lightCutoff : Shader.QUANTUM / Math.max(1, lights.size());
+    work.lightSamples = lightSamples;
   }
-
-  @Override
-  public void run() {
-    while (todo.isEmpty()) {
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {
+  
+  /**
+   * Trace every pixel in [x0, x1) x [y0, y1) and write the results straight
+   * into the image.  With packetSize above 1 the primary rays are
+   * traced in square packets of that many pixels a side, at most 4.  With a
+   * GBuffer that holds the hits of this scene the pixels are shaded from it
+   * instead; with one that does not, what was traced is recorded in it.
+   */
+  public void renderTile(int x0, int y0, int x1, int y1) {
+    if (maxSamples > 1) {
+      renderTileAdaptive(x0, y0, x1, y1);
+      return;
+    }
+    if (gbuffer != null && gbuffer.replaysHits()) {
+      reshadeTile(x0, y0, x1, y1);
+      return;
+    }
+    int step = Math.max(1, Math.min(packetSize, 4));
+    if (step == 1) {
+      for (int y = y0; y < y1; y++) {
+        for (int x = x0; x < x1; x++) {
+          long start = costs != null ? costs.start(work) : 0;
+          cam.getRay(ray, (x + 0.5) * invWidth, (y + 0.5) * invHeight);
+          clearShadowMask();
+          boolean hit = shadeRay(rayColor, scene, ray, lights, 1, 1, false);
+          record(x, y, hit ? eyeRecord : null);
+          setPixel(x, y);
+          if (costs != null) {
+            costs.add(x, y, work, start);
+          }
+        }
       }
+      return;
     }
+    for (int y = y0; y < y1; y += step) {
+      for (int x = x0; x < x1; x += step) {
+        renderPacket(x, y, Math.min(x + step, x1), Math.min(y + step, y1));
+      }
+    }
+  }
+  
+  /**
+   * Adaptive antialiasing of [x0, x1) x [y0, y1).  Rays are first traced through
+   * the corners of every pixel, each corner shared by the pixels around it, so
+   * this costs about one ray per pixel.  A pixel whose four corners see the same
+   * surface (or all miss) and differ by at most aaThreshold in every
+   * channel of the final, gamma corrected color is the average of its corners.
+   * Any other pixel is traced again on an n x n grid of sub-pixel positions, with
+   * n * n the largest square not above maxSamples.
+   */
+  private void renderTileAdaptive(int x0, int y0, int x1, int y1) {
+    int w = x1 - x0 + 1;
+    int h = y1 - y0 + 1;
+    if (cornerColors.length < w * h) {
+      cornerColors = new Color[w * h];
+      cornerDisplay = new Color[w * h];
+      cornerSurfaces = new Surface[w * h];
+      for (int k = 0; k < w * h; k++) {
+        cornerColors[k] = new Color();
+        cornerDisplay[k] = new Color();
+      }
+    }
+    for (int j = 0; j < h; j++) {
+      for (int i = 0; i < w; i++) {
+        int k = j * w + i;
+        long start = costs != null ? costs.start(work) : 0;
+        cornerSurfaces[k] = traceSample(cornerColors[k], (x0 + i) * invWidth, (y0 + j) * invHeight);
+        if (costs != null) {
+          // The corners on the far edges of the tile are charged to the pixels along them
+          costs.add(Math.min(x0 + i, x1 - 1), Math.min(y0 + j, y1 - 1), work, start);
+        }
+        cornerDisplay[k].set(cornerColors[k]);
+        cornerDisplay[k].gammaCorrect(2.2);
+        cornerDisplay[k].clamp(0, 1);
+      }
+    }
+    samples += w * h;
     
-    for (Work work : todo) {
-      cam.getRay(ray, (work.x + 0.5) * invWidth, (work.y + 0.5) * invHeight);
-      shadeRay(rayColor, scene, ray, lights, 1, 1, false);
-      work.color.set(rayColor);
-      
-      // Gamma correct and clamp pixel values
-      work.color.gammaCorrect(2.2);
-      work.color.clamp(0, 1);
+    int n = (int) Math.sqrt(maxSamples);
+    double subpixel = 1.0 / n;
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0; x < x1; x++) {
+        int k = (y - y0) * w + (x - x0);
+        if (agree(k, k + 1) && agree(k, k + w) && agree(k, k + w + 1)) {
+          rayColor.set(cornerColors[k]);
+          rayColor.add(cornerColors[k + 1]);
+          rayColor.add(cornerColors[k + w]);
+          rayColor.add(cornerColors[k + w + 1]);
+          rayColor.scale(0.25);
+        } else {
+          long start = costs != null ? costs.start(work) : 0;
+          rayColor.set(0, 0, 0);
+          for (int sy = 0; sy < n; sy++) {
+            for (int sx = 0; sx < n; sx++) {
+              traceSample(sample, (x + (sx + 0.5) * subpixel) * invWidth, (y + (sy + 0.5) * subpixel) * invHeight);
+              rayColor.add(sample);
+            }
+          }
+          rayColor.scale(1.0 / (n * n));
+          samples += n * n;
+          refinedPixels++;
+          if (costs != null) {
+            costs.add(x, y, work, start);
+          }
+        }
+        setPixel(x, y);
+      }
+    }
+  }
+  
+  /**
+   * @return true if corners a and b see the same surface and look alike
+   */
+  private boolean agree(int a, int b) {
+    Color ca = cornerDisplay[a];
+    Color cb = cornerDisplay[b];
+    double threshold = aaThreshold;
+    return cornerSurfaces[a] == cornerSurfaces[b] && Math.abs(ca.r - cb.r) <= threshold
+        && Math.abs(ca.g - cb.g) <= threshold && Math.abs(ca.b - cb.b) <= threshold;
+  }
+  
+  /**
+   * Shade the camera ray through image position (u, v) into outColor.
+   *
+   * @return the surface the ray hit, or null if it missed
+   */
+  private Surface traceSample(Color outColor, double u, double v) {
+    cam.getRay(ray, u, v);
+    outColor.set(0, 0, 0);
+    work.primaryRays++;
+    if (!scene.intersect(eyeRecord, ray, false, work)) {
+      return null;
     }
+    work.primaryHits++;
+    shadeHit(outColor, eyeRecord);
+    return eyeRecord.surface;
+  }
+  
+  /**
+   * One pass of progressive rendering over [x0, x1) x [y0, y1): trace the pixels
+   * whose coordinates are both multiples of step, except those that are also
+   * both multiples of skip (traced by an earlier, coarser pass), and fill the
+   * step x step block starting at each with its color.  These blocks tile the
+   * image, so tiles never write the same pixel, and the pass with step 1 leaves
+   * every pixel exactly as renderTile(x0, y0, x1, y1) would without -aa.  Packets
+   * and antialiasing are not used: with -aa, RayTracer.renderProgressive ends
+   * with a renderTile(x0, y0, x1, y1) pass instead.
+   *
+   * @return the number of pixels traced
+   */
+  public int renderTile(int x0, int y0, int x1, int y1, int step, int skip) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int count = 0;
+    for (int y = (y0 + step - 1) / step * step; y < y1; y += step) {
+      for (int x = (x0 + step - 1) / step * step; x < x1; x += step) {
+        if (skip > 0 && x % skip == 0 && y % skip == 0) {
+          continue;
+        }
+        long start = costs != null ? costs.start(work) : 0;
+        cam.getRay(ray, (x + 0.5) * invWidth, (y + 0.5) * invHeight);
+        shadeRay(rayColor, scene, ray, lights, 1, 1, false);
+        if (costs != null) {
+          costs.add(x, y, work, start);
+        }
+        rayColor.gammaCorrect(2.2);
+        rayColor.clamp(0, 1);
+        for (int by = y; by < Math.min(y + step, height); by++) {
+          for (int bx = x; bx < Math.min(x + step, width); bx++) {
+            image.setPixelColor(rayColor, bx, by);
+          }
+        }
+        count++;
+      }
+    }
+    return count;
+  }
+  
+  /**
+   * Trace the pixels in [x0, x1) x [y0, y1) as one packet.  A packet whose rays
+   * do not all point the same way across every axis (it straddles the center
+   * of the image along some axis) is split into quarters, down to single rays.
+   */
+  private void renderPacket(int x0, int y0, int x1, int y1) {
+    long start = costs != null ? costs.start(work) : 0;
+    if (x1 - x0 == 1 && y1 - y0 == 1) {
+      cam.getRay(ray, (x0 + 0.5) * invWidth, (y0 + 0.5) * invHeight);
+      clearShadowMask();
+      boolean hit = shadeRay(rayColor, scene, ray, lights, 1, 1, false);
+      record(x0, y0, hit ? eyeRecord : null);
+      setPixel(x0, y0);
+      if (costs != null) {
+        costs.add(x0, y0, work, start);
+      }
+      return;
+    }
+    
+    packet.size = 0;
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0; x < x1; x++) {
+        cam.getRay(packet.rays[packet.size++], (x + 0.5) * invWidth, (y + 0.5) * invHeight);
+      }
+    }
+    packet.setup();
+    if (!packet.coherent) {
+      int xm = (x0 + x1 + 1) >>> 1;
+      int ym = (y0 + y1 + 1) >>> 1;
+      renderPacket(x0, y0, xm, ym);
+      if (xm < x1) {
+        renderPacket(xm, y0, x1, ym);
+      }
+      if (ym < y1) {
+        renderPacket(x0, ym, xm, y1);
+        if (xm < x1) {
+          renderPacket(xm, ym, x1, y1);
+        }
+      }
+      return;
+    }
+    
+    scene.intersectPacket(packet, work);
+    work.primaryRays += packet.size;
+    int i = 0;
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0; x < x1; x++, i++) {
+        rayColor.set(0, 0, 0);
+        clearShadowMask();
+        if (packet.hit[i]) {
+          work.primaryHits++;
+          shadeHit(rayColor, packet.records[i]);
+        }
+        record(x, y, packet.hit[i] ? packet.records[i] : null);
+        setPixel(x, y);
+      }
+    }
+    if (costs != null) {
+      costs.addSpread(x0, y0, x1, y1, work, start);
+    }
+  }
+  
+  /**
+   * Shade [x0, x1) x [y0, y1) from the hits stored in the GBuffer, without
+   * tracing camera rays.  Shadow rays are traced, and their results stored,
+   * only if the buffer does not replay them.
+   */
+  private void reshadeTile(int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0; x < x1; x++) {
+        long start = costs != null ? costs.start(work) : 0;
+        rayColor.set(0, 0, 0);
+        if (gbuffer.loadHit(x, y, eyeRecord)) {
+          if (work.replayShadows) {
+            gbuffer.loadShadows(x, y, work.shadowMask);
+          } else {
+            clearShadowMask();
+          }
+          shadeHit(rayColor, eyeRecord);
+          if (!work.replayShadows) {
+            gbuffer.storeShadows(x, y, work.shadowMask);
+          }
+        }
+        setPixel(x, y);
+        if (costs != null) {
+          costs.add(x, y, work, start);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Before shading a pixel that will be recorded, forget the shadows of the last.
+   */
+  private void clearShadowMask() {
+    if (gbuffer != null) {
+      Arrays.fill(work.shadowMask, 0);
+    }
+  }
+  
+  /**
+   * Store the hit of pixel (x, y), or null for a miss, and the shadows found
+   * shading it, if there is a GBuffer to record them in.
+   */
+  private void record(int x, int y, IntersectionRecord hit) {
+    if (gbuffer != null) {
+      gbuffer.storeHit(x, y, hit);
+      gbuffer.storeShadows(x, y, work.shadowMask);
+    }
+  }
+  
+  /**
+   * Gamma correct and clamp rayColor and store it at pixel (x, y).
+   */
+  private void setPixel(int x, int y) {
+    rayColor.gammaCorrect(2.2);
+    rayColor.clamp(0, 1);
+    image.setPixelColor(rayColor, x, y);
   }
   
   /**
@@ -60,23 +388,32 @@ public class RayTracerWorker implements Runnable {
    * @param outColor output space
    * @param scene the scene
    * @param ray the ray to shade
+   * @return true if the ray hit a surface
    */
-  public void shadeRay(Color outColor, Scene scene, Ray ray,// Workspace workspace, 
+  public boolean shadeRay(Color outColor, Scene scene, Ray ray,// Workspace workspace, 
       ArrayList<Light> lights, int depth, double contribution, boolean internal) {
     
     // Reset the output color
     // TODO: change back to 0,0,0; here for ocean color
     outColor.set(0, 0, 0);
 
-    IntersectionRecord eyeRecord = new IntersectionRecord();
-    Vector3 toEye = new Vector3();
-    if (!scene.intersect(eyeRecord, ray, false)) {
-      return;
+    work.primaryRays++;
+    if (!scene.intersect(eyeRecord, ray, false, work)) {
+      return false;
     }
+    work.primaryHits++;
     
-    toEye.sub(scene.camera.viewPoint, eyeRecord.location);
-    if (eyeRecord.surface != null) {
-      eyeRecord.surface.getShader().shade(outColor, scene, lights, toEye, eyeRecord);
+    shadeHit(outColor, eyeRecord);
+    return true;
+  }
+  
+  /**
+   * Add the color seen at the eye ray's hit in record to outColor.
+   */
+  private void shadeHit(Color outColor, IntersectionRecord record) {
+    toEye.sub(scene.camera.viewPoint, record.location);
+    if (record.surface != null) {
+      record.surface.getShader(record).shade(outColor, scene, lights, toEye, record, work);
     }
   }
 
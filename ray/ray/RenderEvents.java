@@ -0,0 +1,215 @@
+package ray;
+
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import ray.surface.Surface;
+
+/**
+ * Flight recorder events for the phases of a render and for what the render
+ * traced.  Each phase is a duration event: Parse around reading a scene, Build
+ * around Scene.initialize, Trace around the tile passes and Write around
+ * encoding an image.  After each trace a RayCounts event, and a SurfaceTests
+ * event for every surface class tested, report the counters the workers'
+ * Workspaces kept.
+ *
+ * The counters are plain increments on thread-confined fields, and an event
+ * that is not enabled costs a check of one flag, so all of this stays on.  To
+ * record a render:
+ *
+ *   java -XX:StartFlightRecording:filename=render.jfr ray.RayTracer scene.xml
+ *   jfr print --categories "Ray Tracer" render.jfr
+ */
+public final class RenderEvents {
+
+	private RenderEvents() { }
+
+	@Name("ray.Parse")
+	@Label("Parse Scene")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	public static class Parse extends Event {
+		@Label("Scene")
+		public String scene;
+	}
+
+	@Name("ray.Build")
+	@Label("Build Acceleration")
+	@Description("Bounding boxes, and the acceleration structure or sphere batch, of Scene.initialize")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	public static class Build extends Event {
+		@Label("Scene")
+		public String scene;
+
+		@Label("Structure")
+		public String structure;
+
+		@Label("Prebuilt")
+		public boolean prebuilt;
+
+		@Label("Surfaces")
+		public int surfaces;
+	}
+
+	@Name("ray.Trace")
+	@Label("Trace")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	public static class Trace extends Event {
+		@Label("Scene")
+		public String scene;
+
+		@Label("Pixels")
+		public long pixels;
+
+		@Label("Threads")
+		public int threads;
+	}
+
+	@Name("ray.Write")
+	@Label("Write Image")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	public static class Write extends Event {
+		@Label("File")
+		public String file;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+	}
+
+	@Name("ray.RayCounts")
+	@Label("Ray Counts")
+	@Description("Rays traced by one render and the intersection tests they took")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	public static class RayCounts extends Event {
+		@Label("Scene")
+		public String scene;
+
+		@Label("Primary Rays")
+		public long primaryRays;
+
+		@Label("Primary Hits")
+		public long primaryHits;
+
+		@Label("Shadow Rays")
+		public long shadowRays;
+
+		@Label("Shadow Rays Blocked")
+		public long shadowsBlocked;
+
+		@Label("Cached Occluder Hits")
+		public long occluderHits;
+
+		@Label("Intersection Tests")
+		public long surfaceTests;
+
+		@Label("Intersection Hits")
+		public long surfaceHits;
+	}
+
+	@Name("ray.SurfaceTests")
+	@Label("Surface Tests")
+	@Description("Intersection tests of one surface class during one render")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	public static class SurfaceTests extends Event {
+		@Label("Scene")
+		public String scene;
+
+		@Label("Surface Class")
+		public String surfaceClass;
+
+		@Label("Tests")
+		public long tests;
+
+		@Label("Hits")
+		public long hits;
+	}
+
+	/**
+	 * The counters of all workers of a render, summed.
+	 */
+	public static class Counts {
+		public long primaryRays, primaryHits;
+		public long shadowRays, shadowsBlocked, occluderHits;
+		public final long[] surfaceTests = new long[Surface.MAX_CLASSES];
+		public final long[] surfaceHits = new long[Surface.MAX_CLASSES];
+
+		public Counts(List<RayTracerWorker> workers) {
+			for (RayTracerWorker worker : workers) {
+				Workspace work = worker.work;
+				primaryRays += work.primaryRays;
+				primaryHits += work.primaryHits;
+				shadowRays += work.shadowRays;
+				shadowsBlocked += work.shadowsBlocked;
+				occluderHits += work.occluderHits;
+				for (int i = 0; i < Surface.MAX_CLASSES; i++) {
+					surfaceTests[i] += work.surfaceTests[i];
+					surfaceHits[i] += work.surfaceHits[i];
+				}
+			}
+		}
+
+		public long totalTests() {
+			long total = 0;
+			for (long tests : surfaceTests) {
+				total += tests;
+			}
+			return total;
+		}
+
+		public long totalHits() {
+			long total = 0;
+			for (long hits : surfaceHits) {
+				total += hits;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Commit the RayCounts and SurfaceTests events of a finished render.
+	 *
+	 * @param scene the rendered scene
+	 * @param workers the workers of every pass of the render
+	 */
+	static void commitCounts(Scene scene, List<RayTracerWorker> workers) {
+		RayCounts rays = new RayCounts();
+		if (!rays.isEnabled()) {
+			return;
+		}
+		Counts counts = new Counts(workers);
+		rays.scene = scene.getFileName();
+		rays.primaryRays = counts.primaryRays;
+		rays.primaryHits = counts.primaryHits;
+		rays.shadowRays = counts.shadowRays;
+		rays.shadowsBlocked = counts.shadowsBlocked;
+		rays.occluderHits = counts.occluderHits;
+		rays.surfaceTests = counts.totalTests();
+		rays.surfaceHits = counts.totalHits();
+		rays.commit();
+
+		for (int i = 0; i < Surface.classCount(); i++) {
+			if (counts.surfaceTests[i] == 0) {
+				continue;
+			}
+			SurfaceTests tests = new SurfaceTests();
+			tests.scene = scene.getFileName();
+			tests.surfaceClass = Surface.className(i);
+			tests.tests = counts.surfaceTests[i];
+			tests.hits = counts.surfaceHits[i];
+			tests.commit();
+		}
+	}
+}
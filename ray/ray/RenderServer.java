@@ -0,0 +1,319 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps a ray tracer resident and renders scenes on request over HTTP, so that
+ * small scenes do not pay for starting a JVM, loading classes and warming up the
+ * JIT every time.  Started by RayTracer's -serve option; it listens on the
+ * loopback interface only.  Renders use the options RayTracer was given before
+ * -serve and run one at a time, each on the whole render pool.
+ *
+ *   POST /render              the request body is the scene XML
+ *   POST /render?scene=PATH   render the scene file at PATH (XML or binary)
+ *   POST /shutdown            stop the server
+ *
+ * /render answers with the PNG, or, given output=PATH, writes the PNG to PATH
+ * and answers with the file written.  Output paths are taken relative to the
+ * output directory, and paths leading out of it are refused.  The
+ * X-Render-Millis header gives the time from the request to the finished
+ * render.  A scene that cannot be read gets 400, with the reason in the body.
+ *
+ * Loopback alone does not keep out web pages open in a browser on the same
+ * machine, so every request must be a POST with the token printed at startup in
+ * its X-Render-Token header, and must name localhost in its Host header (which
+ * rules out DNS rebinding).  For example, after RayTracer -serve 8642:
+ *
+ *   curl -H "X-Render-Token: $TOKEN" --data-binary @TEST2/four-spheres.xml localhost:8642/render > out.png
+ *   curl -H "X-Render-Token: $TOKEN" -X POST "localhost:8642/render?scene=TEST2/solids.xml&output=solids.png"
+ */
+public class RenderServer {
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final String token;
+	private final Path outputDirectory;
+
+	/**
+	 * Start serving on the given port of the loopback interface, with a new random
+	 * token.
+	 *
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param outputDirectory the directory output=PATH is resolved against
+	 */
+	public RenderServer(int port, File outputDirectory) throws IOException {
+		this(port, outputDirectory, newToken());
+	}
+
+	/**
+	 * Start serving on the given port of the loopback interface.
+	 *
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param outputDirectory the directory output=PATH is resolved against
+	 * @param token the value every request must send in X-Render-Token
+	 */
+	public RenderServer(int port, File outputDirectory, String token) throws IOException {
+		this.token = token;
+		this.outputDirectory = outputDirectory.toPath().toRealPath();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/render", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (authorize(exchange)) {
+					render(exchange);
+				}
+			}
+		});
+		server.createContext("/shutdown", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (authorize(exchange)) {
+					respond(exchange, 200, "Stopping\n");
+					stop();
+				}
+			}
+		});
+		// One request at a time: every render already uses the whole pool
+		executor = Executors.newSingleThreadExecutor();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the token requests must send in X-Render-Token
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * @return the directory output paths are resolved against
+	 */
+	public File getOutputDirectory() {
+		return outputDirectory.toFile();
+	}
+
+	/**
+	 * Stop accepting requests, letting the one being answered finish.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	/**
+	 * Read the scene of the request, render it and send or write the image.
+	 */
+	private void render(HttpExchange exchange) throws IOException {
+		long startTime = System.nanoTime();
+		HashMap<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		String sceneFilename = query.get("scene");
+		String outputFilename = query.get("output");
+		Path output = null;
+		if (outputFilename != null) {
+			output = resolveOutput(outputFilename);
+			if (output == null) {
+				respond(exchange, 403, "Output paths must lie inside " + outputDirectory + "\n");
+				return;
+			}
+		}
+
+		Scene scene;
+		try {
+			if (sceneFilename != null) {
+				scene = RayTracer.loadScene(sceneFilename);
+				if (scene == null) {
+					respond(exchange, 400, "Could not read " + sceneFilename + "\n");
+					return;
+				}
+			} else {
+				InputStream body = new BufferedInputStream(exchange.getRequestBody());
+				scene = (Scene) new Parser().parse(body, Scene.class);
+			}
+			if (scene.getImage() == null || scene.getCamera() == null) {
+				respond(exchange, 400, "The scene needs an image and a camera\n");
+				return;
+			}
+		} catch (Exception | Error e) {
+			respond(exchange, 400, "Could not parse the scene: " + e + "\n");
+			return;
+		}
+
+		Image image = scene.getImage();
+		try {
+			scene.initialize();
+			RayTracer.render(scene);
+			exchange.getResponseHeaders().set("X-Render-Millis",
+					String.format("%.1f", (System.nanoTime() - startTime) / 1e6));
+
+			if (output != null) {
+				new PngWriter(image).write(output.toString());
+				respond(exchange, 200, output + "\n");
+			} else {
+				// Encode first, so a failure can still be answered with a 500, and the
+				// client can tell a cut-off image by its Content-Length
+				ByteArrayOutputStream png = new ByteArrayOutputStream();
+				new PngWriter(image).write(Channels.newChannel(png));
+				exchange.getResponseHeaders().set("Content-Type", "image/png");
+				exchange.sendResponseHeaders(200, png.size());
+				try (OutputStream out = exchange.getResponseBody()) {
+					png.writeTo(out);
+				}
+			}
+		} catch (RuntimeException | IOException e) {
+			fail(exchange, "Render failed: " + e + "\n");
+		} finally {
+			if (image instanceof MappedImage) {
+				((MappedImage) image).close();
+			}
+		}
+	}
+
+	/**
+	 * Answer the request with an error unless it is a POST to localhost carrying
+	 * the token.
+	 *
+	 * @return whether the request may go on
+	 */
+	private boolean authorize(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestMethod().equals("POST")) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			respond(exchange, 405, "Use POST\n");
+			return false;
+		}
+		if (!isLocalHost(exchange.getRequestHeaders().getFirst("Host"))) {
+			respond(exchange, 403, "The Host header must name localhost\n");
+			return false;
+		}
+		String given = exchange.getRequestHeaders().getFirst("X-Render-Token");
+		if (given == null || !MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8),
+				token.getBytes(StandardCharsets.UTF_8))) {
+			respond(exchange, 403, "Missing or wrong X-Render-Token\n");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether host, a Host header, names this machine's loopback interface
+	 *         on the port served
+	 */
+	private boolean isLocalHost(String host) {
+		if (host == null) {
+			return false;
+		}
+		String port = ":" + getPort();
+		if (host.endsWith(port)) {
+			host = host.substring(0, host.length() - port.length());
+		}
+		return host.equalsIgnoreCase("localhost") || host.equals("127.0.0.1") || host.equals("[::1]");
+	}
+
+	/**
+	 * Resolve a requested output path against the output directory.  Symbolic
+	 * links are followed as far as the path exists, so a link cannot lead out of
+	 * it either.
+	 *
+	 * @return the file to write, or null if it lies outside the output directory
+	 */
+	private Path resolveOutput(String fileName) {
+		Path output = outputDirectory.resolve(fileName).normalize();
+		Path parent = output.getParent();
+		try {
+			if (parent != null && parent.toFile().exists()) {
+				output = parent.toRealPath().resolve(output.getFileName());
+			}
+			if (Files.isSymbolicLink(output)) {
+				// Throws for a dangling link, whose target we cannot check
+				output = output.toRealPath();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		if (!output.startsWith(outputDirectory) || output.equals(outputDirectory)) {
+			return null;
+		}
+		return output;
+	}
+
+	/**
+	 * Answer with a server error, or if the headers have already gone out, close
+	 * the exchange; the body is then shorter than its Content-Length.
+	 */
+	private static void fail(HttpExchange exchange, String message) {
+		System.err.print(message);
+		try {
+			if (exchange.getResponseCode() == -1) {
+				respond(exchange, 500, message);
+				return;
+			}
+		} catch (IOException e) {
+			// The client is gone; nothing left to tell it
+		}
+		exchange.close();
+	}
+
+	/**
+	 * @return a new random token of 128 bits, in hex
+	 */
+	static String newToken() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		return token.toString();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static HashMap<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+		HashMap<String, String> values = new HashMap<String, String>();
+		if (query == null) {
+			return values;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				values.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,122 @@
+package ray;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renders a run of tiles.  The image is cut into square tiles numbered in
+ * row major order; a task covering more than one tile splits its run in half
+ * and forks, so idle threads of the pool steal the remaining halves.  Pixels
+ * within a tile are traced by a single thread, which keeps neighbouring rays
+ * (and the parts of the scene they touch) together.
+ *
+ * A progressive pass traces only every step-th pixel along each axis and fills
+ * the step x step block below and to the right of it; see
+ * RayTracerWorker.renderTile(int, int, int, int, int, int).
+ */
+public class RenderTask extends RecursiveAction {
+  private static final long serialVersionUID = 1L;
+
+  private final ThreadLocal<RayTracerWorker> workers;
+  private final List<RayTracerWorker> created;
+  private final LongAdder traced;
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final int tilesX;
+  private final int step;
+  private final int skip;
+  private final int first;
+  private final int last;
+  
+  /**
+   * Create a task for every tile of the scene's image.
+   *
+   * @param scene the scene to render
+   * @param tileSize the width and height of a tile in pixels
+   */
+  public RenderTask(final Scene scene, int tileSize) {
+    this(scene, tileSize, 1, 0);
+  }
+  
+  /**
+   * Create a progressive pass over every tile of the scene's image.
+   *
+   * @param scene the scene to render
+   * @param tileSize the width and height of a tile in pixels
+   * @param step trace one pixel per step x step block
+   * @param skip pixels on the grid of an earlier pass with this step are not traced again; 0 for none
+   */
+  public RenderTask(final Scene scene, int tileSize, int step, int skip) {
+    this(new CopyOnWriteArrayList<RayTracerWorker>(), scene, tileSize, step, skip);
+  }
+  
+  private RenderTask(final List<RayTracerWorker> created, final Scene scene, int tileSize, int step, int skip) {
+    this(new ThreadLocal<RayTracerWorker>() {
+      protected RayTracerWorker initialValue() {
+        RayTracerWorker worker = new RayTracerWorker(scene);
+        created.add(worker);
+        return worker;
+      }
+    }, created, new LongAdder(), scene.getImage().getWidth(), scene.getImage().getHeight(), tileSize, step, skip, 0,
+        tileCount(scene.getImage().getWidth(), tileSize) * tileCount(scene.getImage().getHeight(), tileSize));
+  }
+  
+  private RenderTask(ThreadLocal<RayTracerWorker> workers, List<RayTracerWorker> created, LongAdder traced,
+      int width, int height, int tileSize, int step, int skip, int first, int last) {
+    this.workers = workers;
+    this.created = created;
+    this.traced = traced;
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    this.tilesX = tileCount(width, tileSize);
+    this.step = step;
+    this.skip = skip;
+    this.first = first;
+    this.last = last;
+  }
+  
+  /**
+   * @return the workers of every thread that took part in this render
+   */
+  public List<RayTracerWorker> getWorkers() {
+    return created;
+  }
+  
+  /**
+   * @return the number of pixels traced so far; safe to call while the task runs
+   */
+  public long getTraced() {
+    return traced.sum();
+  }
+  
+  private static int tileCount(int pixels, int tileSize) {
+    return (pixels + tileSize - 1) / tileSize;
+  }
+
+  @Override
+  protected void compute() {
+    if (last - first > 1) {
+      int mid = (first + last) >>> 1;
+      invokeAll(new RenderTask(workers, created, traced, width, height, tileSize, step, skip, first, mid),
+          new RenderTask(workers, created, traced, width, height, tileSize, step, skip, mid, last));
+      return;
+    }
+    
+    if (last > first) {
+      int x0 = (first % tilesX) * tileSize;
+      int y0 = (first / tilesX) * tileSize;
+      int x1 = Math.min(x0 + tileSize, width);
+      int y1 = Math.min(y0 + tileSize, height);
+      if (step == 1 && skip == 0) {
+        workers.get().renderTile(x0, y0, x1, y1);
+        traced.add((x1 - x0) * (y1 - y0));
+      } else {
+        traced.add(workers.get().renderTile(x0, y0, x1, y1, step, skip));
+      }
+    }
+  }
+}
@@ -2,8 +2,11 @@ package ray;
 
 import java.util.ArrayList;
 
+import ray.accel.AccelStruct;
 import ray.light.Light;
 import ray.shader.Shader;
+import ray.surface.Sphere;
+import ray.surface.SphereBatch;
 import ray.surface.Surface;
 
 
@@ -25,6 +28,19 @@ public class Scene {
 	public void addLight(Light toAdd) { lights.add(toAdd); }
 	public ArrayList<Light> getLights() { return this.lights; }
 	
+	/**
+	 * If 0 or more, lights within this distance of each other are shaded as one
+	 * (see Light.merge).  Stored in binary scenes, and replaced by RayTracer's
+	 * -mergelights option when that is given.
+	 */
+	protected double lightMergeDistance = -1;
+	public void setLightMergeDistance(double lightMergeDistance) { this.lightMergeDistance = lightMergeDistance; }
+	public double getLightMergeDistance() { return this.lightMergeDistance; }
+	
+	/** The lights shaders are given: the scene's lights, merged as set by initializeLights(). */
+	protected ArrayList<Light> shadingLights;
+	public ArrayList<Light> getShadingLights() { return shadingLights != null ? shadingLights : lights; }
+	
 	/** The list of surfaces for the scene. */
 	protected ArrayList<Surface> surfaces = new ArrayList<Surface>();
 	public void addSurface(Surface toAdd) { surfaces.add(toAdd); }
@@ -37,7 +53,109 @@ public class Scene {
 	protected Image outputImage;
 	public Image getImage() { return this.outputImage; }
 	public void setImage(Image outputImage) { this.outputImage = outputImage; }
+	
+	/** The file the scene was read from, if any, to name it in statistics. */
+	protected String fileName;
+	public void setFileName(String fileName) { this.fileName = fileName; }
+	public String getFileName() { return this.fileName; }
+	
+	/** If set, workers record what each pixel cost in it (see RayTracer's -heatmap option). */
+	protected CostMap costMap;
+	public void setCostMap(CostMap costMap) { this.costMap = costMap; }
+	public CostMap getCostMap() { return this.costMap; }
+	
+	/** If set, workers record hits and shadows in it or shade from it (see RayTracer's -relight option). */
+	protected GBuffer gbuffer;
+	public void setGBuffer(GBuffer gbuffer) { this.gbuffer = gbuffer; }
+	public GBuffer getGBuffer() { return this.gbuffer; }
+	
+	/** Optional acceleration structure; if null every surface is tested against every ray. */
+	protected AccelStruct accel;
+	public void setAccel(AccelStruct accel) { this.accel = accel; }
+	public AccelStruct getAccel() { return this.accel; }
+	
+	/**
+	 * Without an acceleration structure, spheres are tested in one batch (if there
+	 * are enough of them) and the remaining surfaces one by one.
+	 */
+	protected SphereBatch sphereBatch;
+	protected Surface[] linearSurfaces;
+	protected double[] linearBounds;
+	public SphereBatch getSphereBatch() { return this.sphereBatch; }
 
+	/** Scratch space for callers that do not pass their own Workspace. */
+	private final ThreadLocal<Workspace> callerWork = ThreadLocal.withInitial(Workspace::new);
+	
+	/**
+	 * Prepare the scene for rendering: compute surface bounds and build the
+	 * acceleration structure, if there is one and it was not restored from a
+	 * binary scene. Must be called before the first ray is traced and after the
+	 * last surface has been added.
+	 */
+	public void initialize() {
+		RenderEvents.Build event = new RenderEvents.Build();
+		event.begin();
+		build();
+		event.scene = fileName;
+		event.surfaces = surfaces.size();
+		if (accel != null) {
+			event.structure = accel.getClass().getSimpleName();
+			event.prebuilt = accel.isPrebuilt();
+		} else {
+			event.structure = sphereBatch != null ? "SphereBatch" : "none";
+		}
+		event.commit();
+	}
+	
+	/**
+	 * Merge the lights as set by lightMergeDistance.  Part of initialize(), and
+	 * to be called on its own before shading a scene that is not initialized.
+	 */
+	public void initializeLights() {
+		shadingLights = lightMergeDistance >= 0 ? Light.merge(lights, lightMergeDistance) : null;
+	}
+	
+	private void build() {
+		initializeLights();
+		for (Surface s : surfaces) {
+			s.computeBoundingBox();
+		}
+		sphereBatch = null;
+		linearSurfaces = null;
+		linearBounds = null;
+		if (accel != null) {
+			if (!accel.isPrebuilt()) {
+				accel.build(surfaces);
+			}
+			return;
+		}
+		
+		ArrayList<Sphere> spheres = new ArrayList<Sphere>();
+		ArrayList<Surface> others = new ArrayList<Surface>();
+		for (Surface s : surfaces) {
+			if (s instanceof Sphere) {
+				spheres.add((Sphere) s);
+			} else {
+				others.add(s);
+			}
+		}
+		if (spheres.size() >= SphereBatch.MIN_SPHERES) {
+			sphereBatch = SphereBatch.create(spheres);
+			linearSurfaces = others.toArray(new Surface[others.size()]);
+		} else {
+			linearSurfaces = surfaces.toArray(new Surface[surfaces.size()]);
+		}
+		linearBounds = new double[6 * linearSurfaces.length];
+		for (int i = 0; i < linearSurfaces.length; i++) {
+			Surface s = linearSurfaces[i];
+			linearBounds[6 * i + 0] = s.getMinBound().x;
+			linearBounds[6 * i + 1] = s.getMinBound().y;
+			linearBounds[6 * i + 2] = s.getMinBound().z;
+			linearBounds[6 * i + 3] = s.getMaxBound().x;
+			linearBounds[6 * i + 4] = s.getMaxBound().y;
+			linearBounds[6 * i + 5] = s.getMaxBound().z;
+		}
+	}
 		
 	/**
 	 * Set outRecord to the first intersection of ray with the scene. Return true
@@ -66,7 +184,8 @@ public class Scene {
 	/**
 	 * Set outRecord to the first intersection of ray with the scene. Return true
 	 * if there was an intersection and false otherwise. If no intersection was
-	 * found outRecord is unchanged.
+	 * found outRecord is unchanged.  Uses a Workspace kept for the calling thread;
+	 * the render loop uses the overload taking the thread's own workspace instead.
 	 *
 	 * @param outRecord the output IntersectionRecord
 	 * @param ray the ray to intersect
@@ -74,15 +193,53 @@ public class Scene {
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+		return intersect(outRecord, rayIn, anyIntersection, callerWork.get());
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.  Must be called after initialize().
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection, and won't modify outRecord
+	 * @param work scratch space of the calling thread
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, Workspace work) {
 		boolean ret = false;
-		IntersectionRecord tmp = new IntersectionRecord();
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
+		IntersectionRecord tmp = work.record;
+		Ray ray = work.sceneRay;
+		ray.set(rayIn.origin, rayIn.direction);
 		ray.start = rayIn.start;
 		ray.end = rayIn.end;
 		
+		if (accel != null) {
+			return accel.intersect(outRecord, ray, anyIntersection, work);
+		}
+		
 		double mint = Double.MAX_VALUE;
-		for (Surface s : surfaces) {
-			if (s.intersect(tmp, ray)) {
+		if (sphereBatch != null) {
+			// The batch only picks the sphere; Sphere.intersect fills in the record
+			int hit = sphereBatch.intersect(ray, anyIntersection);
+			work.count(sphereBatch.get(0).classIndex, sphereBatch.size(), hit >= 0);
+			if (hit >= 0 && sphereBatch.get(hit).intersect(tmp, ray)) {
+				ret = true;
+				if (anyIntersection) {
+					return true;
+				}
+				mint = tmp.t;
+				outRecord.set(tmp);
+			}
+		}
+		
+		if (linearSurfaces == null) {
+			throw new IllegalStateException("Scene.initialize() must be called before tracing rays");
+		}
+		for (int i = 0; i < linearSurfaces.length; i++) {
+			Surface s = linearSurfaces[i];
+			if (work.count(s, s.intersect(tmp, ray))) {
 				ret = true;
 				if (anyIntersection) {
 				  return true;
@@ -97,5 +254,65 @@ public class Scene {
 		
 		return ret;
 	}
+	
+	/**
+	 * Find the first intersection of every ray of the packet, setting
+	 * packet.records[i] and packet.hit[i] to what intersect would give for that
+	 * ray.  Unlike intersect the rays are used directly, so their end values may
+	 * be shortened.  Must be called after initialize().
+	 *
+	 * @param packet the rays to intersect, already set up
+	 * @param work scratch space of the calling thread
+	 */
+	public void intersectPacket(RayPacket packet, Workspace work) {
+		if (accel != null) {
+			accel.intersectPacket(packet, work);
+			return;
+		}
+		
+		int size = packet.size;
+		Ray[] rays = packet.rays;
+		IntersectionRecord tmp = work.record;
+		double[] mint = packet.mint;
+		for (int i = 0; i < size; i++) {
+			packet.hit[i] = false;
+			mint[i] = Double.MAX_VALUE;
+		}
+		
+		if (sphereBatch != null) {
+			for (int i = 0; i < size; i++) {
+				int hit = sphereBatch.intersect(rays[i], false);
+				work.count(sphereBatch.get(0).classIndex, sphereBatch.size(), hit >= 0);
+				if (hit >= 0 && sphereBatch.get(hit).intersect(tmp, rays[i])) {
+					packet.hit[i] = true;
+					mint[i] = tmp.t;
+					packet.records[i].set(tmp);
+				}
+			}
+			packet.updateEnd();
+		}
+		
+		// Surfaces outside the packet's frustum are skipped for all rays at once
+		for (int j = 0; j < linearSurfaces.length; j++) {
+			if (packet.primitiveMisses(linearBounds, 6 * j)) {
+				continue;
+			}
+			Surface s = linearSurfaces[j];
+			boolean shortened = false;
+			for (int i = 0; i < size; i++) {
+				if (work.count(s, s.intersect(tmp, rays[i]))) {
+					packet.hit[i] = true;
+					shortened = true;
+					if (tmp.t < mint[i]) {
+						mint[i] = tmp.t;
+						packet.records[i].set(tmp);
+					}
+				}
+			}
+			if (shortened) {
+				packet.updateEnd();
+			}
+		}
+	}
 
 }
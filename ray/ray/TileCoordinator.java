@@ -0,0 +1,391 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders a frame on worker processes (see TileServer), which may run on this
+ * machine or others.  The frame is cut into tiles of tileSize pixels; each
+ * worker connection takes the next tile, renders it remotely and hands back its
+ * pixels, which are copied into the scene's image.
+ *
+ * When no tile is left to hand out, connections that fall idle take over
+ * stragglers: tiles that have been out for more than STRAGGLER_FACTOR times the
+ * average tile time.  Whichever copy of a tile comes back first is kept.  The
+ * tiles of a worker that goes away are handed out again, so a render finishes
+ * as long as one worker is left.  A worker that stops answering for
+ * timeoutMillis is treated as gone.
+ *
+ * Workers are sent this process's render options with the scene (see
+ * TileServer.Options), so the frame matches a local render of the same command
+ * line.  For example, with two workers on this machine sharing the secret in
+ * the file key:
+ *
+ *   java ray.RayTracer -secret key -threads 2 -worker 9001 &
+ *   java ray.RayTracer -secret key -threads 2 -worker 9002 &
+ *   java ray.RayTracer -secret key -aa 4 -workers localhost:9001,localhost:9002 scene.xml
+ */
+public class TileCoordinator {
+
+	/** Width and height in pixels of the tiles sent to workers. */
+	public static int tileSize = 64;
+
+	/** A tile out for this many times the average tile time is re-issued. */
+	public static final double STRAGGLER_FACTOR = 4;
+
+	/**
+	 * How long to wait on a worker, for a connection or for the pixels of a tile,
+	 * in milliseconds.  A tile that takes longer is handed to another worker.
+	 */
+	public static int timeoutMillis = 120000;
+
+	/** How often idle connections look for stragglers, in milliseconds. */
+	private static final long STRAGGLER_POLL = 20;
+
+	private final List<InetSocketAddress> workers;
+	private final byte[] secret;
+
+	// Progress of the frame being rendered, guarded by this
+	private Image image;
+	private int width, height, tilesX, tileCount;
+	private ArrayDeque<Integer> pending;
+	private boolean[] done;
+	private int[] copies;
+	private long[] issuedAt;
+	private int remaining;
+	private long tileNanos;
+	private int tilesTimed;
+	private int liveLinks;
+	private long reissued;
+
+	/**
+	 * @param workers the addresses of the workers' TileServers
+	 * @param secret the secret the workers were started with
+	 */
+	public TileCoordinator(List<InetSocketAddress> workers, byte[] secret) {
+		this.workers = workers;
+		this.secret = secret.clone();
+	}
+
+	/**
+	 * Parse a comma separated list of host:port addresses.
+	 */
+	public static List<InetSocketAddress> parseAddresses(String list) {
+		ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (String address : list.split(",")) {
+			int colon = address.lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("Worker address needs a port: " + address);
+			}
+			addresses.add(new InetSocketAddress(address.substring(0, colon),
+					Integer.parseInt(address.substring(colon + 1))));
+		}
+		return addresses;
+	}
+
+	/**
+	 * Render the scene read from sceneFilename on the workers, into the scene's
+	 * image.  The scene only needs its image; workers are sent the file itself.
+	 *
+	 * @param scene the scene, as read from sceneFilename
+	 * @param sceneFilename the XML or binary scene file
+	 * @return how many tiles were re-issued as stragglers or after a worker failed
+	 * @throws IOException if the file cannot be read or no worker can render it
+	 */
+	public long render(Scene scene, String sceneFilename) throws IOException {
+		byte[] sceneBytes = Files.readAllBytes(new File(sceneFilename).toPath());
+		String key = digest(sceneBytes);
+		TileServer.Options options = TileServer.Options.current();
+
+		synchronized (this) {
+			image = scene.getImage();
+			width = image.getWidth();
+			height = image.getHeight();
+			tilesX = (width + tileSize - 1) / tileSize;
+			tileCount = tilesX * ((height + tileSize - 1) / tileSize);
+			pending = new ArrayDeque<Integer>();
+			for (int i = 0; i < tileCount; i++) {
+				pending.add(i);
+			}
+			done = new boolean[tileCount];
+			copies = new int[tileCount];
+			issuedAt = new long[tileCount];
+			remaining = tileCount;
+			tileNanos = 0;
+			tilesTimed = 0;
+			liveLinks = 0;
+			reissued = 0;
+		}
+
+		// One connection first to learn each worker's thread count and send the
+		// scene, then one more per further thread
+		ArrayList<Link> links = new ArrayList<Link>();
+		IOException lastError = null;
+		for (InetSocketAddress address : workers) {
+			try {
+				Link first = new Link(address);
+				int threads = first.open(key, options, sceneFilename, sceneBytes);
+				links.add(first);
+				for (int i = 1; i < threads; i++) {
+					Link link = new Link(address);
+					link.open(key, options, sceneFilename, sceneBytes);
+					links.add(link);
+				}
+			} catch (IOException e) {
+				System.out.println("Worker " + address + " unavailable: " + e.getMessage());
+				lastError = e;
+			}
+		}
+		if (links.isEmpty()) {
+			throw lastError != null ? lastError : new IOException("No workers given");
+		}
+
+		synchronized (this) {
+			liveLinks = links.size();
+		}
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (final Link link : links) {
+			Thread thread = new Thread(link, "tile-link " + link.address);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+
+		try {
+			synchronized (this) {
+				while (remaining > 0 && liveLinks > 0) {
+					wait();
+				}
+				if (remaining > 0) {
+					throw new IOException("Every worker failed with " + remaining + " tiles left");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			// Links still waiting on a straggler are cut off, and all of them are
+			// gone before the next frame resets the progress
+			for (Link link : links) {
+				link.close();
+			}
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return reissued;
+	}
+
+	/**
+	 * The next tile for an idle connection: a tile not yet handed out, or else
+	 * the oldest straggler, or -1 once the frame is done.  Waits while every tile
+	 * is out and none is late.
+	 */
+	private synchronized int nextTile() throws InterruptedException {
+		while (remaining > 0) {
+			long now = System.nanoTime();
+			if (!pending.isEmpty()) {
+				int tile = pending.poll();
+				if (done[tile]) {
+					continue;
+				}
+				copies[tile]++;
+				issuedAt[tile] = now;
+				return tile;
+			}
+			if (tilesTimed > 0) {
+				long late = (long) (STRAGGLER_FACTOR * tileNanos / tilesTimed);
+				int straggler = -1;
+				for (int i = 0; i < tileCount; i++) {
+					if (!done[i] && copies[i] == 1 && now - issuedAt[i] > late
+							&& (straggler < 0 || issuedAt[i] < issuedAt[straggler])) {
+						straggler = i;
+					}
+				}
+				if (straggler >= 0) {
+					copies[straggler]++;
+					reissued++;
+					return straggler;
+				}
+			}
+			wait(STRAGGLER_POLL);
+		}
+		return -1;
+	}
+
+	/**
+	 * Keep the pixels of a finished tile, unless another copy came back first.
+	 */
+	private synchronized void finishTile(int tile, float[] pixels, long nanos) {
+		if (done[tile]) {
+			return;
+		}
+		done[tile] = true;
+		remaining--;
+		tileNanos += nanos;
+		tilesTimed++;
+		int x0 = (tile % tilesX) * tileSize;
+		int y0 = (tile / tilesX) * tileSize;
+		int x1 = Math.min(x0 + tileSize, width);
+		int y1 = Math.min(y0 + tileSize, height);
+		int i = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				image.setPixelRGB(pixels[i], pixels[i + 1], pixels[i + 2], x, y);
+				i += 3;
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Hand a tile back after its connection failed, unless it is done anyway.
+	 */
+	private synchronized void abandonTile(int tile) {
+		copies[tile]--;
+		if (!done[tile] && copies[tile] == 0) {
+			pending.addFirst(tile);
+			reissued++;
+		}
+		notifyAll();
+	}
+
+	private synchronized void linkClosed() {
+		liveLinks--;
+		notifyAll();
+	}
+
+	private static String digest(byte[] bytes) {
+		try {
+			StringBuilder key = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * One connection to a worker, rendering one tile at a time.
+	 */
+	private class Link implements Runnable {
+		final InetSocketAddress address;
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+
+		Link(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * Connect, prove we know the secret, and make sure the worker has the scene.
+		 *
+		 * @return the worker's render thread count
+		 */
+		int open(String key, TileServer.Options options, String sceneFilename, byte[] sceneBytes)
+				throws IOException {
+			socket = new Socket();
+			try {
+				socket.connect(address, timeoutMillis);
+				socket.setSoTimeout(timeoutMillis);
+				socket.setTcpNoDelay(true);
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				out.writeInt(TileServer.MAGIC);
+				out.flush();
+				if (in.readInt() != TileServer.MAGIC) {
+					throw new IOException("Not a tile server");
+				}
+				byte[] nonce = new byte[TileServer.NONCE_BYTES];
+				in.readFully(nonce);
+				out.write(TileServer.mac(secret, nonce));
+				out.flush();
+				if (!in.readBoolean()) {
+					throw new IOException("The worker has another secret");
+				}
+				out.writeUTF(key);
+				options.write(out);
+				out.flush();
+				int threads = in.readInt();
+				if (!in.readBoolean()) {
+					out.writeUTF(new File(sceneFilename).getName());
+					out.writeInt(sceneBytes.length);
+					out.write(sceneBytes);
+					out.flush();
+					if (!in.readBoolean()) {
+						throw new IOException(in.readUTF());
+					}
+				}
+				return threads;
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public void run() {
+			int tile = -1;
+			try {
+				while ((tile = nextTile()) >= 0) {
+					long start = System.nanoTime();
+					int x0 = (tile % tilesX) * tileSize;
+					int y0 = (tile / tilesX) * tileSize;
+					int x1 = Math.min(x0 + tileSize, width);
+					int y1 = Math.min(y0 + tileSize, height);
+					out.writeInt(TileServer.TILE);
+					out.writeInt(x0);
+					out.writeInt(y0);
+					out.writeInt(x1);
+					out.writeInt(y1);
+					out.flush();
+					float[] pixels = new float[3 * (x1 - x0) * (y1 - y0)];
+					for (int i = 0; i < pixels.length; i++) {
+						pixels[i] = in.readFloat();
+					}
+					finishTile(tile, pixels, System.nanoTime() - start);
+					tile = -1;
+				}
+				out.writeInt(TileServer.BYE);
+				out.flush();
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					System.out.println("Lost worker " + address + ": " + e);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (tile >= 0) {
+					abandonTile(tile);
+				}
+				linkClosed();
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing left to do with it
+			}
+		}
+	}
+}
@@ -0,0 +1,479 @@
+package ray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import ray.accel.AccelStruct;
+import ray.math.Color;
+import ray.surface.SphereBatch;
+
+/**
+ * The worker side of a distributed render (see TileCoordinator).  Listens on a
+ * port and serves every connection on its own thread: the coordinator proves it
+ * knows the shared secret, names a scene and the options to render it with,
+ * sends the scene if this worker does not have it yet, and then asks for tiles
+ * one at a time, each answered with its pixels.  A coordinator opens one
+ * connection per render thread of the worker, so tiles are traced in parallel
+ * without a pool.
+ *
+ * Scenes are kept by the key the coordinator gives them, a digest of the scene
+ * file, together with the options that change how a scene is initialized, so
+ * each worker loads and initializes a scene once however many connections and
+ * frames use it.  The last CACHED_SCENES scenes are kept; an older one is let go
+ * once no connection is rendering it, closing its framebuffer if that is mapped
+ * and deleting its copy of the scene file.
+ *
+ * The server listens on the loopback interface unless given another address.
+ * Connections that do not answer the challenge with the secret are dropped
+ * before anything is read from them, scenes above maxSceneBytes are refused,
+ * and binary scenes may only name classes of the scene packages (see
+ * BinaryScene).
+ *
+ * The protocol, in DataOutputStream encoding:
+ *
+ *   coordinator: MAGIC
+ *   worker:      MAGIC, NONCE_BYTES random bytes
+ *   coordinator: the HMAC-SHA256 of those bytes under the secret (MAC_BYTES)
+ *   worker:      1 if it is right, else 0 and the connection is closed
+ *   coordinator: scene key (UTF), render options (see Options)
+ *   worker:      render threads (int), 1 if it has the scene, else 0
+ *   coordinator: if 0, scene file name (UTF), length (int), the file's bytes
+ *   worker:      1 once the scene is loaded, or 0 and an error message (UTF)
+ *   then, for each tile:
+ *   coordinator: TILE, x0, y0, x1, y1
+ *   worker:      3 floats per pixel, rows from y0 up, pixels from x0
+ *   and finally:
+ *   coordinator: BYE
+ */
+public class TileServer {
+
+	/** First word of both sides of the handshake. */
+	public static final int MAGIC = 0x52545432;
+
+	/** Requests that follow the handshake. */
+	public static final int TILE = 1;
+	public static final int BYE = 2;
+
+	/** How many scenes a worker keeps loaded. */
+	public static final int CACHED_SCENES = 4;
+
+	/** Sizes of the challenge and of the answer to it. */
+	public static final int NONCE_BYTES = 32;
+	public static final int MAC_BYTES = 32;
+
+	/** Largest scene file a worker accepts, set with -maxscene. */
+	public static int maxSceneBytes = 256 << 20;
+
+	/**
+	 * How long a worker waits on a coordinator during the handshake, in
+	 * milliseconds.  Scenes are received holding a lock, so a coordinator that
+	 * stops halfway would otherwise hold up every other one.
+	 */
+	public static final int HANDSHAKE_TIMEOUT = 30000;
+
+	/**
+	 * The render options a coordinator sends with each job: the settings of
+	 * RayTracer, SphereBatch and AccelStruct that change the image a worker
+	 * renders, so that it matches a local render of the same command line.
+	 */
+	public static final class Options {
+		int maxSamples;
+		double aaThreshold;
+		int packetSize;
+		boolean singlePrecision;
+		boolean cacheOccluders;
+		double mergeLights;
+		double lightCutoff;
+		int lightSamples;
+
+		/**
+		 * @return the options this process was given
+		 */
+		public static Options current() {
+			Options options = new Options();
+			options.maxSamples = RayTracer.maxSamples;
+			options.aaThreshold = RayTracer.aaThreshold;
+			options.packetSize = RayTracer.packetSize;
+			options.singlePrecision = AccelStruct.singlePrecision;
+			options.cacheOccluders = RayTracer.cacheOccluders;
+			options.mergeLights = RayTracer.mergeLights;
+			options.lightCutoff = RayTracer.lightCutoff;
+			options.lightSamples = RayTracer.lightSamples;
+			return options;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(maxSamples);
+			out.writeDouble(aaThreshold);
+			out.writeInt(packetSize);
+			out.writeBoolean(singlePrecision);
+			out.writeBoolean(cacheOccluders);
+			out.writeDouble(mergeLights);
+			out.writeDouble(lightCutoff);
+			out.writeInt(lightSamples);
+		}
+
+		static Options read(DataInputStream in) throws IOException {
+			Options options = new Options();
+			options.maxSamples = Math.max(1, in.readInt());
+			options.aaThreshold = in.readDouble();
+			options.packetSize = Math.max(1, Math.min(4, in.readInt()));
+			options.singlePrecision = in.readBoolean();
+			options.cacheOccluders = in.readBoolean();
+			options.mergeLights = in.readDouble();
+			options.lightCutoff = in.readDouble();
+			options.lightSamples = Math.max(0, in.readInt());
+			return options;
+		}
+
+		/**
+		 * @return the part of the options a scene is initialized with, for the
+		 *         scene cache
+		 */
+		String sceneKey() {
+			return (singlePrecision ? "/float" : "/double") + (mergeLights >= 0 ? "/merge " + mergeLights : "");
+		}
+
+		/**
+		 * Set the options a worker renders tiles with.
+		 */
+		void apply(RayTracerWorker worker) {
+			worker.setOptions(maxSamples, aaThreshold, packetSize, cacheOccluders, lightCutoff, lightSamples);
+		}
+	}
+
+	private final ServerSocket socket;
+	private final byte[] secret;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * A loaded scene, the file it was loaded from if that has to stay (a binary
+	 * scene is memory-mapped), and the connections rendering it.  Guarded by the
+	 * server's lock.
+	 */
+	private static final class Loaded {
+		final Scene scene;
+		final File copy;
+		int users;
+		boolean evicted;
+
+		Loaded(Scene scene, File copy) {
+			this.scene = scene;
+			this.copy = copy;
+		}
+
+		/** Close the scene's mapped framebuffer, if it has one, and delete the copy. */
+		void release() {
+			if (scene.getImage() instanceof MappedImage) {
+				((MappedImage) scene.getImage()).close();
+			}
+			if (copy != null) {
+				copy.delete();
+			}
+		}
+	}
+
+	/** Loaded scenes by key, least recently used first. */
+	private final LinkedHashMap<String, Loaded> scenes = new LinkedHashMap<String, Loaded>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Loaded> eldest) {
+			if (size() <= CACHED_SCENES) {
+				return false;
+			}
+			eldest.getValue().evicted = true;
+			if (eldest.getValue().users == 0) {
+				eldest.getValue().release();
+			}
+			return true;
+		}
+	};
+
+	/**
+	 * Listen on the given port of the loopback interface.
+	 *
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param secret the secret coordinators must prove they know
+	 */
+	public TileServer(int port, byte[] secret) throws IOException {
+		this(InetAddress.getLoopbackAddress(), port, secret);
+	}
+
+	/**
+	 * Listen on the given port of one interface.
+	 *
+	 * @param address the address to listen on, or null for every interface
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param secret the secret coordinators must prove they know
+	 */
+	public TileServer(InetAddress address, int port, byte[] secret) throws IOException {
+		if (secret == null || secret.length == 0) {
+			throw new IllegalArgumentException("A tile server needs a secret");
+		}
+		this.secret = secret.clone();
+		socket = new ServerSocket(port, 50, address);
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "tile-server");
+		acceptor.start();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * @return the address the server listens on
+	 */
+	public InetAddress getAddress() {
+		return socket.getInetAddress();
+	}
+
+	/**
+	 * Stop accepting connections.  Connections already open are served to the end.
+	 */
+	public void stop() throws IOException {
+		socket.close();
+	}
+
+	private void accept() {
+		while (!socket.isClosed()) {
+			final Socket connection;
+			try {
+				connection = socket.accept();
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					System.err.println(e);
+				}
+				return;
+			}
+			Thread session = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(connection);
+					} catch (IOException e) {
+						System.err.println("Lost coordinator " + connection.getRemoteSocketAddress() + ": " + e);
+					} finally {
+						try {
+							connection.close();
+						} catch (IOException e) {
+							// Nothing left to do with it
+						}
+					}
+				}
+			}, "tile-session " + connection.getRemoteSocketAddress());
+			session.setDaemon(true);
+			session.start();
+		}
+	}
+
+	/**
+	 * Serve one coordinator connection until it says BYE or goes away.
+	 */
+	private void serve(Socket connection) throws IOException {
+		connection.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+
+		connection.setSoTimeout(HANDSHAKE_TIMEOUT);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a tile coordinator");
+		}
+		byte[] nonce = new byte[NONCE_BYTES];
+		random.nextBytes(nonce);
+		out.writeInt(MAGIC);
+		out.write(nonce);
+		out.flush();
+		byte[] answer = new byte[MAC_BYTES];
+		in.readFully(answer);
+		boolean accepted = MessageDigest.isEqual(answer, mac(secret, nonce));
+		out.writeBoolean(accepted);
+		out.flush();
+		if (!accepted) {
+			throw new IOException("Wrong secret");
+		}
+
+		String key = in.readUTF();
+		Options options = Options.read(in);
+		Loaded loaded = loadScene(key, options, in, out);
+		if (loaded == null) {
+			return;
+		}
+		try {
+			renderTiles(connection, loaded.scene, options, in, out);
+		} finally {
+			release(loaded);
+		}
+	}
+
+	/**
+	 * Answer tile requests for scene until the coordinator says BYE or goes away.
+	 */
+	private void renderTiles(Socket connection, Scene scene, Options options, DataInputStream in, DataOutputStream out)
+			throws IOException {
+		// Tiles may be asked for after any pause; the coordinator times them out
+		connection.setSoTimeout(0);
+
+		RayTracerWorker worker = new RayTracerWorker(scene);
+		options.apply(worker);
+		Image image = scene.getImage();
+		Color pixel = new Color();
+		while (true) {
+			int request;
+			try {
+				request = in.readInt();
+			} catch (EOFException e) {
+				// The coordinator finished without saying goodbye
+				return;
+			}
+			if (request == BYE) {
+				return;
+			}
+			if (request != TILE) {
+				throw new IOException("Unknown request " + request);
+			}
+			int x0 = in.readInt(), y0 = in.readInt(), x1 = in.readInt(), y1 = in.readInt();
+			if (x0 < 0 || y0 < 0 || x1 > image.getWidth() || y1 > image.getHeight() || x0 >= x1 || y0 >= y1) {
+				throw new IOException("Tile " + x0 + "," + y0 + " to " + x1 + "," + y1 + " is outside the image");
+			}
+			// Tiles of one scene never overlap unless a straggler is re-issued, and
+			// then both copies write the same values
+			worker.renderTile(x0, y0, x1, y1);
+			for (int y = y0; y < y1; y++) {
+				for (int x = x0; x < x1; x++) {
+					image.getPixelColor(pixel, x, y);
+					out.writeFloat((float) pixel.r);
+					out.writeFloat((float) pixel.g);
+					out.writeFloat((float) pixel.b);
+				}
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * The handshake: find the scene with this key and options, or receive and
+	 * load it.  Holding the lock throughout means that connections opened
+	 * together for a new scene load it once, the first one receiving it and the
+	 * others finding it loaded; it also keeps the precision settings made for one
+	 * scene from leaking into another.  The caller renders the scene and then
+	 * hands it back to release.
+	 *
+	 * @return the initialized scene, or null if it could not be loaded
+	 */
+	private synchronized Loaded loadScene(String key, Options options, DataInputStream in, DataOutputStream out)
+			throws IOException {
+		key += options.sceneKey();
+		Loaded loaded = scenes.get(key);
+		out.writeInt(RayTracer.threads);
+		out.writeBoolean(loaded != null);
+		out.flush();
+		if (loaded != null) {
+			loaded.users++;
+			return loaded;
+		}
+
+		String fileName = new File(in.readUTF()).getName();
+		int length = in.readInt();
+		if (length < 0 || length > maxSceneBytes) {
+			out.writeBoolean(false);
+			out.writeUTF("Scene of " + length + " bytes refused, the limit is " + maxSceneBytes);
+			out.flush();
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		// Binary scenes are memory-mapped, so the copy has to stay as long as the scene
+		File copy = File.createTempFile("tile-", fileName);
+		copy.deleteOnExit();
+		Files.write(copy.toPath(), bytes);
+		Scene scene;
+		String error = null;
+		boolean sphereFloats = SphereBatch.singlePrecision;
+		boolean accelFloats = AccelStruct.singlePrecision;
+		double mergeLights = RayTracer.mergeLights;
+		try {
+			// As on the coordinator, a binary scene's own merge distance holds unless -mergelights was given
+			SphereBatch.singlePrecision = options.singlePrecision;
+			AccelStruct.singlePrecision = options.singlePrecision;
+			RayTracer.mergeLights = options.mergeLights;
+			scene = RayTracer.loadScene(copy.getPath());
+			if (scene == null) {
+				error = "Could not read " + fileName;
+			} else {
+				scene.initialize();
+			}
+		} catch (RuntimeException | Error e) {
+			scene = null;
+			error = "Could not load " + fileName + ": " + e;
+		} finally {
+			SphereBatch.singlePrecision = sphereFloats;
+			AccelStruct.singlePrecision = accelFloats;
+			RayTracer.mergeLights = mergeLights;
+		}
+		if (scene == null || !fileName.endsWith(BinaryScene.EXTENSION)) {
+			copy.delete();
+			copy = null;
+		}
+
+		out.writeBoolean(scene != null);
+		if (scene == null) {
+			out.writeUTF(error);
+		} else {
+			loaded = new Loaded(scene, copy);
+			scenes.put(key, loaded);
+			System.out.println("Loaded " + fileName + " as " + key);
+		}
+		out.flush();
+		if (loaded != null) {
+			loaded.users++;
+		}
+		return loaded;
+	}
+
+	/**
+	 * A connection is done with a scene: let it go if it has left the cache and
+	 * no other connection is rendering it.
+	 */
+	private synchronized void release(Loaded loaded) {
+		loaded.users--;
+		if (loaded.evicted && loaded.users == 0) {
+			loaded.release();
+		}
+	}
+
+	/**
+	 * @return the HMAC-SHA256 of message under key
+	 */
+	static byte[] mac(byte[] key, byte[] message) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			return mac.doFinal(message);
+		} catch (GeneralSecurityException e) {
+			throw new Error(e);
+		}
+	}
+}
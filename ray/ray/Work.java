@@ -1,15 +0,0 @@
-package ray;
-
-import ray.math.Color;
-
-class Work {
-  public double x;
-  public double y;
-  public Color color;
-  
-  public Work(double x, double y, Color color) {
-    this.x = x;
-    this.y = y;
-    this.color = color;
-  }
-}
\ No newline at end of file
@@ -0,0 +1,173 @@
+package ray;
+
+import ray.math.Color;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.surface.Surface;
+
+/**
+ * Scratch space for tracing and shading on one thread.  Every object the render
+ * path needs per ray lives here, so once a thread has its workspace no further
+ * allocation happens per pixel.  A workspace must never be shared by two threads.
+ *
+ * Each field has a single owner along the call chain (noted below), so nested
+ * calls such as a shadow query made while shading never clobber each other.
+ */
+public class Workspace {
+
+  /** Scene.intersect: the private copy of the incoming ray. */
+  public final Ray sceneRay = new Ray();
+
+  /**
+   * Scene.intersect and acceleration structures: the record surfaces write into.
+   * After an any-intersection query that returned true, record.surface is the
+   * surface that was hit.
+   */
+  public final IntersectionRecord record = new IntersectionRecord();
+
+  /** Acceleration structures: traversal stack, grown on demand. */
+  public int[] stack = new int[64];
+
+  /**
+   * Acceleration structures: state a structure keeps from ray to ray, such as
+   * Grid's mailbox, and the structure it belongs to.  A workspace traces one
+   * scene at a time, so one slot is enough; a structure finding another owner
+   * here makes its own state and takes the slot over.
+   */
+  public Object traversalOwner = null;
+  public Object traversal = null;
+
+  /** Shader.isShadowed: the shadow ray and its direction. */
+  public final Ray shadowRay = new Ray();
+  public final Vector3 shadowDirection = new Vector3();
+
+  /** Shader.isShadowed: the surface that last blocked each light, by light index. */
+  public Surface[] occluders = new Surface[0];
+  
+  /** If false, isShadowed always does a full scene query. */
+  public boolean cacheOccluders = true;
+
+  /**
+   * Shader.isShadowed: if not null, bit i of shadowMask[i / 64] is set for every
+   * light i found blocked, or, with replayShadows, read instead of tracing the
+   * shadow ray.  Kept by RayTracerWorker for a GBuffer.
+   */
+  public long[] shadowMask = null;
+  public boolean replayShadows = false;
+  
+  /** Shadow ray statistics: rays cast, rays blocked, cached occluders tried, and tries that hit. */
+  public long shadowRays = 0;
+  public long shadowsBlocked = 0;
+  public long occluderTests = 0;
+  public long occluderHits = 0;
+  
+  /** Primary ray statistics, kept by RayTracerWorker: rays traced and rays that hit a surface. */
+  public long primaryRays = 0;
+  public long primaryHits = 0;
+  
+  /**
+   * Intersection tests and hits by Surface.classIndex, counted wherever the scene
+   * or an acceleration structure tests one of its surfaces (see count).  Members
+   * of groups and instances are not counted separately.
+   */
+  public final long[] surfaceTests = new long[Surface.MAX_CLASSES];
+  public final long[] surfaceHits = new long[Surface.MAX_CLASSES];
+
+  /** Shader.reflect: the light and half vectors. */
+  public final Vector3 toLight = new Vector3();
+  public final Vector3 halfVector = new Vector3();
+
+  /**
+   * Shader.shade: a light's contribution, and when sampling lights the
+   * contribution of every light and their running total, grown on demand.
+   */
+  public final Color lightColor = new Color();
+  public final Color keptColor = new Color();
+  public Color[] lightColors = new Color[0];
+  public double[] lightWeights = new double[0];
+
+  /** Shader.shade: running total of the lights' intensities, set by RayTracerWorker. */
+  public double[] lightPower = new double[0];
+
+  /** Shader.shade: state of the random numbers picking lights, seeded from each hit. */
+  public long randomState = 0;
+
+  /**
+   * Shader.shade: lights adding at most lightCutoff to every channel cast no
+   * shadow ray and are left out; with lightSamples above 0 at most that many
+   * lights are picked per hit.  Set by RayTracerWorker.
+   */
+  public double lightCutoff = 0;
+  public int lightSamples = 0;
+
+  /**
+   * Count an intersection test of surface s.  Used around the test itself:
+   * if (work.count(s, s.intersect(record, ray))).
+   *
+   * @return hit
+   */
+  public boolean count(Surface s, boolean hit) {
+    surfaceTests[s.classIndex]++;
+    if (hit) {
+      surfaceHits[s.classIndex]++;
+    }
+    return hit;
+  }
+
+  /**
+   * Count tests of n surfaces of one class made at once, as by a SphereBatch.
+   *
+   * @return hit
+   */
+  public boolean count(int classIndex, int n, boolean hit) {
+    surfaceTests[classIndex] += n;
+    if (hit) {
+      surfaceHits[classIndex]++;
+    }
+    return hit;
+  }
+
+  /**
+   * @return lightColors, at least n entries long, with lightWeights as long
+   */
+  public Color[] lightColors(int n) {
+    if (lightColors.length < n) {
+      lightColors = new Color[n];
+      for (int i = 0; i < n; i++) {
+        lightColors[i] = new Color();
+      }
+      lightWeights = new double[n];
+    }
+    return lightColors;
+  }
+
+  /**
+   * Start the random numbers over from a hit location, so that the same hit
+   * gets the same numbers on every thread and every render.
+   */
+  public void seedRandom(Point3 location) {
+    randomState = Double.doubleToLongBits(location.x);
+    randomState = randomState * 31 + Double.doubleToLongBits(location.y);
+    randomState = randomState * 31 + Double.doubleToLongBits(location.z);
+  }
+
+  /**
+   * @return the next random number in [0, 1), by SplitMix64
+   */
+  public double nextRandom() {
+    long z = randomState += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return ((z ^ (z >>> 31)) >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * @return the traversal stack, at least size entries long
+   */
+  public int[] stack(int size) {
+    if (stack.length < size) {
+      stack = new int[size];
+    }
+    return stack;
+  }
+}
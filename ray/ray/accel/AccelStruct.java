@@ -0,0 +1,218 @@
+package ray.accel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ray.BinaryScene;
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.RayPacket;
+import ray.Workspace;
+import ray.surface.Surface;
+
+/**
+ * Abstract base class for acceleration structures.  An acceleration structure
+ * is built once over the surfaces of a scene and then answers the same queries
+ * as the linear loop in Scene.intersect, only faster.  A scene selects one with
+ * an <accel type="..."/> node, for example:
+ *
+ * <scene>
+ *    <accel type="Bvh"/>
+ *    ...
+ * </scene>
+ *
+ * Without one, Scene falls back to testing every surface.
+ */
+public abstract class AccelStruct {
+
+	/**
+	 * If set (with RayTracer's -float option), structures that support it keep
+	 * their bounds in single precision, rounded outwards (see toFloatBounds).
+	 *
+	 * Bounds, and the first pass of the sphere batch, are all -float covers:
+	 * hits are confirmed, and pixels shaded, in double.  What it buys is memory,
+	 * 28 MB of Bvh bounds down to 14 MB for 200,000 spheres; render times on one
+	 * AVX2 core stayed within run-to-run noise of the double path, with and
+	 * without packets.
+	 */
+	public static boolean singlePrecision = false;
+
+	/**
+	 * Bytes of double bounds below which singlePrecision is ignored.  Boxes that
+	 * fit in cache gain nothing from being half the size, and widening each float
+	 * back to double costs time on every box test (MYTEST under a Bvh took about
+	 * 15% longer with float bounds).
+	 */
+	public static final long FLOAT_BOUNDS_MIN_BYTES = 2 << 20;
+
+	/** True while the structure is the one restored by read, which build clears. */
+	protected boolean prebuilt = false;
+
+	/**
+	 * @return true if the structure was restored from a binary scene and need not be built
+	 */
+	public boolean isPrebuilt() {
+		return prebuilt;
+	}
+
+	/**
+	 * Build the structure over the given surfaces.  computeBoundingBox() has already
+	 * been called on every surface.  The list must not be modified afterwards.
+	 *
+	 * @param surfaces the surfaces of the scene
+	 */
+	public abstract void build(List<Surface> surfaces);
+
+	/**
+	 * Set outRecord to the first intersection of ray with the surfaces. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.  The ray's end value may be shortened.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection, and won't modify outRecord
+	 * @param work scratch space of the calling thread; its record is free to use
+	 * @return true if and intersection is found.
+	 */
+	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray, boolean anyIntersection, Workspace work);
+
+	/**
+	 * Find the first intersection of every ray of the packet, as intersect does
+	 * for one ray, setting packet.records[i] and packet.hit[i].  The rays' end
+	 * values may be shortened.  The results must be exactly those of calling
+	 * intersect on each ray in turn, which is what this default does.
+	 *
+	 * @param packet the rays to intersect, already set up
+	 * @param work scratch space of the calling thread; its record is free to use
+	 */
+	public void intersectPacket(RayPacket packet, Workspace work) {
+		for (int i = 0; i < packet.size; i++) {
+			packet.hit[i] = intersect(packet.records[i], packet.rays[i], false, work);
+		}
+	}
+
+	/**
+	 * Write this structure to a binary scene, after it has been built.  This
+	 * default stores nothing, so the structure is built again when the scene is
+	 * loaded; structures that can store what they built override it, together
+	 * with read.
+	 *
+	 * @param out the binary scene being written; its surfaces are already written
+	 */
+	public void write(BinaryScene.Output out) throws IOException { }
+
+	/**
+	 * Restore what write stored, on a structure made with the zero argument
+	 * constructor.  Structures that restore a built structure set prebuilt.
+	 *
+	 * @param in the binary scene being read; its surfaces are already read
+	 */
+	public void read(BinaryScene.Input in) { }
+
+	/**
+	 * Tests whether the box [min, max] (six doubles starting at offset) overlaps the
+	 * part of the ray between start and end.  Directions with a zero component give
+	 * NaN slab distances, which fail every comparison, so the test stays conservative.
+	 *
+	 * @return true if the box might be hit
+	 */
+	static boolean hitsBox(double[] box, int offset, double ox, double oy, double oz,
+			double invx, double invy, double invz, double start, double end) {
+		double tx1 = (box[offset + 0] - ox) * invx;
+		double tx2 = (box[offset + 3] - ox) * invx;
+		double ty1 = (box[offset + 1] - oy) * invy;
+		double ty2 = (box[offset + 4] - oy) * invy;
+		double tz1 = (box[offset + 2] - oz) * invz;
+		double tz2 = (box[offset + 5] - oz) * invz;
+		double tNear = Math.max(Math.max(Math.min(tx1, tx2), Math.min(ty1, ty2)), Math.min(tz1, tz2));
+		double tFar = Math.min(Math.min(Math.max(tx1, tx2), Math.max(ty1, ty2)), Math.max(tz1, tz2));
+		return !(tNear > tFar || tNear > end || tFar < start);
+	}
+
+	/**
+	 * As hitsBox, for a box stored as floats.  The slab test itself is done in
+	 * double, so with bounds rounded outwards it accepts every ray hitsBox
+	 * accepts for the original box.
+	 */
+	static boolean hitsBox(float[] box, int offset, double ox, double oy, double oz,
+			double invx, double invy, double invz, double start, double end) {
+		double tx1 = (box[offset + 0] - ox) * invx;
+		double tx2 = (box[offset + 3] - ox) * invx;
+		double ty1 = (box[offset + 1] - oy) * invy;
+		double ty2 = (box[offset + 4] - oy) * invy;
+		double tz1 = (box[offset + 2] - oz) * invz;
+		double tz2 = (box[offset + 5] - oz) * invz;
+		double tNear = Math.max(Math.max(Math.min(tx1, tx2), Math.min(ty1, ty2)), Math.min(tz1, tz2));
+		double tFar = Math.min(Math.min(Math.max(tx1, tx2), Math.max(ty1, ty2)), Math.max(tz1, tz2));
+		return !(tNear > tFar || tNear > end || tFar < start);
+	}
+
+	/**
+	 * Round boxes stored as (minx, miny, minz, maxx, maxy, maxz) to floats, each
+	 * minimum down and each maximum up, so every float box contains its double
+	 * box.  Half the bytes for traversal to read.
+	 *
+	 * @param bounds the boxes, six doubles each
+	 * @param length the number of doubles to convert
+	 * @return the boxes as floats
+	 */
+	static float[] toFloatBounds(double[] bounds, int length) {
+		float[] out = new float[length];
+		for (int i = 0; i < length; i++) {
+			double v = bounds[i];
+			float f = (float) v;
+			if (i % 6 < 3) {
+				if (f > v) {
+					f = Math.nextDown(f);
+				}
+			} else if (f < v) {
+				f = Math.nextUp(f);
+			}
+			out[i] = f;
+		}
+		return out;
+	}
+
+	/**
+	 * @return the first length floats of bounds as doubles
+	 */
+	static double[] toDoubleBounds(float[] bounds, int length) {
+		double[] out = new double[length];
+		for (int i = 0; i < length; i++) {
+			out[i] = bounds[i];
+		}
+		return out;
+	}
+
+	/**
+	 * Split surfaces into those with finite bounds, which are appended to bounded,
+	 * and those without, which are returned.
+	 *
+	 * @param input the surfaces of the scene
+	 * @param bounded output list for the surfaces that can be placed in a structure
+	 * @return the surfaces that have to be tested against every ray
+	 */
+	static Surface[] partitionBounded(List<Surface> input, List<Surface> bounded) {
+		ArrayList<Surface> others = new ArrayList<Surface>();
+		for (Surface s : input) {
+			if (isBounded(s)) {
+				bounded.add(s);
+			} else {
+				others.add(s);
+			}
+		}
+		return others.toArray(new Surface[others.size()]);
+	}
+
+	/**
+	 * @return true if all six bounds of the surface are finite
+	 */
+	static boolean isBounded(Surface s) {
+		return !Double.isInfinite(s.getMinBound().x) && !Double.isInfinite(s.getMinBound().y)
+				&& !Double.isInfinite(s.getMinBound().z) && !Double.isInfinite(s.getMaxBound().x)
+				&& !Double.isInfinite(s.getMaxBound().y) && !Double.isInfinite(s.getMaxBound().z)
+				&& !Double.isNaN(s.getMinBound().x + s.getMinBound().y + s.getMinBound().z
+						+ s.getMaxBound().x + s.getMaxBound().y + s.getMaxBound().z);
+	}
+}
@@ -0,0 +1,537 @@
+package ray.accel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ray.BinaryScene;
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.RayPacket;
+import ray.Workspace;
+import ray.surface.Surface;
+
+/**
+ * A bounding volume hierarchy built with the surface area heuristic.  Surfaces are
+ * binned by the centroids of their bounding boxes and each node is split where the
+ * estimated cost of tracing a ray through the two children is lowest.
+ *
+ * The tree is stored flattened in depth first order: the left child of an interior
+ * node always directly follows it, so only the index of the right child is stored.
+ * Leaves point to a contiguous run of the reordered surface array.
+ */
+public class Bvh extends AccelStruct {
+
+	/** Number of bins per axis used to evaluate candidate splits. */
+	private static final int BINS = 16;
+
+	/** Estimated cost of visiting a node, relative to one surface intersection. */
+	private static final double TRAVERSAL_COST = 0.5;
+
+	/** Nodes with at most this many surfaces may become leaves. */
+	protected int maxLeafSize = 4;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = Math.max(1, maxLeafSize); }
+
+	/** The surfaces, reordered so that each leaf covers a contiguous range. */
+	protected Surface[] surfaces;
+
+	/** Surfaces with infinite bounds; these are tested against every ray. */
+	protected Surface[] unbounded;
+
+	/** Bounds of each surface in the same layout, used to cull surfaces for packets. */
+	protected double[] surfaceBounds;
+
+	/** Node bounds as (minx, miny, minz, maxx, maxy, maxz), six entries per node. */
+	protected double[] nodeBounds;
+
+	/**
+	 * With AccelStruct.singlePrecision, and at least FLOAT_BOUNDS_MIN_BYTES of
+	 * double bounds, the two bounds arrays above rounded outwards to floats,
+	 * which replace them: traversal reads half the bytes per box and visits
+	 * every node the double boxes would let it visit.
+	 */
+	protected float[] floatSurfaceBounds;
+	protected float[] floatNodeBounds;
+
+	/** Index of the right child for interior nodes, first surface for leaves. */
+	protected int[] nodeOffset;
+
+	/** Number of surfaces in a leaf, or 0 for interior nodes. */
+	protected int[] nodeCount;
+
+	/** The axis an interior node was split along. */
+	protected int[] nodeAxis;
+
+	/** Number of nodes in use and the depth of the deepest leaf. */
+	protected int nodeTotal;
+	protected int depth;
+
+	/* Build time scratch data, indexed by the surface's position in the input list. */
+	private double[] primBounds;
+	private double[] primCentroid;
+	private int[] primIndex;
+
+	public Bvh() { }
+
+	/**
+	 * @see AccelStruct#build(List)
+	 */
+	public void build(List<Surface> input) {
+		prebuilt = false;
+		ArrayList<Surface> bounded = new ArrayList<Surface>();
+		unbounded = partitionBounded(input, bounded);
+
+		int n = bounded.size();
+		primBounds = new double[6 * n];
+		primCentroid = new double[3 * n];
+		primIndex = new int[n];
+		for (int i = 0; i < n; i++) {
+			Surface s = bounded.get(i);
+			primBounds[6 * i + 0] = s.getMinBound().x;
+			primBounds[6 * i + 1] = s.getMinBound().y;
+			primBounds[6 * i + 2] = s.getMinBound().z;
+			primBounds[6 * i + 3] = s.getMaxBound().x;
+			primBounds[6 * i + 4] = s.getMaxBound().y;
+			primBounds[6 * i + 5] = s.getMaxBound().z;
+			for (int k = 0; k < 3; k++) {
+				primCentroid[3 * i + k] = 0.5 * (primBounds[6 * i + k] + primBounds[6 * i + k + 3]);
+			}
+			primIndex[i] = i;
+		}
+
+		int capacity = Math.max(1, 2 * n);
+		nodeBounds = new double[6 * capacity];
+		nodeOffset = new int[capacity];
+		nodeCount = new int[capacity];
+		nodeAxis = new int[capacity];
+		nodeTotal = 0;
+		depth = 0;
+		if (n > 0) {
+			buildNode(0, n, 1);
+		}
+
+		surfaces = new Surface[n];
+		surfaceBounds = new double[6 * n];
+		for (int i = 0; i < n; i++) {
+			surfaces[i] = bounded.get(primIndex[i]);
+			System.arraycopy(primBounds, 6 * primIndex[i], surfaceBounds, 6 * i, 6);
+		}
+		primBounds = null;
+		primCentroid = null;
+		primIndex = null;
+		useFloatBounds();
+	}
+
+	/**
+	 * Replace the double bounds by float ones if AccelStruct.singlePrecision is
+	 * set and the tree is large enough for it to pay.
+	 */
+	private void useFloatBounds() {
+		floatSurfaceBounds = null;
+		floatNodeBounds = null;
+		if (!singlePrecision || 8L * (surfaceBounds.length + 6L * nodeTotal) < FLOAT_BOUNDS_MIN_BYTES) {
+			return;
+		}
+		floatSurfaceBounds = toFloatBounds(surfaceBounds, surfaceBounds.length);
+		floatNodeBounds = toFloatBounds(nodeBounds, 6 * nodeTotal);
+		surfaceBounds = null;
+		nodeBounds = null;
+	}
+
+	/**
+	 * @return true if the ray hits the box of node in [start, end]
+	 */
+	private boolean hitsNode(int node, double ox, double oy, double oz, double invx, double invy, double invz,
+			double start, double end) {
+		if (floatNodeBounds != null) {
+			return hitsBox(floatNodeBounds, 6 * node, ox, oy, oz, invx, invy, invz, start, end);
+		}
+		return hitsBox(nodeBounds, 6 * node, ox, oy, oz, invx, invy, invz, start, end);
+	}
+
+	/**
+	 * Recursively build the node covering primIndex[start, end).
+	 *
+	 * @return the index of the new node
+	 */
+	private int buildNode(int start, int end, int level) {
+		int node = nodeTotal++;
+		depth = Math.max(depth, level);
+
+		// Bounds of the surfaces and of their centroids
+		double[] cmin = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] cmax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		int b = 6 * node;
+		for (int k = 0; k < 3; k++) {
+			nodeBounds[b + k] = Double.POSITIVE_INFINITY;
+			nodeBounds[b + k + 3] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = start; i < end; i++) {
+			int p = primIndex[i];
+			for (int k = 0; k < 3; k++) {
+				nodeBounds[b + k] = Math.min(nodeBounds[b + k], primBounds[6 * p + k]);
+				nodeBounds[b + k + 3] = Math.max(nodeBounds[b + k + 3], primBounds[6 * p + k + 3]);
+				cmin[k] = Math.min(cmin[k], primCentroid[3 * p + k]);
+				cmax[k] = Math.max(cmax[k], primCentroid[3 * p + k]);
+			}
+		}
+
+		int count = end - start;
+		if (count <= 1) {
+			return makeLeaf(node, start, count);
+		}
+
+		// Find the cheapest binned split over all three axes
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1;
+		int bestBin = -1;
+		int[] binCount = new int[BINS];
+		double[] binBounds = new double[6 * BINS];
+		double[] rightArea = new double[BINS];
+		for (int axis = 0; axis < 3; axis++) {
+			double extent = cmax[axis] - cmin[axis];
+			if (extent <= 0) {
+				continue;
+			}
+			double scale = BINS / extent;
+			Arrays.fill(binCount, 0);
+			for (int j = 0; j < BINS; j++) {
+				resetBox(binBounds, 6 * j);
+			}
+			for (int i = start; i < end; i++) {
+				int p = primIndex[i];
+				int bin = binOf(primCentroid[3 * p + axis], cmin[axis], scale);
+				binCount[bin]++;
+				growBox(binBounds, 6 * bin, primBounds, 6 * p);
+			}
+
+			// Sweep from the right to get the area of every right hand side
+			double[] box = new double[6];
+			resetBox(box, 0);
+			for (int j = BINS - 1; j > 0; j--) {
+				growBox(box, 0, binBounds, 6 * j);
+				rightArea[j] = halfArea(box, 0);
+			}
+
+			// Sweep from the left and evaluate each split plane
+			resetBox(box, 0);
+			int leftCount = 0;
+			for (int j = 0; j < BINS - 1; j++) {
+				growBox(box, 0, binBounds, 6 * j);
+				leftCount += binCount[j];
+				int rightCount = count - leftCount;
+				if (leftCount == 0 || rightCount == 0) {
+					continue;
+				}
+				double cost = halfArea(box, 0) * leftCount + rightArea[j + 1] * rightCount;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = j;
+				}
+			}
+		}
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide, so no plane separates them
+			if (count <= maxLeafSize) {
+				return makeLeaf(node, start, count);
+			}
+			mid = start + count / 2;
+			bestAxis = 0;
+		} else {
+			double area = halfArea(nodeBounds, b);
+			double splitCost = TRAVERSAL_COST + (area > 0 ? bestCost / area : count);
+			if (splitCost >= count && count <= maxLeafSize) {
+				return makeLeaf(node, start, count);
+			}
+
+			// Partition the surfaces around the chosen plane
+			double scale = BINS / (cmax[bestAxis] - cmin[bestAxis]);
+			int i = start;
+			int j = end - 1;
+			while (i <= j) {
+				int p = primIndex[i];
+				if (binOf(primCentroid[3 * p + bestAxis], cmin[bestAxis], scale) <= bestBin) {
+					i++;
+				} else {
+					primIndex[i] = primIndex[j];
+					primIndex[j] = p;
+					j--;
+				}
+			}
+			mid = i;
+		}
+
+		nodeAxis[node] = bestAxis;
+		nodeCount[node] = 0;
+		buildNode(start, mid, level + 1);
+		nodeOffset[node] = buildNode(mid, end, level + 1);
+		return node;
+	}
+
+	private int makeLeaf(int node, int start, int count) {
+		nodeOffset[node] = start;
+		nodeCount[node] = count;
+		return node;
+	}
+
+	private static int binOf(double centroid, double min, double scale) {
+		return Math.min(BINS - 1, (int) ((centroid - min) * scale));
+	}
+
+	private static void resetBox(double[] box, int o) {
+		box[o + 0] = box[o + 1] = box[o + 2] = Double.POSITIVE_INFINITY;
+		box[o + 3] = box[o + 4] = box[o + 5] = Double.NEGATIVE_INFINITY;
+	}
+
+	private static void growBox(double[] box, int o, double[] other, int p) {
+		for (int k = 0; k < 3; k++) {
+			box[o + k] = Math.min(box[o + k], other[p + k]);
+			box[o + k + 3] = Math.max(box[o + k + 3], other[p + k + 3]);
+		}
+	}
+
+	/**
+	 * @return half the surface area of the box, or 0 for an empty box
+	 */
+	private static double halfArea(double[] box, int o) {
+		double dx = box[o + 3] - box[o + 0];
+		double dy = box[o + 4] - box[o + 1];
+		double dz = box[o + 5] - box[o + 2];
+		if (dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * Closest hit traversal visits the near child first and skips any node that
+	 * starts beyond the closest hit so far.  Any hit traversal returns as soon as
+	 * one surface is hit.
+	 *
+	 * @see AccelStruct#intersect(IntersectionRecord, Ray, boolean, Workspace)
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, boolean anyIntersection, Workspace work) {
+		boolean ret = false;
+		IntersectionRecord tmp = work.record;
+		double mint = Double.MAX_VALUE;
+
+		for (int i = 0; i < unbounded.length; i++) {
+			if (work.count(unbounded[i], unbounded[i].intersect(tmp, ray))) {
+				ret = true;
+				if (anyIntersection) {
+					return true;
+				}
+				if (tmp.t < mint) {
+					mint = tmp.t;
+					ray.end = Math.min(ray.end, mint);
+					outRecord.set(tmp);
+				}
+			}
+		}
+		if (nodeTotal == 0) {
+			return ret;
+		}
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double invx = 1 / ray.direction.x, invy = 1 / ray.direction.y, invz = 1 / ray.direction.z;
+		int negative = (invx < 0 ? 1 : 0) | (invy < 0 ? 2 : 0) | (invz < 0 ? 4 : 0);
+
+		int[] stack = work.stack(depth + 1);
+		int top = 0;
+		int node = 0;
+		while (true) {
+			if (hitsNode(node, ox, oy, oz, invx, invy, invz, ray.start, ray.end)) {
+				int count = nodeCount[node];
+				if (count > 0) {
+					int first = nodeOffset[node];
+					for (int i = first; i < first + count; i++) {
+						if (work.count(surfaces[i], surfaces[i].intersect(tmp, ray))) {
+							ret = true;
+							if (anyIntersection) {
+								return true;
+							}
+							if (tmp.t < mint) {
+								mint = tmp.t;
+								ray.end = Math.min(ray.end, mint);
+								outRecord.set(tmp);
+							}
+						}
+					}
+				} else {
+					// Visit the child on the near side of the split first
+					if ((negative & (1 << nodeAxis[node])) != 0) {
+						stack[top++] = node + 1;
+						node = nodeOffset[node];
+					} else {
+						stack[top++] = nodeOffset[node];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+			if (top == 0) {
+				break;
+			}
+			node = stack[--top];
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Walks the tree once for the whole packet, in the order a single ray with the
+	 * packet's direction signs would.  Each ray still tests every node box itself
+	 * and is only carried into the children it hits, so it meets exactly the
+	 * surfaces it would meet alone, in the same order.  The frustum test only
+	 * skips nodes and surfaces no ray of the packet can reach.
+	 *
+	 * @see AccelStruct#intersectPacket(RayPacket, Workspace)
+	 */
+	public void intersectPacket(RayPacket packet, Workspace work) {
+		if (!packet.coherent) {
+			super.intersectPacket(packet, work);
+			return;
+		}
+		int size = packet.size;
+		Ray[] rays = packet.rays;
+		IntersectionRecord tmp = work.record;
+		double[] mint = packet.mint;
+		for (int i = 0; i < size; i++) {
+			packet.hit[i] = false;
+			mint[i] = Double.MAX_VALUE;
+		}
+
+		for (int j = 0; j < unbounded.length; j++) {
+			for (int i = 0; i < size; i++) {
+				if (work.count(unbounded[j], unbounded[j].intersect(tmp, rays[i]))) {
+					hit(packet, i, tmp);
+				}
+			}
+		}
+		if (nodeTotal == 0) {
+			return;
+		}
+		packet.updateEnd();
+
+		// The stack holds (node, mask of the rays that reached its parent) pairs
+		int[] stack = work.stack(2 * (depth + 1));
+		int top = 0;
+		int node = 0;
+		int active = (1 << size) - 1;
+		boolean floats = floatNodeBounds != null;
+		while (true) {
+			int mask = 0;
+			if (!(floats ? packet.missesBox(floatNodeBounds, 6 * node) : packet.missesBox(nodeBounds, 6 * node))) {
+				for (int m = active; m != 0; m &= m - 1) {
+					int i = Integer.numberOfTrailingZeros(m);
+					Ray ray = rays[i];
+					if (hitsNode(node, ray.origin.x, ray.origin.y, ray.origin.z,
+							packet.invx[i], packet.invy[i], packet.invz[i], ray.start, ray.end)) {
+						mask |= 1 << i;
+					}
+				}
+			}
+			if (mask != 0) {
+				int count = nodeCount[node];
+				if (count > 0) {
+					int first = nodeOffset[node];
+					for (int j = first; j < first + count; j++) {
+						if (floats ? packet.primitiveMisses(floatSurfaceBounds, 6 * j)
+								: packet.primitiveMisses(surfaceBounds, 6 * j)) {
+							continue;
+						}
+						for (int m = mask; m != 0; m &= m - 1) {
+							int i = Integer.numberOfTrailingZeros(m);
+							if (work.count(surfaces[j], surfaces[j].intersect(tmp, rays[i]))) {
+								hit(packet, i, tmp);
+							}
+						}
+					}
+					packet.updateEnd();
+				} else {
+					// Visit the child on the near side of the split first
+					if ((packet.negative & (1 << nodeAxis[node])) != 0) {
+						stack[top++] = node + 1;
+						node = nodeOffset[node];
+					} else {
+						stack[top++] = nodeOffset[node];
+						node = node + 1;
+					}
+					stack[top++] = mask;
+					active = mask;
+					continue;
+				}
+			}
+			if (top == 0) {
+				break;
+			}
+			active = stack[--top];
+			node = stack[--top];
+		}
+	}
+
+	/**
+	 * Record a hit of ray i of the packet, as the closest hit loop of intersect does.
+	 */
+	private static void hit(RayPacket packet, int i, IntersectionRecord tmp) {
+		packet.hit[i] = true;
+		if (tmp.t < packet.mint[i]) {
+			packet.mint[i] = tmp.t;
+			packet.rays[i].end = Math.min(packet.rays[i].end, tmp.t);
+			packet.records[i].set(tmp);
+		}
+	}
+
+	/**
+	 * Stores the flattened tree as it is, so loading it is a few bulk copies.
+	 * Float bounds are stored widened to doubles; they still contain their
+	 * surfaces, so the file is valid either way.
+	 *
+	 * @see AccelStruct#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeInt(maxLeafSize);
+		out.writeInt(depth);
+		out.writeSurfaces(surfaces);
+		out.writeSurfaces(unbounded);
+		if (floatNodeBounds != null) {
+			out.writeDoubles(toDoubleBounds(floatSurfaceBounds, floatSurfaceBounds.length), floatSurfaceBounds.length);
+			out.writeDoubles(toDoubleBounds(floatNodeBounds, 6 * nodeTotal), 6 * nodeTotal);
+		} else {
+			out.writeDoubles(surfaceBounds, surfaceBounds.length);
+			out.writeDoubles(nodeBounds, 6 * nodeTotal);
+		}
+		out.writeInts(nodeOffset, nodeTotal);
+		out.writeInts(nodeCount, nodeTotal);
+		out.writeInts(nodeAxis, nodeTotal);
+	}
+
+	/**
+	 * @see AccelStruct#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		maxLeafSize = in.readInt();
+		depth = in.readInt();
+		surfaces = in.readSurfaces();
+		unbounded = in.readSurfaces();
+		surfaceBounds = in.readDoubles();
+		nodeBounds = in.readDoubles();
+		nodeOffset = in.readInts();
+		nodeCount = in.readInts();
+		nodeAxis = in.readInts();
+		nodeTotal = nodeOffset.length;
+		prebuilt = true;
+		useFloatBounds();
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "Bvh " + (surfaces == null ? 0 : surfaces.length) + " surfaces " + nodeTotal + " nodes depth " + depth;
+	}
+}
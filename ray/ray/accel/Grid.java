@@ -0,0 +1,368 @@
+package ray.accel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ray.BinaryScene;
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.Workspace;
+import ray.surface.Surface;
+
+/**
+ * A uniform grid over the bounds of the scene.  Every surface is listed in each
+ * cell its bounding box overlaps, and rays walk the cells they pass through in
+ * order using a 3D-DDA.  Cheap to build and fast for dense, evenly spread scenes.
+ *
+ * The resolution is chosen so that there are about density cells per surface,
+ * with cells as close to cubes as the scene bounds allow.  Since a surface can
+ * be listed in many cells, each Workspace keeps a mailbox recording the last ray
+ * every surface was tested against, so no surface is tested twice per ray.
+ */
+public class Grid extends AccelStruct {
+
+	/** Upper limit on the number of cells along one axis. */
+	private static final int MAX_RESOLUTION = 256;
+
+	/** Target number of cells per surface. */
+	protected double density = 2.0;
+	public void setDensity(double density) { this.density = density; }
+
+	/** The bounded surfaces. Cells refer to them by index. */
+	protected Surface[] surfaces;
+
+	/** Surfaces with infinite bounds; these are tested against every ray. */
+	protected Surface[] unbounded;
+
+	/** The bounds of the grid. */
+	protected final double[] bounds = new double[6];
+
+	/** Number of cells along x, y and z. */
+	protected final int[] resolution = new int[3];
+
+	/** Size of a cell along x, y and z. */
+	protected final double[] cellSize = new double[3];
+
+	/** cellItems[cellStart[c], cellStart[c + 1]) are the surfaces overlapping cell c. */
+	protected int[] cellStart;
+	protected int[] cellItems;
+
+	public Grid() { }
+
+	/**
+	 * @see AccelStruct#build(List)
+	 */
+	public void build(List<Surface> input) {
+		prebuilt = false;
+		ArrayList<Surface> bounded = new ArrayList<Surface>();
+		unbounded = partitionBounded(input, bounded);
+		surfaces = bounded.toArray(new Surface[bounded.size()]);
+		final int n = surfaces.length;
+
+		for (int k = 0; k < 3; k++) {
+			bounds[k] = Double.POSITIVE_INFINITY;
+			bounds[k + 3] = Double.NEGATIVE_INFINITY;
+		}
+		for (Surface s : surfaces) {
+			bounds[0] = Math.min(bounds[0], s.getMinBound().x);
+			bounds[1] = Math.min(bounds[1], s.getMinBound().y);
+			bounds[2] = Math.min(bounds[2], s.getMinBound().z);
+			bounds[3] = Math.max(bounds[3], s.getMaxBound().x);
+			bounds[4] = Math.max(bounds[4], s.getMaxBound().y);
+			bounds[5] = Math.max(bounds[5], s.getMaxBound().z);
+		}
+		if (n == 0) {
+			for (int k = 0; k < 6; k++) {
+				bounds[k] = 0;
+			}
+		}
+
+		// Pad flat extents so every axis has a usable cell size
+		double[] extent = new double[3];
+		double maxExtent = 0;
+		for (int k = 0; k < 3; k++) {
+			maxExtent = Math.max(maxExtent, bounds[k + 3] - bounds[k]);
+		}
+		double pad = Math.max(maxExtent, 1) * 1e-6;
+		double volume = 1;
+		for (int k = 0; k < 3; k++) {
+			bounds[k] -= pad;
+			bounds[k + 3] += pad;
+			extent[k] = bounds[k + 3] - bounds[k];
+			volume *= extent[k];
+		}
+
+		// Cells per unit length such that the grid has about density * n cells
+		double cellsPerUnit = Math.cbrt(density * Math.max(n, 1) / volume);
+		for (int k = 0; k < 3; k++) {
+			resolution[k] = (int) Math.max(1, Math.min(MAX_RESOLUTION, Math.round(extent[k] * cellsPerUnit)));
+			cellSize[k] = extent[k] / resolution[k];
+		}
+		int cells = resolution[0] * resolution[1] * resolution[2];
+
+		// Count the surfaces in each cell, turn the counts into offsets, then fill
+		int[] range = new int[6];
+		cellStart = new int[cells + 1];
+		for (int i = 0; i < n; i++) {
+			cellRange(surfaces[i], range);
+			for (int z = range[2]; z <= range[5]; z++) {
+				for (int y = range[1]; y <= range[4]; y++) {
+					for (int x = range[0]; x <= range[3]; x++) {
+						cellStart[cellIndex(x, y, z) + 1]++;
+					}
+				}
+			}
+		}
+		for (int c = 0; c < cells; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		cellItems = new int[cellStart[cells]];
+		int[] fill = new int[cells];
+		for (int i = 0; i < n; i++) {
+			cellRange(surfaces[i], range);
+			for (int z = range[2]; z <= range[5]; z++) {
+				for (int y = range[1]; y <= range[4]; y++) {
+					for (int x = range[0]; x <= range[3]; x++) {
+						int c = cellIndex(x, y, z);
+						cellItems[cellStart[c] + fill[c]++] = i;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the mailbox and DDA state of the thread owning work, made on its
+	 *         first ray through this grid or after the grid was rebuilt
+	 */
+	private Traversal traversal(Workspace work) {
+		if (work.traversalOwner == this) {
+			Traversal traversal = (Traversal) work.traversal;
+			if (traversal.stamps.length == surfaces.length) {
+				return traversal;
+			}
+		}
+		Traversal traversal = new Traversal(surfaces.length);
+		work.traversalOwner = this;
+		work.traversal = traversal;
+		return traversal;
+	}
+
+	/**
+	 * Set range to the (min x, min y, min z, max x, max y, max z) cell coordinates
+	 * overlapped by the bounding box of s.
+	 */
+	private void cellRange(Surface s, int[] range) {
+		range[0] = cellCoord(s.getMinBound().x, 0);
+		range[1] = cellCoord(s.getMinBound().y, 1);
+		range[2] = cellCoord(s.getMinBound().z, 2);
+		range[3] = cellCoord(s.getMaxBound().x, 0);
+		range[4] = cellCoord(s.getMaxBound().y, 1);
+		range[5] = cellCoord(s.getMaxBound().z, 2);
+	}
+
+	/**
+	 * @return the index of the cell containing v along axis, clamped to the grid
+	 */
+	private int cellCoord(double v, int axis) {
+		int i = (int) Math.floor((v - bounds[axis]) / cellSize[axis]);
+		return Math.max(0, Math.min(resolution[axis] - 1, i));
+	}
+
+	private int cellIndex(int x, int y, int z) {
+		return x + resolution[0] * (y + resolution[1] * z);
+	}
+
+	/**
+	 * Walks the cells along the ray from front to back.  Closest hit traversal
+	 * stops once the closest hit so far lies before the next cell.
+	 *
+	 * @see AccelStruct#intersect(IntersectionRecord, Ray, boolean, Workspace)
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, boolean anyIntersection, Workspace work) {
+		boolean ret = false;
+		IntersectionRecord tmp = work.record;
+		double mint = Double.MAX_VALUE;
+
+		for (int i = 0; i < unbounded.length; i++) {
+			if (work.count(unbounded[i], unbounded[i].intersect(tmp, ray))) {
+				ret = true;
+				if (anyIntersection) {
+					return true;
+				}
+				if (tmp.t < mint) {
+					mint = tmp.t;
+					ray.end = Math.min(ray.end, mint);
+					outRecord.set(tmp);
+				}
+			}
+		}
+		if (surfaces.length == 0) {
+			return ret;
+		}
+
+		Traversal traversal = traversal(work);
+		double[] origin = traversal.origin;
+		double[] direction = traversal.direction;
+		origin[0] = ray.origin.x;
+		origin[1] = ray.origin.y;
+		origin[2] = ray.origin.z;
+		direction[0] = ray.direction.x;
+		direction[1] = ray.direction.y;
+		direction[2] = ray.direction.z;
+
+		// Clip the ray to the grid bounds
+		double tEnter = ray.start;
+		double tExit = ray.end;
+		for (int k = 0; k < 3; k++) {
+			double inv = 1 / direction[k];
+			double t1 = (bounds[k] - origin[k]) * inv;
+			double t2 = (bounds[k + 3] - origin[k]) * inv;
+			if (direction[k] == 0) {
+				if (origin[k] < bounds[k] || origin[k] > bounds[k + 3]) {
+					return ret;
+				}
+				continue;
+			}
+			tEnter = Math.max(tEnter, Math.min(t1, t2));
+			tExit = Math.min(tExit, Math.max(t1, t2));
+		}
+		if (tEnter > tExit) {
+			return ret;
+		}
+
+		// Set up the DDA from the cell containing the entry point
+		int[] cell = traversal.cell;
+		int[] step = traversal.step;
+		int[] out = traversal.out;
+		double[] tNext = traversal.tNext;
+		double[] tDelta = traversal.tDelta;
+		for (int k = 0; k < 3; k++) {
+			cell[k] = cellCoord(origin[k] + tEnter * direction[k], k);
+			if (direction[k] > 0) {
+				step[k] = 1;
+				out[k] = resolution[k];
+				tNext[k] = (bounds[k] + (cell[k] + 1) * cellSize[k] - origin[k]) / direction[k];
+				tDelta[k] = cellSize[k] / direction[k];
+			} else if (direction[k] < 0) {
+				step[k] = -1;
+				out[k] = -1;
+				tNext[k] = (bounds[k] + cell[k] * cellSize[k] - origin[k]) / direction[k];
+				tDelta[k] = -cellSize[k] / direction[k];
+			} else {
+				step[k] = 0;
+				out[k] = -1;
+				tNext[k] = Double.POSITIVE_INFINITY;
+				tDelta[k] = Double.POSITIVE_INFINITY;
+			}
+		}
+
+		int rayId = traversal.nextRay();
+		int[] stamps = traversal.stamps;
+		while (true) {
+			int c = cellIndex(cell[0], cell[1], cell[2]);
+			for (int j = cellStart[c]; j < cellStart[c + 1]; j++) {
+				int i = cellItems[j];
+				if (stamps[i] == rayId) {
+					continue;
+				}
+				stamps[i] = rayId;
+				if (work.count(surfaces[i], surfaces[i].intersect(tmp, ray))) {
+					ret = true;
+					if (anyIntersection) {
+						return true;
+					}
+					if (tmp.t < mint) {
+						mint = tmp.t;
+						ray.end = Math.min(ray.end, mint);
+						outRecord.set(tmp);
+					}
+				}
+			}
+
+			// Step into the neighbouring cell whose boundary is crossed first
+			int axis = tNext[0] < tNext[1] ? (tNext[0] < tNext[2] ? 0 : 2) : (tNext[1] < tNext[2] ? 1 : 2);
+			if (ray.end < tNext[axis] || tExit < tNext[axis]) {
+				break;
+			}
+			cell[axis] += step[axis];
+			if (cell[axis] == out[axis]) {
+				break;
+			}
+			tNext[axis] += tDelta[axis];
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Traversal state for one Workspace: the mailbox of ray stamps and the DDA
+	 * variables.  Ray ids only need to differ between consecutive rays, so when
+	 * the counter wraps the stamps are simply cleared.
+	 */
+	private static class Traversal {
+		final int[] stamps;
+		int ray = 0;
+
+		final double[] origin = new double[3];
+		final double[] direction = new double[3];
+		final int[] cell = new int[3];
+		final int[] step = new int[3];
+		final int[] out = new int[3];
+		final double[] tNext = new double[3];
+		final double[] tDelta = new double[3];
+
+		Traversal(int size) {
+			stamps = new int[size];
+		}
+
+		int nextRay() {
+			if (++ray == Integer.MAX_VALUE) {
+				Arrays.fill(stamps, 0);
+				ray = 1;
+			}
+			return ray;
+		}
+	}
+
+	/**
+	 * Stores the cell lists as they are, so loading them is a few bulk copies.
+	 *
+	 * @see AccelStruct#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeDouble(density);
+		out.writeSurfaces(surfaces);
+		out.writeSurfaces(unbounded);
+		out.writeDoubles(bounds, 6);
+		out.writeInts(resolution, 3);
+		out.writeDoubles(cellSize, 3);
+		out.writeInts(cellStart, cellStart.length);
+		out.writeInts(cellItems, cellItems.length);
+	}
+
+	/**
+	 * @see AccelStruct#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		density = in.readDouble();
+		surfaces = in.readSurfaces();
+		unbounded = in.readSurfaces();
+		System.arraycopy(in.readDoubles(), 0, bounds, 0, 6);
+		System.arraycopy(in.readInts(), 0, resolution, 0, 3);
+		System.arraycopy(in.readDoubles(), 0, cellSize, 0, 3);
+		cellStart = in.readInts();
+		cellItems = in.readInts();
+		prebuilt = true;
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "Grid " + resolution[0] + "x" + resolution[1] + "x" + resolution[2] + " "
+				+ (cellItems == null ? 0 : cellItems.length) + " references";
+	}
+}
@@ -1,5 +1,9 @@
 package ray.light;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
 import ray.math.Color;
 import ray.math.Point3;
 
@@ -25,6 +29,98 @@ public class Light {
 	 */
 	public Light() { }
 	
+	/**
+	 * Merge lights that lie within distance of each other into one light with
+	 * their summed intensity, placed at their centroid weighted by intensity.
+	 * Lights are taken in order, each joining the first merged light whose first
+	 * member is within distance, so a merged light spans at most twice distance.
+	 * With distance 0 only lights at exactly the same position are merged, and
+	 * they keep that position, so shading changes only by rounding.  Lights that
+	 * merge with no other are returned as they are.
+	 *
+	 * @param lights the lights to merge
+	 * @param distance how close lights must be to merge, 0 or more
+	 * @return the merged lights, in the order of their first members
+	 */
+	public static ArrayList<Light> merge(List<Light> lights, double distance) {
+		ArrayList<Light> seeds = new ArrayList<Light>();
+		ArrayList<ArrayList<Light>> members = new ArrayList<ArrayList<Light>>();
+		// Merged lights by the grid cell, of size distance, of their first member
+		HashMap<Long, ArrayList<Integer>> cells = new HashMap<Long, ArrayList<Integer>>();
+		int reach = distance > 0 ? 1 : 0;
+		for (Light light : lights) {
+			Point3 p = light.position;
+			long cx = cell(p.x, distance), cy = cell(p.y, distance), cz = cell(p.z, distance);
+			int found = -1;
+			for (long dx = -reach; dx <= reach && found < 0; dx++) {
+				for (long dy = -reach; dy <= reach && found < 0; dy++) {
+					for (long dz = -reach; dz <= reach && found < 0; dz++) {
+						ArrayList<Integer> candidates = cells.get(key(cx + dx, cy + dy, cz + dz));
+						if (candidates == null) {
+							continue;
+						}
+						for (int c : candidates) {
+							Point3 q = seeds.get(c).position;
+							double x = p.x - q.x, y = p.y - q.y, z = p.z - q.z;
+							if (x * x + y * y + z * z <= distance * distance) {
+								found = c;
+								break;
+							}
+						}
+					}
+				}
+			}
+			if (found < 0) {
+				found = seeds.size();
+				seeds.add(light);
+				members.add(new ArrayList<Light>());
+				Long key = key(cx, cy, cz);
+				if (!cells.containsKey(key)) {
+					cells.put(key, new ArrayList<Integer>());
+				}
+				cells.get(key).add(found);
+			}
+			members.get(found).add(light);
+		}
+		
+		ArrayList<Light> merged = new ArrayList<Light>();
+		for (int c = 0; c < seeds.size(); c++) {
+			ArrayList<Light> group = members.get(c);
+			if (group.size() == 1) {
+				merged.add(group.get(0));
+				continue;
+			}
+			Light light = new Light();
+			light.position.set(seeds.get(c).position);
+			light.intensity.set(0, 0, 0);
+			double x = 0, y = 0, z = 0, total = 0;
+			for (Light member : group) {
+				light.intensity.add(member.intensity);
+				double weight = member.intensity.r + member.intensity.g + member.intensity.b;
+				x += weight * member.position.x;
+				y += weight * member.position.y;
+				z += weight * member.position.z;
+				total += weight;
+			}
+			if (distance > 0 && total > 0) {
+				light.position.set(x / total, y / total, z / total);
+			}
+			merged.add(light);
+		}
+		return merged;
+	}
+	
+	/**
+	 * @return the grid cell of coordinate v, or v itself for distance 0
+	 */
+	private static long cell(double v, double distance) {
+		return distance > 0 ? (long) Math.floor(v / distance) : Double.doubleToLongBits(v + 0.0);
+	}
+	
+	private static Long key(long x, long y, long z) {
+		return (x * 73856093L) ^ (y * 19349663L) ^ (z * 83492791L);
+	}
+	
 	/**
 	 * @see Object#toString()
 	 */
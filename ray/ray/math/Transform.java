@@ -0,0 +1,213 @@
+package ray.math;
+
+/**
+ * An affine transformation of 3d space, stored as the top three rows of a 4x4
+ * matrix in row major order: m[0..3] is the first row, whose last entry is the
+ * x translation, and so on.  Follows the general contract of the math classes
+ * (see Tuple3): the destination of every method is the object it is called on.
+ */
+public class Transform {
+
+  /** The matrix entries, row major, three rows of four. */
+  public final double[] m = new double[12];
+
+  /**
+   * Default constructor.  Creates the identity.
+   */
+  public Transform() {
+
+    setIdentity();
+  }
+
+  /**
+   * Copy constructor.
+   * @param other the transform to copy
+   */
+  public Transform(Transform other) {
+
+    set(other);
+  }
+
+  /**
+   * Set this transform to the identity.
+   */
+  public void setIdentity() {
+
+    for (int i = 0; i < 12; i++) {
+      m[i] = 0;
+    }
+    m[0] = m[5] = m[10] = 1;
+  }
+
+  /**
+   * Copy other into this transform.
+   * @param other the transform to copy
+   */
+  public void set(Transform other) {
+
+    System.arraycopy(other.m, 0, m, 0, 12);
+  }
+
+  /**
+   * Set this transform from a row major matrix of 12 entries, or of 16 entries
+   * whose last row must be 0 0 0 1.
+   * @param values the matrix entries
+   */
+  public void set(double[] values) {
+
+    if (values.length != 12 && values.length != 16) {
+      throw new IllegalArgumentException("A transform needs 12 or 16 values, not " + values.length);
+    }
+    if (values.length == 16 && (values[12] != 0 || values[13] != 0 || values[14] != 0 || values[15] != 1)) {
+      throw new IllegalArgumentException("The last row of an affine transform must be 0 0 0 1");
+    }
+    System.arraycopy(values, 0, m, 0, 12);
+  }
+
+  /**
+   * Set this transform to a translation.
+   * @param t the translation
+   */
+  public void setTranslation(Tuple3 t) {
+
+    setIdentity();
+    m[3] = t.x;
+    m[7] = t.y;
+    m[11] = t.z;
+  }
+
+  /**
+   * Set this transform to a scale along the axes.
+   * @param s the scale factor along each axis
+   */
+  public void setScale(Tuple3 s) {
+
+    setIdentity();
+    m[0] = s.x;
+    m[5] = s.y;
+    m[10] = s.z;
+  }
+
+  /**
+   * Set this transform to a rotation about a coordinate axis, counterclockwise
+   * when looking down the axis towards the origin.
+   * @param axis 0, 1 or 2 for the x, y or z axis
+   * @param degrees the angle of rotation
+   */
+  public void setRotation(int axis, double degrees) {
+
+    setIdentity();
+    double c = Math.cos(Math.toRadians(degrees));
+    double s = Math.sin(Math.toRadians(degrees));
+    int i = (axis + 1) % 3;
+    int j = (axis + 2) % 3;
+    m[4 * i + i] = c;
+    m[4 * i + j] = -s;
+    m[4 * j + i] = s;
+    m[4 * j + j] = c;
+  }
+
+  /**
+   * Sets this transform to op1 * op2, the transform that applies op2 first and
+   * then op1.  Either operand may be this transform.
+   * @param op1 the transform applied last
+   * @param op2 the transform applied first
+   */
+  public void mul(Transform op1, Transform op2) {
+
+    double[] a = op1.m;
+    double[] b = op2.m;
+    double[] r = new double[12];
+    for (int row = 0; row < 3; row++) {
+      for (int col = 0; col < 4; col++) {
+        r[4 * row + col] = a[4 * row] * b[col] + a[4 * row + 1] * b[4 + col] + a[4 * row + 2] * b[8 + col];
+      }
+      r[4 * row + 3] += a[4 * row + 3];
+    }
+    System.arraycopy(r, 0, m, 0, 12);
+  }
+
+  /**
+   * Sets this transform to the inverse of other.  other may be this transform.
+   * @param other the transform to invert
+   * @throws IllegalArgumentException if other is singular
+   */
+  public void invert(Transform other) {
+
+    double[] a = other.m;
+    double c00 = a[5] * a[10] - a[6] * a[9];
+    double c01 = a[6] * a[8] - a[4] * a[10];
+    double c02 = a[4] * a[9] - a[5] * a[8];
+    double det = a[0] * c00 + a[1] * c01 + a[2] * c02;
+    if (det == 0 || Double.isNaN(det) || Double.isInfinite(det)) {
+      throw new IllegalArgumentException("Cannot invert a singular transform");
+    }
+    double inv = 1 / det;
+    double[] r = new double[12];
+    r[0] = c00 * inv;
+    r[1] = (a[2] * a[9] - a[1] * a[10]) * inv;
+    r[2] = (a[1] * a[6] - a[2] * a[5]) * inv;
+    r[4] = c01 * inv;
+    r[5] = (a[0] * a[10] - a[2] * a[8]) * inv;
+    r[6] = (a[2] * a[4] - a[0] * a[6]) * inv;
+    r[8] = c02 * inv;
+    r[9] = (a[1] * a[8] - a[0] * a[9]) * inv;
+    r[10] = (a[0] * a[5] - a[1] * a[4]) * inv;
+    for (int row = 0; row < 3; row++) {
+      r[4 * row + 3] = -(r[4 * row] * a[3] + r[4 * row + 1] * a[7] + r[4 * row + 2] * a[11]);
+    }
+    System.arraycopy(r, 0, m, 0, 12);
+  }
+
+  /**
+   * Transform the point in, translation included, and store it in out.  in and
+   * out may be the same tuple.
+   * @param in the point to transform
+   * @param out the transformed point
+   */
+  public void transformPoint(Tuple3 in, Tuple3 out) {
+
+    double x = in.x, y = in.y, z = in.z;
+    out.x = m[0] * x + m[1] * y + m[2] * z + m[3];
+    out.y = m[4] * x + m[5] * y + m[6] * z + m[7];
+    out.z = m[8] * x + m[9] * y + m[10] * z + m[11];
+  }
+
+  /**
+   * Transform the vector in, ignoring the translation, and store it in out.  in
+   * and out may be the same tuple.
+   * @param in the vector to transform
+   * @param out the transformed vector
+   */
+  public void transformVector(Tuple3 in, Tuple3 out) {
+
+    double x = in.x, y = in.y, z = in.z;
+    out.x = m[0] * x + m[1] * y + m[2] * z;
+    out.y = m[4] * x + m[5] * y + m[6] * z;
+    out.z = m[8] * x + m[9] * y + m[10] * z;
+  }
+
+  /**
+   * Transform the vector in by the transpose of this transform's linear part and
+   * store it in out.  Called on the inverse of a transform, this carries normals
+   * through the transform.  in and out may be the same tuple.
+   * @param in the vector to transform
+   * @param out the transformed vector
+   */
+  public void transformTransposed(Tuple3 in, Tuple3 out) {
+
+    double x = in.x, y = in.y, z = in.z;
+    out.x = m[0] * x + m[4] * y + m[8] * z;
+    out.y = m[1] * x + m[5] * y + m[9] * z;
+    out.z = m[2] * x + m[6] * y + m[10] * z;
+  }
+
+  /**
+   * @see Object#toString()
+   */
+  public String toString() {
+
+    return "[" + m[0] + " " + m[1] + " " + m[2] + " " + m[3] + "; " + m[4] + " " + m[5] + " " + m[6] + " "
+        + m[7] + "; " + m[8] + " " + m[9] + " " + m[10] + " " + m[11] + "]";
+  }
+}
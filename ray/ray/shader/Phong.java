@@ -1,9 +1,10 @@
 package ray.shader;
 
-import java.util.ArrayList;
+import java.io.IOException;
 
+import ray.BinaryScene;
 import ray.IntersectionRecord;
-import ray.Scene;
+import ray.Workspace;
 import ray.light.Light;
 import ray.math.Color;
 import ray.math.Vector3;
@@ -31,38 +32,39 @@ public class Phong extends Shader {
 	public Phong() { }
 	
 	/**
-	 * Calculate the BRDF value for this material at the intersection described in record.
-	 * Returns the BRDF color in outColor.
-	 * @param outColor Space for the output color
-	 * @param scene The scene
-	 * @param lights The lights
-	 * @param toEye Vector pointing towards the eye
-	 * @param record The intersection record, which hold the location, normal, etc.
+	 * @see Shader#reflect(Color, Light, Vector3, IntersectionRecord, Workspace)
 	 */
-	public void shade(Color outColor, Scene scene, ArrayList<Light> lights, Vector3 toEye, 
-			IntersectionRecord record) {
-		outColor.set(0, 0, 0);
-		Vector3 l = new Vector3();
-		
-		for (Light light : lights) {
-			if (!isShadowed(scene, light, record)) {
-				l.sub(light.position, record.location);
-				l.normalize();
-				toEye.normalize();
-				
-				Vector3 h = new Vector3();
-				h.add(l,toEye);
-				h.normalize();
-				
-				double x = Math.max(0, record.normal.dot(l));
-				double y = Math.pow(Math.max(0, record.normal.dot(h)), exponent);
-				outColor.r += light.intensity.r * (diffuseColor.r * x + specularColor.r * y);
-				outColor.g += light.intensity.g * (diffuseColor.g * x + specularColor.g * y);
-				outColor.b += light.intensity.b * (diffuseColor.b * x + specularColor.b * y);
-			}
-		}
-		
-		outColor.clamp(0, 1);
+	protected void reflect(Color outColor, Light light, Vector3 toEye, IntersectionRecord record, Workspace work) {
+		Vector3 l = work.toLight;
+		l.sub(light.position, record.location);
+		l.normalize();
+		toEye.normalize();
+		Vector3 h = work.halfVector;
+		h.add(l,toEye);
+		h.normalize();
+		double x = Math.max(0, record.normal.dot(l));
+		double y = Math.pow(Math.max(0, record.normal.dot(h)), exponent);
+		outColor.set(light.intensity.r * (diffuseColor.r * x + specularColor.r * y),
+				light.intensity.g * (diffuseColor.g * x + specularColor.g * y),
+				light.intensity.b * (diffuseColor.b * x + specularColor.b * y));
+	}
+	
+	/**
+	 * @see Shader#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeColor(diffuseColor);
+		out.writeColor(specularColor);
+		out.writeDouble(exponent);
+	}
+	
+	/**
+	 * @see Shader#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		in.readColor(diffuseColor);
+		in.readColor(specularColor);
+		exponent = in.readDouble();
 	}
 	
 	/**
@@ -1,13 +1,18 @@
 package ray.shader;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+import ray.BinaryScene;
 import ray.IntersectionRecord;
 import ray.Ray;
 import ray.Scene;
+import ray.Workspace;
 import ray.light.Light;
 import ray.math.Color;
 import ray.math.Vector3;
+import ray.surface.Surface;
 
 /**
  * This interface specifies what is necessary for an object to be a material.
@@ -23,29 +28,278 @@ public abstract class Shader {
 	 */
 	public static final Shader DEFAULT_MATERIAL = new Lambertian();
 	
+	/**
+	 * The largest contribution of a light that cannot move an 8 bit pixel by
+	 * half a level.  Pixels are gamma corrected by 2.2, and adding c to a linear
+	 * value moves its corrected value by at most c^(1/2.2), which is below 0.5 / 255
+	 * for c below this.  Lights whose contributions sum to less than it can be
+	 * left out without changing an image by more than one level.
+	 */
+	public static final double QUANTUM = Math.pow(0.5 / 255, 2.2);
+	
 	/**
 	 * Calculate the BRDF value for this material at the intersection described in record.
 	 * Returns the BRDF color in outColor.
+	 *
+	 * Each light's contribution is worked out by reflect before its shadow ray is
+	 * cast, and lights that would add no more than work.lightCutoff in any
+	 * channel are skipped without one.  With work.lightSamples above 0 and more
+	 * lights than that left, only that many lights are picked, at random in
+	 * proportion to their contributions, and their contributions weighted so
+	 * that the expected color is the full sum; the picks depend only on the hit
+	 * location, so a pixel is shaded the same way on every render.
+	 *
 	 * @param outColor Space for the output color
 	 * @param scene The scene
 	 * @param lights The lights
 	 * @param toEye Vector pointing towards the eye
 	 * @param record The intersection record, which hold the location, normal, etc.
+	 * @param work Scratch space of the calling thread
+	 */
+	public void shade(Color outColor, Scene scene, ArrayList<Light> lights, Vector3 toEye, 
+			IntersectionRecord record, Workspace work) {
+		outColor.set(0, 0, 0);
+		int n = lights.size();
+		boolean recording = work.shadowMask != null && !work.replayShadows;
+		if (recording) {
+			// A GBuffer needs every light's shadow, since a later render with other
+			// intensities or shaders may skip or pick other lights; shade from those
+			for (int i = 0; i < n; i++) {
+				isShadowed(scene, lights.get(i), i, record, work);
+			}
+			work.replayShadows = true;
+		}
+		
+		if (work.lightSamples <= 0 || n <= work.lightSamples) {
+			Color c = work.lightColor;
+			for (int i = 0; i < n; i++) {
+				Light light = lights.get(i);
+				reflect(c, light, toEye, record, work);
+				if (Math.max(c.r, Math.max(c.g, c.b)) > work.lightCutoff && !isShadowed(scene, light, i, record, work)) {
+					outColor.add(c);
+				}
+			}
+		} else {
+			sampleLights(outColor, scene, lights, toEye, record, work);
+		}
+		
+		if (recording) {
+			work.replayShadows = false;
+		}
+		outColor.clamp(0, 1);
+	}
+	
+	/**
+	 * Candidates examined per light picked when there are too many lights to
+	 * examine them all (see resampleLights).
+	 */
+	public static final int CANDIDATES = 8;
+	
+	/**
+	 * Add the contributions of work.lightSamples lights, picked in proportion to
+	 * their contributions, to outColor.  Every light's contribution is worked
+	 * out, so with many more lights than CANDIDATES per sample resampleLights is
+	 * used instead.
 	 */
-	public abstract void shade(Color outColor, Scene scene, ArrayList<Light> lights, Vector3 toEye, 
-			IntersectionRecord record);
+	private void sampleLights(Color outColor, Scene scene, ArrayList<Light> lights, Vector3 toEye, 
+			IntersectionRecord record, Workspace work) {
+		int n = lights.size();
+		int samples = work.lightSamples;
+		if (n > CANDIDATES * samples) {
+			resampleLights(outColor, scene, lights, toEye, record, work);
+			return;
+		}
+		Color[] colors = work.lightColors(n);
+		double[] weights = work.lightWeights;
+		double total = 0;
+		int left = 0;
+		for (int i = 0; i < n; i++) {
+			Color c = colors[i];
+			reflect(c, lights.get(i), toEye, record, work);
+			if (Math.max(c.r, Math.max(c.g, c.b)) > work.lightCutoff) {
+				total += c.r + c.g + c.b;
+				left++;
+			}
+			weights[i] = total;
+		}
+		
+		if (left <= samples) {
+			for (int i = 0; i < n; i++) {
+				if (weights[i] > (i > 0 ? weights[i - 1] : 0) && !isShadowed(scene, lights.get(i), i, record, work)) {
+					outColor.add(colors[i]);
+				}
+			}
+			return;
+		}
+		
+		work.seedRandom(record.location);
+		for (int s = 0; s < samples; s++) {
+			int i = find(weights, n, work.nextRandom() * total);
+			double p = (weights[i] - (i > 0 ? weights[i - 1] : 0)) / total;
+			if (!isShadowed(scene, lights.get(i), i, record, work)) {
+				outColor.scaleAdd(1 / (samples * p), colors[i]);
+			}
+		}
+	}
 	
 	/**
-	 * Utility method to compute shadows.
+	 * Add the contributions of work.lightSamples lights to outColor by resampled
+	 * importance sampling, looking at CANDIDATES lights per sample whatever the
+	 * number of lights.  Candidates are drawn in proportion to their intensities
+	 * (work.lightPower), and of those one is kept in proportion to its
+	 * contribution divided by how likely it was to be drawn.  Weighting the kept
+	 * light by the mean of those ratios over its contribution makes the expected
+	 * color the full sum, as in sampleLights.
 	 */
-	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record) {
-		Vector3 shadowDirection = new Vector3();
+	private void resampleLights(Color outColor, Scene scene, ArrayList<Light> lights, Vector3 toEye, 
+			IntersectionRecord record, Workspace work) {
+		int n = lights.size();
+		double[] power = work.lightPower;
+		double totalPower = power[n - 1];
+		if (totalPower <= 0) {
+			return;
+		}
+		Color c = work.lightColor;
+		Color kept = work.keptColor;
+		int samples = work.lightSamples;
+		work.seedRandom(record.location);
+		for (int s = 0; s < samples; s++) {
+			double sum = 0;
+			double keptTarget = 0;
+			int keptLight = -1;
+			for (int k = 0; k < CANDIDATES; k++) {
+				int i = find(power, n, work.nextRandom() * totalPower);
+				double p = (power[i] - (i > 0 ? power[i - 1] : 0)) / totalPower;
+				reflect(c, lights.get(i), toEye, record, work);
+				if (Math.max(c.r, Math.max(c.g, c.b)) <= work.lightCutoff) {
+					continue;
+				}
+				double target = c.r + c.g + c.b;
+				double w = target / p;
+				sum += w;
+				if (work.nextRandom() * sum < w) {
+					keptLight = i;
+					keptTarget = target;
+					kept.set(c);
+				}
+			}
+			if (keptLight >= 0 && !isShadowed(scene, lights.get(keptLight), keptLight, record, work)) {
+				outColor.scaleAdd(sum / (CANDIDATES * keptTarget * samples), kept);
+			}
+		}
+	}
+	
+	/**
+	 * @return the first i below n with totals[i] above u, for running totals
+	 */
+	private static int find(double[] totals, int n, double u) {
+		int lo = 0, hi = n - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (totals[mid] > u) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * Set outColor to what light would add to the color at record if nothing
+	 * blocked it.
+	 *
+	 * @param outColor Space for the output color
+	 * @param light The light
+	 * @param toEye Vector pointing towards the eye
+	 * @param record The intersection record, which hold the location, normal, etc.
+	 * @param work Scratch space of the calling thread
+	 */
+	protected abstract void reflect(Color outColor, Light light, Vector3 toEye, IntersectionRecord record,
+			Workspace work);
+	
+	/**
+	 * Utility method to compute shadows.  Neighbouring pixels are usually blocked
+	 * by the same surface, so the surface that last blocked this light on this
+	 * thread is tested first and the full scene query is only made if it misses.
+	 * With a shadow mask in the workspace the answer is recorded in it, or taken
+	 * from it without tracing anything.
+	 *
+	 * @param lightIndex the index of light in the scene's light list
+	 */
+	protected boolean isShadowed(Scene scene, Light light, int lightIndex, IntersectionRecord record, Workspace work) {
+		long[] mask = work.shadowMask;
+		if (mask == null) {
+			return traceShadow(scene, light, lightIndex, record, work);
+		}
+		if (work.replayShadows) {
+			return (mask[lightIndex >>> 6] & (1L << lightIndex)) != 0;
+		}
+		if (traceShadow(scene, light, lightIndex, record, work)) {
+			mask[lightIndex >>> 6] |= 1L << lightIndex;
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean traceShadow(Scene scene, Light light, int lightIndex, IntersectionRecord record, Workspace work) {
+		Vector3 shadowDirection = work.shadowDirection;
 		shadowDirection.sub(light.position, record.location);
 		double distance = shadowDirection.length();
 		shadowDirection.normalize();
-		Ray shadowRay = new Ray(record.location, shadowDirection);
+		Ray shadowRay = work.shadowRay;
+		shadowRay.set(record.location, shadowDirection);
 		shadowRay.start = Ray.EPSILON;
 		shadowRay.end = distance - Ray.EPSILON;
-		return scene.getAnyIntersection(shadowRay);
+		work.shadowRays++;
+		
+		if (!work.cacheOccluders) {
+			if (scene.intersect(null, shadowRay, true, work)) {
+				work.shadowsBlocked++;
+				return true;
+			}
+			return false;
+		}
+		
+		if (work.occluders.length <= lightIndex) {
+			work.occluders = Arrays.copyOf(work.occluders, Math.max(lightIndex + 1, scene.getShadingLights().size()));
+		}
+		Surface occluder = work.occluders[lightIndex];
+		if (occluder != null) {
+			work.occluderTests++;
+			if (work.count(occluder, occluder.intersect(work.record, shadowRay))) {
+				work.occluderHits++;
+				work.shadowsBlocked++;
+				return true;
+			}
+		}
+		
+		if (scene.intersect(null, shadowRay, true, work)) {
+			work.occluders[lightIndex] = work.record.surface;
+			work.shadowsBlocked++;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Write the values that define this shader to a binary scene, for read to
+	 * restore.  Shaders that do not override this cannot be stored in a binary
+	 * scene.
+	 *
+	 * @param out the binary scene being written
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		throw new UnsupportedOperationException(getClass().getName() + " cannot be stored in a binary scene");
+	}
+	
+	/**
+	 * Restore the values stored by write, on a shader made with the zero
+	 * argument constructor.
+	 *
+	 * @param in the binary scene being read
+	 */
+	public void read(BinaryScene.Input in) {
+		throw new UnsupportedOperationException(getClass().getName() + " cannot be read from a binary scene");
 	}
-}
\ No newline at end of file
+}
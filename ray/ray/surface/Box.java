@@ -1,12 +1,14 @@
 package ray.surface;
 
+import java.io.IOException;
+
+import ray.BinaryScene;
 import ray.IntersectionRecord;
 import ray.Ray;
 import ray.math.Point3;
-import ray.math.Vector3;
 
 public class Box extends Surface {
-	private final static Double EPSILON = 0.000001;
+	private final static double EPSILON = 0.000001;
 	
 	/* The corner of the box with the smallest x, y, and z components. */
 	protected final Point3 minPt = new Point3();
@@ -56,8 +58,9 @@ public class Box extends Surface {
 		rayIn.end = mint;
 		outRecord.t = mint;
 		outRecord.surface = this;
-		Vector3 scaledDirection = Vector3.getScaledVector(rayIn.direction, outRecord.t);
-		outRecord.location.add(rayIn.origin, scaledDirection);
+		outRecord.location.set(rayIn.origin.x + rayIn.direction.x * mint,
+				rayIn.origin.y + rayIn.direction.y * mint,
+				rayIn.origin.z + rayIn.direction.z * mint);
 		if (Math.abs(outRecord.location.x - maxPt.x) <= EPSILON) {
 			outRecord.normal.set(1, 0, 0);
 		} else if (Math.abs(outRecord.location.x - minPt.x) <= EPSILON) {
@@ -75,6 +78,30 @@ public class Box extends Surface {
 		return true;
 	}
 	
+	/**
+	 * @see Surface#computeBoundingBox()
+	 */
+	public void computeBoundingBox() {
+		minBound.set(Math.min(minPt.x, maxPt.x), Math.min(minPt.y, maxPt.y), Math.min(minPt.z, maxPt.z));
+		maxBound.set(Math.max(minPt.x, maxPt.x), Math.max(minPt.y, maxPt.y), Math.max(minPt.z, maxPt.z));
+	}
+	
+	/**
+	 * @see Surface#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeTuple(minPt);
+		out.writeTuple(maxPt);
+	}
+	
+	/**
+	 * @see Surface#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		in.readTuple(minPt);
+		in.readTuple(maxPt);
+	}
+	
 	/**
 	 * @see Object#toString()
 	 */
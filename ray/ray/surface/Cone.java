@@ -1,114 +1,114 @@
-package ray.surface;
-
-import java.util.Arrays;
-
-import ray.IntersectionRecord;
-import ray.Ray;
-import ray.math.Point3;
-import ray.math.Vector3;
-
-public class Cone extends Surface {
-	
-	/** The center of the the truncated cone. */
-    protected final Point3 center = new Point3();
-    public void setCenter(Point3 center) { this.center.set(center); }
-    
-    /** The z-location of the tip of the cone. */
-    protected double tipz = 0.0;
-    public void setTipz(double tipz) { this.tipz = tipz; }
-    
-    /** The radius of the cone in the plane z = center.z. */
-    protected double radius = 1.0;
-    public void setRadius(double radius) { this.radius = radius; }
-
-    /** The height of the cone.
-     *  Truncation of the cone occurs at center.z - height/2 and center.z + height/2
-     */
-    protected double height = 1.0;
-    public void setHeight(double height) { this.height = height; }
-    
-	public Cone() { }
-
-	/**
-	 * Tests this surface for intersection with ray. If an intersection is found
-	 * record is filled out with the information about the intersection and the
-	 * method returns true. It returns false otherwise and the information in
-	 * outRecord is not modified.
-	 *
-	 * @param outRecord the output IntersectionRecord
-	 * @param ray the ray to intersect
-	 * @return true if the surface intersects the ray
-	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
-		Vector3 eminusc = new Vector3();
-		eminusc.sub(rayIn.origin, center);
-		
-		double H = tipz - center.z;
-		double R = radius;
-		double s = Math.pow(R, 2) / Math.pow(H,  2);
-			
-		double a = Math.pow(rayIn.direction.x, 2) + Math.pow(rayIn.direction.y, 2) - s * Math.pow(rayIn.direction.z, 2);
-		double b = 2 * (rayIn.direction.x * eminusc.x + rayIn.direction.y * eminusc.y - s * (eminusc.z - H) * rayIn.direction.z);
-		double c = Math.pow(eminusc.x, 2) + Math.pow(eminusc.y, 2) - s * Math.pow(eminusc.z - H, 2);
-		double discriminant = b * b - 4 * a * c;
-		if (discriminant < 0) {
-			return false;
-		}
-		
-		double t1a = (-b + Math.sqrt(discriminant)) / (2 * a);
-		double t1b = (-b - Math.sqrt(discriminant)) / (2 * a);
-		double t2 = (height / 2.0 - eminusc.z) / rayIn.direction.z;
-		double t3 = (-height / 2.0 - eminusc.z) / rayIn.direction.z;
-		
-		eminusc = null;
-	    
-	  // We'll iterate through the values in sorted order so we find closest intersection first
-	  double[] tarr = {t1a, t1b, t2, t3};
-	  Arrays.sort(tarr);
-	  
-	  Double t = null;                 // The lowest intersection we find
-	  for (double x : tarr) {
-	    IntersectionRecord tmp = new IntersectionRecord();
-	    tmp.location.add(rayIn.origin, Vector3.getScaledVector(rayIn.direction, x));
-	    
-	    if (x == t1a || x == t1b) {
-	      if (Math.abs(tmp.location.z - center.z) < height / 2) {
-	        outRecord.normal.set(tmp.location.x - center.x, tmp.location.y - center.y, 0);
-	        outRecord.normal.normalize();
-	        outRecord.normal.add(0, 0, R / H);
-	        outRecord.normal.normalize();
-	        t = x;
-	        break;
-	      }
-	    } else if (x == t2) {
-	      if (Math.pow(tmp.location.x - center.x, 2) + Math.pow(tmp.location.y - center.y, 2) - Math.pow((R / H) * (H - height / 2), 2) <= 0) {
-	        outRecord.normal.set(0, 0, 1);
-	        t = x;
-	        break;
-	      }
-	    } else if (x == t3) {
-	      if (Math.pow(tmp.location.x - center.x, 2) + Math.pow(tmp.location.y - center.y, 2) - Math.pow((R / H) * (H + height / 2), 2) <= 0) {
-	        outRecord.normal.set(0, 0, -1);
-	        t = x;
-	        break;
-	      }
-	    }
-	  }
-	  
-	  if (t == null || t > rayIn.end || t < rayIn.start) {
-	    return false;
-	  }
-	  rayIn.end = t;
-	  outRecord.surface = this;
-	  outRecord.t = t;
-	  outRecord.location.add(rayIn.origin, Vector3.getScaledVector(rayIn.direction, t));
-	  return true;
-	}
-	
-	/**
-	 * @see Object#toString()
-	 */
-	public String toString() {
-    return "Cone " + center + " "+ radius + " "+ height + " "+ tipz + " "+ shader + " end";
-	}
+package ray.surface;
+
+import java.io.IOException;
+
+import ray.BinaryScene;
+import ray.math.Point3;
+import ray.math.Vector3;
+
+/**
+ * A truncated cone, or two joined at the tip if the tip lies between the
+ * truncation planes, closed by flat caps: a Quadric with two caps.  The axis is
+ * z unless set otherwise.
+ */
+public class Cone extends Quadric {
+	
+	/** The center of the the truncated cone. */
+    protected final Point3 center = new Point3();
+    public void setCenter(Point3 center) { this.center.set(center); }
+    
+    /** The z-location of the tip of the cone.  With another axis, tipz - center.z
+     *  is how far along the axis the tip is from center. */
+    protected double tipz = 0.0;
+    public void setTipz(double tipz) { this.tipz = tipz; }
+    
+    /** The radius of the cone in the plane z = center.z (across the axis, through center). */
+    protected double radius = 1.0;
+    public void setRadius(double radius) { this.radius = radius; }
+
+    /** The height of the cone.
+     *  Truncation of the cone occurs at center.z - height/2 and center.z + height/2,
+     *  or that far either side of center along another axis
+     */
+    protected double height = 1.0;
+    public void setHeight(double height) { this.height = height; }
+    
+    /** The direction of the cone's axis, through center; z unless set. */
+    protected final Vector3 axis = new Vector3(0, 0, 1);
+    public void setAxis(Vector3 axis) { this.axis.set(axis); }
+    
+	/** The unit axis and the tip's distance from center along it, set with the quadric. */
+	private final Vector3 unitAxis = new Vector3(0, 0, 1);
+	private double tipOffset;
+    
+	public Cone() { }
+	
+	/**
+	 * Sets the quadric and its caps, then the bounds.  With s = (R / H)^2, for
+	 * radius R and the tip H from center along the axis, the cone is
+	 * |q|^2 - (q . axis)^2 = s (q . axis - H)^2 with q = p - center.  The radius
+	 * varies linearly along the axis, so the widest slice is at one of the two
+	 * truncation planes.
+	 * @see Surface#computeBoundingBox()
+	 */
+	public void computeBoundingBox() {
+		Vector3 u = new Vector3(axis);
+		u.normalize();
+		double H = tipz - center.z;
+		double s = (radius * radius) / (H * H);
+		double halfHeight = height / 2.0;
+		setRevolution(center, u, 1 + s, s * H, -s * H * H, halfHeight);
+		unitAxis.set(u);
+		tipOffset = H;
+		
+		double r = Math.abs(radius / H) * Math.max(Math.abs(H - halfHeight), Math.abs(H + halfHeight));
+		if (H == 0 || Double.isNaN(r)) {
+			r = Double.POSITIVE_INFINITY;
+		}
+		boundRevolution(u, halfHeight, r);
+	}
+	
+	/**
+	 * The side normal always leans along the axis as it does on the nappe
+	 * holding center, so beyond the tip it is the gradient with its axial part
+	 * reflected.
+	 * @see Quadric#surfaceNormal(Vector3, double, double, double)
+	 */
+	protected void surfaceNormal(Vector3 normal, double px, double py, double pz) {
+		super.surfaceNormal(normal, px, py, pz);
+		double along = px * unitAxis.x + py * unitAxis.y + pz * unitAxis.z;
+		if ((tipOffset - along) * tipOffset < 0) {
+			double axial = 2 * normal.dot(unitAxis);
+			normal.set(normal.x - axial * unitAxis.x, normal.y - axial * unitAxis.y, normal.z - axial * unitAxis.z);
+		}
+	}
+	
+	/**
+	 * @see Surface#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeTuple(center);
+		out.writeDouble(tipz);
+		out.writeDouble(radius);
+		out.writeDouble(height);
+		out.writeTuple(axis);
+	}
+	
+	/**
+	 * @see Surface#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		in.readTuple(center);
+		tipz = in.readDouble();
+		radius = in.readDouble();
+		height = in.readDouble();
+		in.readTuple(axis);
+	}
+	
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+    return "Cone " + center + " "+ radius + " "+ height + " "+ tipz + " "+ axis + " "+ shader + " end";
+	}
 }
\ No newline at end of file
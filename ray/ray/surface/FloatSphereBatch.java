@@ -0,0 +1,134 @@
+package ray.surface;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ray.Ray;
+
+/**
+ * SphereBatch with a single precision first pass.  Centers and radii are also
+ * kept as floats, half the bytes per sphere, and every sphere is first tested
+ * in float against a slightly widened sphere and interval of the ray.  Only
+ * the spheres that pass are tested again in double precision, by exactly the
+ * operations of SphereBatch.intersect, in the same order.  The widening
+ * covers the rounding of the float test, so no sphere the double test would
+ * accept is dropped, and the sphere returned is always the one SphereBatch
+ * returns.
+ *
+ * The float test is posed as the distance from the sphere's center to the ray
+ * rather than as the discriminant, which loses most of its digits to
+ * cancellation in float for spheres far from the ray's origin.  The float
+ * arrays are padded to a multiple of MAX_FLOAT_LANES with NaN centers, which
+ * never pass.
+ */
+class FloatSphereBatch extends SphereBatch {
+
+	/** Lane count the float arrays are padded to; the widest (512 bit) float vector. */
+	static final int MAX_FLOAT_LANES = 16;
+
+	/**
+	 * Widening of the float test, relative to the largest coordinate involved.
+	 * Rounding to float is off by at most 2^-24 relative, and the few operations
+	 * of the test multiply that by a small factor; this is two orders of
+	 * magnitude more.
+	 */
+	static final double WIDENING = 1e-5;
+
+	protected final float[] fx, fy, fz, fr;
+
+	/** The largest center coordinate plus the largest radius. */
+	protected final double extent;
+
+	FloatSphereBatch(List<Sphere> input) {
+		super(input);
+		int padded = (spheres.length + MAX_FLOAT_LANES - 1) / MAX_FLOAT_LANES * MAX_FLOAT_LANES;
+		fx = new float[padded];
+		fy = new float[padded];
+		fz = new float[padded];
+		fr = new float[padded];
+		Arrays.fill(fx, Float.NaN);
+		Arrays.fill(fy, Float.NaN);
+		Arrays.fill(fz, Float.NaN);
+		double coordinates = 0;
+		double radii = 0;
+		for (int i = 0; i < spheres.length; i++) {
+			Sphere s = spheres[i];
+			fx[i] = (float) s.center.x;
+			fy[i] = (float) s.center.y;
+			fz[i] = (float) s.center.z;
+			fr[i] = (float) s.radius;
+			coordinates = Math.max(coordinates, Math.max(Math.abs(s.center.x),
+					Math.max(Math.abs(s.center.y), Math.abs(s.center.z))));
+			radii = Math.max(radii, Math.abs(s.radius));
+		}
+		extent = coordinates + radii;
+	}
+
+	/**
+	 * @see SphereBatch#kernel()
+	 */
+	public String kernel() {
+		return "float scalar";
+	}
+
+	/**
+	 * @return how far the float test is widened, in world units, for a ray from origin
+	 */
+	protected double widening(Ray ray) {
+		double origin = Math.max(Math.abs(ray.origin.x), Math.max(Math.abs(ray.origin.y), Math.abs(ray.origin.z)));
+		return WIDENING * (extent + origin);
+	}
+
+	/**
+	 * @see SphereBatch#intersect(Ray, boolean)
+	 */
+	public int intersect(Ray ray, boolean anyIntersection) {
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		double start = ray.start, end = ray.end;
+		double a = dx * dx + dy * dy + dz * dz;
+		double twoA = 2 * a;
+		double fourA = 4 * a;
+
+		float fox = (float) ox, foy = (float) oy, foz = (float) oz;
+		float fdx = (float) dx, fdy = (float) dy, fdz = (float) dz;
+		float invA = (float) (1 / a);
+		float invLength = (float) (1 / Math.sqrt(a));
+		double widening = widening(ray);
+		float pad = (float) widening;
+		float tpad = (float) (2 * widening / Math.sqrt(a));
+		float fstart = (float) start, fend = (float) end;
+
+		double mint = Double.POSITIVE_INFINITY;
+		int best = -1;
+		for (int i = 0; i < spheres.length; i++) {
+			// Closest approach of the ray to the center, and the distance there
+			float lx = fx[i] - fox;
+			float ly = fy[i] - foy;
+			float lz = fz[i] - foz;
+			float tca = (lx * fdx + ly * fdy + lz * fdz) * invA;
+			float px = lx - tca * fdx;
+			float py = ly - tca * fdy;
+			float pz = lz - tca * fdz;
+			float reach = fr[i] + pad;
+			float slack = tpad + Math.abs(tca) * (float) WIDENING;
+			// The near hit lies in [tca - r / |d|, tca]; negated so NaN fails
+			if (!(px * px + py * py + pz * pz <= reach * reach && tca + slack >= fstart
+					&& tca - fr[i] * invLength - slack <= fend)) {
+				continue;
+			}
+			double t = hit(i, ox, oy, oz, dx, dy, dz, twoA, fourA, start, end);
+			if (t != t) {
+				continue;
+			}
+			if (anyIntersection) {
+				return i;
+			}
+			if (t < mint || best < 0) {
+				mint = t;
+				best = i;
+			}
+		}
+		return best;
+	}
+}
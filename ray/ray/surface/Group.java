@@ -0,0 +1,114 @@
+package ray.surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import ray.BinaryScene;
+import ray.IntersectionRecord;
+import ray.Ray;
+
+/**
+ * A collection of surfaces that acts as one surface, usually as the prototype
+ * of Instances.  Hits are reported by the member that was hit, so each member
+ * keeps its own shader.  Members are tested one after the other, skipping those
+ * whose bounding box the ray misses, so groups are meant for a handful of
+ * surfaces; large sets of surfaces belong in the scene, under an acceleration
+ * structure.
+ */
+public class Group extends Surface {
+
+	/** The members of the group. */
+	protected final ArrayList<Surface> surfaces = new ArrayList<Surface>();
+	public void addSurface(Surface surface) { surfaces.add(surface); }
+	public ArrayList<Surface> getSurfaces() { return surfaces; }
+
+	/** The members and their bounds, six per member, set by computeBoundingBox(). */
+	protected Surface[] members = new Surface[0];
+	protected double[] memberBounds = new double[0];
+
+	public Group() { }
+
+	/**
+	 * Tests every member whose bounding box the ray passes through.  Each hit
+	 * shortens the ray, so the last member to report a hit is the closest one and
+	 * outRecord can be handed to the members directly.
+	 *
+	 * @see Surface#intersect(IntersectionRecord, Ray)
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		double ox = rayIn.origin.x, oy = rayIn.origin.y, oz = rayIn.origin.z;
+		double invx = 1 / rayIn.direction.x, invy = 1 / rayIn.direction.y, invz = 1 / rayIn.direction.z;
+		boolean ret = false;
+		for (int i = 0; i < members.length; i++) {
+			int b = 6 * i;
+			double tx1 = (memberBounds[b + 0] - ox) * invx;
+			double tx2 = (memberBounds[b + 3] - ox) * invx;
+			double ty1 = (memberBounds[b + 1] - oy) * invy;
+			double ty2 = (memberBounds[b + 4] - oy) * invy;
+			double tz1 = (memberBounds[b + 2] - oz) * invz;
+			double tz2 = (memberBounds[b + 5] - oz) * invz;
+			double tNear = Math.max(Math.max(Math.min(tx1, tx2), Math.min(ty1, ty2)), Math.min(tz1, tz2));
+			double tFar = Math.min(Math.min(Math.max(tx1, tx2), Math.max(ty1, ty2)), Math.max(tz1, tz2));
+			// NaN slab distances fail every comparison, so the member is tested
+			if (tNear > tFar || tNear > rayIn.end || tFar < rayIn.start) {
+				continue;
+			}
+			if (members[i].intersect(outRecord, rayIn)) {
+				ret = true;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @see Surface#computeBoundingBox()
+	 */
+	public void computeBoundingBox() {
+		members = surfaces.toArray(new Surface[surfaces.size()]);
+		memberBounds = new double[6 * members.length];
+		minBound.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		maxBound.set(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < members.length; i++) {
+			Surface s = members[i];
+			s.computeBoundingBox();
+			memberBounds[6 * i + 0] = s.getMinBound().x;
+			memberBounds[6 * i + 1] = s.getMinBound().y;
+			memberBounds[6 * i + 2] = s.getMinBound().z;
+			memberBounds[6 * i + 3] = s.getMaxBound().x;
+			memberBounds[6 * i + 4] = s.getMaxBound().y;
+			memberBounds[6 * i + 5] = s.getMaxBound().z;
+			minBound.set(Math.min(minBound.x, s.getMinBound().x), Math.min(minBound.y, s.getMinBound().y),
+					Math.min(minBound.z, s.getMinBound().z));
+			maxBound.set(Math.max(maxBound.x, s.getMaxBound().x), Math.max(maxBound.y, s.getMaxBound().y),
+					Math.max(maxBound.z, s.getMaxBound().z));
+		}
+	}
+
+	/**
+	 * @see Surface#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeInt(surfaces.size());
+		for (Surface s : surfaces) {
+			out.writeSurface(s);
+		}
+	}
+
+	/**
+	 * @see Surface#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		int count = in.readInt();
+		surfaces.ensureCapacity(count);
+		for (int i = 0; i < count; i++) {
+			surfaces.add(in.readSurface());
+		}
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "Group " + surfaces.size() + " surfaces " + shader + " end";
+	}
+}
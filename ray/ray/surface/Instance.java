@@ -0,0 +1,241 @@
+package ray.surface;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import ray.BinaryScene;
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.math.Point3;
+import ray.math.Transform;
+import ray.math.Vector3;
+import ray.shader.Shader;
+
+/**
+ * A copy of a prototype surface, usually a Group, placed in the scene by an
+ * affine transform.  Any number of instances can share one prototype, so a
+ * scene that repeats a few shapes many times holds the shapes once and only a
+ * transform per copy.  Rays are carried into the prototype's own coordinates
+ * when they are intersected; since the direction is transformed without being
+ * normalized, distances along the ray are the same in both spaces.
+ *
+ * The transform is built up by translate, rotateX/Y/Z, scale and matrix nodes,
+ * each applied after the ones above it.  The prototype is defined in the first
+ * instance that uses it and referred to by name in the others:
+ *
+ *    <surface type="Instance">
+ *      <prototype type="Group" name="post">
+ *        <surface type="Cylinder"> ... </surface>
+ *        <surface type="Sphere"> ... </surface>
+ *      </prototype>
+ *      <rotateX>90</rotateX>
+ *      <translate>1 0 0</translate>
+ *    </surface>
+ *    <surface type="Instance">
+ *      <prototype ref="post"/>
+ *      <translate>2 0 0</translate>
+ *    </surface>
+ *
+ * Hits are reported by the instance itself, so that the record is valid in
+ * world space; the part of the prototype that was hit is kept in
+ * IntersectionRecord.part and shades the hit, unless the instance was given a
+ * shader of its own.
+ */
+public class Instance extends Surface {
+
+	/** The shared surface this is a copy of. */
+	protected Surface prototype;
+	public void setPrototype(Surface prototype) { this.prototype = prototype; }
+	public Surface getPrototype() { return prototype; }
+
+	/** Object to world transform, and its inverse, set by computeBoundingBox(). */
+	protected final Transform transform = new Transform();
+	protected final Transform inverse = new Transform();
+	public Transform getTransform() { return transform; }
+
+	/**
+	 * The ray in object space and the prototype's record, per thread and per
+	 * level of nesting, since a prototype may itself contain instances.
+	 */
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	public Instance() { }
+
+	public void addTranslate(Vector3 translation) {
+		Transform step = new Transform();
+		step.setTranslation(translation);
+		transform.mul(step, transform);
+	}
+
+	public void addRotateX(double degrees) {
+		Transform step = new Transform();
+		step.setRotation(0, degrees);
+		transform.mul(step, transform);
+	}
+
+	public void addRotateY(double degrees) {
+		Transform step = new Transform();
+		step.setRotation(1, degrees);
+		transform.mul(step, transform);
+	}
+
+	public void addRotateZ(double degrees) {
+		Transform step = new Transform();
+		step.setRotation(2, degrees);
+		transform.mul(step, transform);
+	}
+
+	public void addScale(Vector3 scale) {
+		Transform step = new Transform();
+		step.setScale(scale);
+		transform.mul(step, transform);
+	}
+
+	/**
+	 * @param matrix a row major affine matrix of 12 or 16 entries
+	 */
+	public void addMatrix(double[] matrix) {
+		Transform step = new Transform();
+		step.set(matrix);
+		transform.mul(step, transform);
+	}
+
+	/**
+	 * @return true if hits take the instance's shader rather than the prototype's
+	 */
+	public boolean hasOwnShader() {
+		return shader != Shader.DEFAULT_MATERIAL;
+	}
+
+	/**
+	 * @see Surface#getShader(IntersectionRecord)
+	 */
+	public Shader getShader(IntersectionRecord record) {
+		return hasOwnShader() ? shader : record.part.getShader();
+	}
+
+	/**
+	 * Tests this surface for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		Scratch scratch = SCRATCH.get();
+		int level = scratch.depth;
+		if (level == scratch.rays.length) {
+			scratch.grow();
+		}
+		Ray ray = scratch.rays[level];
+		IntersectionRecord record = scratch.records[level];
+		inverse.transformPoint(rayIn.origin, ray.origin);
+		inverse.transformVector(rayIn.direction, ray.direction);
+		ray.start = rayIn.start;
+		ray.end = rayIn.end;
+
+		scratch.depth = level + 1;
+		boolean hit = prototype.intersect(record, ray);
+		scratch.depth = level;
+		if (!hit) {
+			return false;
+		}
+
+		double t = record.t;
+		Point3 o = rayIn.origin;
+		Vector3 d = rayIn.direction;
+		rayIn.end = t;
+		outRecord.t = t;
+		outRecord.location.set(o.x + d.x * t, o.y + d.y * t, o.z + d.z * t);
+		inverse.transformTransposed(record.normal, outRecord.normal);
+		outRecord.normal.normalize();
+		outRecord.surface = this;
+		// The part that shades the hit: the innermost one, unless a nested instance has its own shader
+		Surface hitSurface = record.surface;
+		if (hitSurface instanceof Instance && !((Instance) hitSurface).hasOwnShader()) {
+			outRecord.part = record.part;
+		} else {
+			outRecord.part = hitSurface;
+		}
+		return true;
+	}
+
+	/**
+	 * The bounds of the prototype's bounding box after transforming it.
+	 *
+	 * @see Surface#computeBoundingBox()
+	 */
+	public void computeBoundingBox() {
+		inverse.invert(transform);
+		prototype.computeBoundingBox();
+		Point3 min = prototype.getMinBound();
+		Point3 max = prototype.getMaxBound();
+		minBound.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		maxBound.set(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		Point3 corner = new Point3();
+		for (int i = 0; i < 8; i++) {
+			corner.set((i & 1) == 0 ? min.x : max.x, (i & 2) == 0 ? min.y : max.y, (i & 4) == 0 ? min.z : max.z);
+			transform.transformPoint(corner, corner);
+			minBound.set(Math.min(minBound.x, corner.x), Math.min(minBound.y, corner.y), Math.min(minBound.z, corner.z));
+			maxBound.set(Math.max(maxBound.x, corner.x), Math.max(maxBound.y, corner.y), Math.max(maxBound.z, corner.z));
+		}
+		// Infinite prototype bounds turn into NaN, and so into infinite instance bounds
+		if (Double.isNaN(minBound.x + minBound.y + minBound.z + maxBound.x + maxBound.y + maxBound.z)) {
+			minBound.set(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+			maxBound.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		}
+	}
+
+	/**
+	 * @see Surface#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeSurface(prototype);
+		for (int i = 0; i < 12; i++) {
+			out.writeDouble(transform.m[i]);
+		}
+	}
+
+	/**
+	 * @see Surface#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		prototype = in.readSurface();
+		for (int i = 0; i < 12; i++) {
+			transform.m[i] = in.readDouble();
+		}
+	}
+
+	/**
+	 * Rays and records for each level of nested instances on one thread.
+	 */
+	private static class Scratch {
+		Ray[] rays = new Ray[0];
+		IntersectionRecord[] records = new IntersectionRecord[0];
+		int depth = 0;
+
+		void grow() {
+			int n = rays.length;
+			rays = Arrays.copyOf(rays, n + 4);
+			records = Arrays.copyOf(records, n + 4);
+			for (int i = n; i < n + 4; i++) {
+				rays[i] = new Ray();
+				records[i] = new IntersectionRecord();
+			}
+		}
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "Instance " + prototype + " " + transform + " " + shader + " end";
+	}
+}
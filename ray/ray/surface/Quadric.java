@@ -0,0 +1,318 @@
+package ray.surface;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import ray.BinaryScene;
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.math.Point3;
+import ray.math.Vector3;
+
+/**
+ * A quadric surface, optionally cut off by cap planes and closed by the caps.
+ * Relative to the anchor point, the quadric is where
+ *
+ *   f(p) = xx x^2 + yy y^2 + zz z^2 + 2 xy x y + 2 xz x z + 2 yz y z
+ *          + 2 x x + 2 y y + 2 z z + w
+ *
+ * is zero, and the solid it bounds is where f <= 0.  Each cap (n, d) keeps the
+ * half space n . p <= d of that solid, and the part of the plane n . p = d
+ * inside the solid and the other caps is a face of the surface.  The normal is
+ * the gradient of f on the quadric, and n on a cap.
+ *
+ * All of this is fixed before rendering, so intersecting a ray is one quadratic
+ * and one division per cap, with no sorting and no allocation; bounded ones
+ * first reject rays missing a sphere around them.  In a scene file
+ * a quadric is given as
+ *
+ *   <surface type="Quadric">
+ *     <coefficients>xx yy zz xy xz yz x y z w</coefficients>
+ *     <cap>nx ny nz d</cap> ...
+ *   </surface>
+ *
+ * with the anchor at the origin, and is unbounded.  Cylinder and Cone set the
+ * coefficients and caps from their own parameters, along any axis, in
+ * computeBoundingBox().
+ */
+public class Quadric extends Surface {
+
+	/** The coefficients of f, named by the terms they multiply. */
+	protected double xx, yy, zz, xy, xz, yz, x, y, z, w;
+
+	/** The point f is relative to; kept near the surface so f loses few digits. */
+	protected final Point3 anchor = new Point3();
+
+	/** The caps as (nx, ny, nz, d), four entries per cap, relative to the anchor, n of unit length. */
+	protected double[] caps = new double[0];
+
+	/**
+	 * The squared radius of a sphere about the anchor holding the whole surface,
+	 * or infinity; rays passing further from the anchor are rejected before f is
+	 * looked at.
+	 */
+	protected double reachSquared = Double.POSITIVE_INFINITY;
+
+	public Quadric() { }
+
+	/**
+	 * @param c the ten coefficients of f, in the order xx yy zz xy xz yz x y z w
+	 */
+	public void setCoefficients(double[] c) {
+		if (c.length != 10) {
+			throw new IllegalArgumentException("A quadric needs 10 coefficients, not " + c.length);
+		}
+		xx = c[0];
+		yy = c[1];
+		zz = c[2];
+		xy = c[3];
+		xz = c[4];
+		yz = c[5];
+		x = c[6];
+		y = c[7];
+		z = c[8];
+		w = c[9];
+	}
+
+	/**
+	 * @param plane the cap's plane as nx ny nz d, keeping n . p <= d
+	 */
+	public void addCap(double[] plane) {
+		if (plane.length != 4) {
+			throw new IllegalArgumentException("A cap needs 4 values, not " + plane.length);
+		}
+		double length = Math.sqrt(plane[0] * plane[0] + plane[1] * plane[1] + plane[2] * plane[2]);
+		caps = Arrays.copyOf(caps, caps.length + 4);
+		for (int k = 0; k < 4; k++) {
+			caps[caps.length - 4 + k] = plane[k] / length;
+		}
+	}
+
+	/**
+	 * Make this the surface of revolution about the line through center along
+	 * axis given by
+	 *
+	 *   f(p) = |p|^2 - k (p . axis)^2 + 2 l (p . axis) + m
+	 *
+	 * relative to center, capped at distance halfHeight either side of center.
+	 *
+	 * @param axis the axis, of unit length
+	 */
+	protected void setRevolution(Point3 center, Vector3 axis, double k, double l, double m, double halfHeight) {
+		anchor.set(center);
+		xx = 1 - k * axis.x * axis.x;
+		yy = 1 - k * axis.y * axis.y;
+		zz = 1 - k * axis.z * axis.z;
+		xy = -k * axis.x * axis.y;
+		xz = -k * axis.x * axis.z;
+		yz = -k * axis.y * axis.z;
+		x = l * axis.x;
+		y = l * axis.y;
+		z = l * axis.z;
+		w = m;
+		caps = new double[] { axis.x, axis.y, axis.z, halfHeight, -axis.x, -axis.y, -axis.z, halfHeight };
+	}
+
+	/**
+	 * Set the bounds, and reachSquared, to those of a cylinder of the given
+	 * radius about the line through the anchor along axis, reaching halfHeight
+	 * either side of it.
+	 *
+	 * @param axis the axis, of unit length
+	 */
+	protected void boundRevolution(Vector3 axis, double halfHeight, double radius) {
+		double ex = extent(axis.x, halfHeight, radius);
+		double ey = extent(axis.y, halfHeight, radius);
+		double ez = extent(axis.z, halfHeight, radius);
+		minBound.set(anchor.x - ex, anchor.y - ey, anchor.z - ez);
+		maxBound.set(anchor.x + ex, anchor.y + ey, anchor.z + ez);
+		// Padded for the rounding of the distance test
+		reachSquared = (halfHeight * halfHeight + radius * radius) * (1 + 1e-6);
+	}
+
+	/**
+	 * @return how far a cylinder reaches along a coordinate axis with which its
+	 *         own axis has cosine u
+	 */
+	private static double extent(double u, double halfHeight, double radius) {
+		double across = 1 - u * u;
+		return Math.abs(u) * halfHeight + (across > 0 ? radius * Math.sqrt(across) : 0);
+	}
+
+	/**
+	 * Tests this surface for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		Point3 o = rayIn.origin;
+		Vector3 d = rayIn.direction;
+		double ox = o.x - anchor.x;
+		double oy = o.y - anchor.y;
+		double oz = o.z - anchor.z;
+		double dx = d.x, dy = d.y, dz = d.z;
+		double start = rayIn.start, end = rayIn.end;
+
+		// The squared distance of the anchor from the line, times |d|^2
+		double cx = oy * dz - oz * dy;
+		double cy = oz * dx - ox * dz;
+		double cz = ox * dy - oy * dx;
+		if (cx * cx + cy * cy + cz * cz > reachSquared * (dx * dx + dy * dy + dz * dz)) {
+			return false;
+		}
+
+		// f(o + t d) = a t^2 + 2 b t + c
+		double qox = xx * ox + xy * oy + xz * oz + x;
+		double qoy = xy * ox + yy * oy + yz * oz + y;
+		double qoz = xz * ox + yz * oy + zz * oz + z;
+		double a = dx * (xx * dx + xy * dy + xz * dz) + dy * (xy * dx + yy * dy + yz * dz)
+				+ dz * (xz * dx + yz * dy + zz * dz);
+		double b = dx * qox + dy * qoy + dz * qoz;
+		double c = ox * (qox + x) + oy * (qoy + y) + oz * (qoz + z) + w;
+
+		// Without roots f keeps the sign of c along the whole line, and caps only
+		// cover points with f <= 0
+		double discriminant = b * b - a * c;
+		if (discriminant < 0 && c > 0) {
+			return false;
+		}
+
+		// The caps leave the ray (enter, exit); a ray parallel to a cap is either
+		// inside it all along or never
+		double enter = Double.NEGATIVE_INFINITY;
+		double exit = Double.POSITIVE_INFINITY;
+		int enterCap = -1;
+		int exitCap = -1;
+		for (int k = 0; k < caps.length; k += 4) {
+			double gap = caps[k + 3] - (caps[k] * ox + caps[k + 1] * oy + caps[k + 2] * oz);
+			double along = caps[k] * dx + caps[k + 1] * dy + caps[k + 2] * dz;
+			if (along < 0) {
+				double tc = gap / along;
+				if (tc > enter) {
+					enter = tc;
+					enterCap = k;
+				}
+			} else if (along > 0) {
+				double tc = gap / along;
+				if (tc < exit) {
+					exit = tc;
+					exitCap = k;
+				}
+			} else if (!(gap > 0)) {
+				return false;
+			}
+		}
+		if (!(enter <= exit) || exit < start || enter > end) {
+			return false;
+		}
+
+		// The closest valid candidate up to end wins: the cap entered, the quadric
+		// strictly between the caps, then the cap left.  A ray is rejected if that
+		// candidate comes before start, as Cylinder and Cone always did.  NaN
+		// never passes
+		double t = Double.POSITIVE_INFINITY;
+		int face = -1;
+		if (enterCap >= 0 && onCap(ox, oy, oz, dx, dy, dz, enter)) {
+			t = enter;
+			face = enterCap;
+		} else {
+			if (discriminant >= 0) {
+				// Without cancellation, and with a == 0 (one root) giving an infinite other root
+				double q = -(b + Math.copySign(Math.sqrt(discriminant), b));
+				double t1 = q / a;
+				double t2 = c / q;
+				double near = Math.min(t1, t2);
+				double far = Math.max(t1, t2);
+				if (near <= end && near > enter && near < exit) {
+					t = near;
+				} else if (far <= end && far > enter && far < exit) {
+					t = far;
+				}
+			}
+			if (t == Double.POSITIVE_INFINITY && exitCap >= 0 && exit <= end && onCap(ox, oy, oz, dx, dy, dz, exit)) {
+				t = exit;
+				face = exitCap;
+			}
+		}
+
+		if (t == Double.POSITIVE_INFINITY || t < start) {
+			return false;
+		}
+		rayIn.end = t;
+		outRecord.surface = this;
+		outRecord.t = t;
+		outRecord.location.set(o.x + d.x * t, o.y + d.y * t, o.z + d.z * t);
+		if (face < 0) {
+			surfaceNormal(outRecord.normal, ox + dx * t, oy + dy * t, oz + dz * t);
+		} else {
+			outRecord.normal.set(caps[face], caps[face + 1], caps[face + 2]);
+		}
+		return true;
+	}
+
+	/**
+	 * Sets normal to the unit normal of the quadric at the point (px, py, pz)
+	 * relative to the anchor: the gradient of f.
+	 */
+	protected void surfaceNormal(Vector3 normal, double px, double py, double pz) {
+		normal.set(xx * px + xy * py + xz * pz + x, xy * px + yy * py + yz * pz + y, xz * px + yz * py + zz * pz + z);
+		normal.normalize();
+	}
+
+	/**
+	 * @return true if the point at t along the ray (relative to the anchor), on
+	 *         the plane of a cap, is inside the quadric
+	 */
+	private boolean onCap(double ox, double oy, double oz, double dx, double dy, double dz, double t) {
+		return value(ox + dx * t, oy + dy * t, oz + dz * t) <= 0;
+	}
+
+	/**
+	 * @return f at the point (px, py, pz) relative to the anchor
+	 */
+	private double value(double px, double py, double pz) {
+		return px * (xx * px + 2 * (xy * py + xz * pz + x)) + py * (yy * py + 2 * (yz * pz + y))
+				+ pz * (zz * pz + 2 * z) + w;
+	}
+
+	/**
+	 * A general quadric may reach infinity, and is not bounded.
+	 * @see Surface#computeBoundingBox()
+	 */
+	public void computeBoundingBox() {
+		minBound.set(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		maxBound.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		reachSquared = Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @see Surface#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeDoubles(new double[] { xx, yy, zz, xy, xz, yz, x, y, z, w }, 10);
+		out.writeTuple(anchor);
+		out.writeDoubles(caps, caps.length);
+	}
+
+	/**
+	 * @see Surface#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		setCoefficients(in.readDoubles());
+		in.readTuple(anchor);
+		caps = in.readDoubles();
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "Quadric " + xx + " " + yy + " " + zz + " " + xy + " " + xz + " " + yz + " " + x + " " + y + " " + z + " "
+				+ w + " " + anchor + " " + (caps.length / 4) + " caps " + shader + " end";
+	}
+}
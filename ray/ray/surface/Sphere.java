@@ -1,5 +1,8 @@
 package ray.surface;
 
+import java.io.IOException;
+
+import ray.BinaryScene;
 import ray.IntersectionRecord;
 import ray.Ray;
 import ray.math.Point3;
@@ -33,19 +36,20 @@ public class Sphere extends Surface {
 	 * @return true if the surface intersects the ray
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
-	  Vector3 eminusc = new Vector3();
-		eminusc.sub(rayIn.origin, center);
+		Point3 o = rayIn.origin;
+		Vector3 d = rayIn.direction;
+		double ex = o.x - center.x;
+		double ey = o.y - center.y;
+		double ez = o.z - center.z;
 		
-		double a = rayIn.direction.dot(rayIn.direction);
-		double b = 2 * rayIn.direction.dot(eminusc);
-		double c = eminusc.dot(eminusc) - radius * radius;
+		double a = d.x * d.x + d.y * d.y + d.z * d.z;
+		double b = 2 * (d.x * ex + d.y * ey + d.z * ez);
+		double c = (ex * ex + ey * ey + ez * ez) - radius * radius;
 		double discriminant = b * b - 4 * a * c;
 		if (discriminant < 0) {
 			return false;
 		}
 		
-		eminusc = null;
-		
 		double t = (discriminant == 0 ? -b : -b - Math.sqrt(discriminant)) / (2 * a);
 		if (t > rayIn.end || t < rayIn.start) {
 		  return false;
@@ -53,12 +57,36 @@ public class Sphere extends Surface {
 		
 		outRecord.t = rayIn.end = t;
 		outRecord.surface = this;
-		outRecord.location.add(rayIn.origin, Vector3.getScaledVector(rayIn.direction, outRecord.t));
-		outRecord.normal.sub(outRecord.location, center); // TODO(garethaye): Complain more about lib
+		outRecord.location.set(o.x + d.x * t, o.y + d.y * t, o.z + d.z * t);
+		outRecord.normal.sub(outRecord.location, center);
 		outRecord.normal.normalize();
 		return true;
 	}
 	
+	/**
+	 * @see Surface#computeBoundingBox()
+	 */
+	public void computeBoundingBox() {
+		minBound.set(center.x - radius, center.y - radius, center.z - radius);
+		maxBound.set(center.x + radius, center.y + radius, center.z + radius);
+	}
+	
+	/**
+	 * @see Surface#write(BinaryScene.Output)
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		out.writeTuple(center);
+		out.writeDouble(radius);
+	}
+	
+	/**
+	 * @see Surface#read(BinaryScene.Input)
+	 */
+	public void read(BinaryScene.Input in) {
+		in.readTuple(center);
+		radius = in.readDouble();
+	}
+	
 	/**
 	 * @see Object#toString()
 	 */
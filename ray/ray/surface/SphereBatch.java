@@ -0,0 +1,162 @@
+package ray.surface;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ray.Ray;
+
+/**
+ * A structure-of-arrays copy of many spheres, for scenes made of thousands of
+ * them.  Centers and squared radii are kept in flat arrays and a ray is tested
+ * against all of them in one loop, with no virtual calls, returning only the
+ * index of the nearest hit; the caller then fills in the record by calling
+ * Sphere.intersect on that one sphere.
+ *
+ * The arithmetic is the same sequence of IEEE operations as Sphere.intersect
+ * (no fused multiply-add), so the t found for every sphere is bit-identical to
+ * the scalar kernel's and the two agree exactly on which sphere is nearest.  The
+ * arrays are padded to a multiple of MAX_LANES with NaN centers, which never hit.
+ *
+ * create() returns the vectorized version when the jdk.incubator.vector module
+ * is present (run with --add-modules jdk.incubator.vector) and this scalar
+ * version otherwise, or with singlePrecision set their FloatSphereBatch
+ * counterparts.
+ */
+public class SphereBatch {
+
+	/** Lane count the arrays are padded to; the widest (512 bit) double vector. */
+	static final int MAX_LANES = 8;
+
+	/** Below this many spheres the batch is not worth building. */
+	public static final int MIN_SPHERES = 8;
+
+	/**
+	 * If set (with RayTracer's -float option), create() returns a batch that
+	 * culls spheres in single precision (see FloatSphereBatch).
+	 */
+	public static boolean singlePrecision = false;
+
+	protected final Sphere[] spheres;
+	protected final double[] cx, cy, cz, r2;
+
+	protected SphereBatch(List<Sphere> input) {
+		spheres = input.toArray(new Sphere[input.size()]);
+		int padded = (spheres.length + MAX_LANES - 1) / MAX_LANES * MAX_LANES;
+		cx = new double[padded];
+		cy = new double[padded];
+		cz = new double[padded];
+		r2 = new double[padded];
+		Arrays.fill(cx, Double.NaN);
+		Arrays.fill(cy, Double.NaN);
+		Arrays.fill(cz, Double.NaN);
+		for (int i = 0; i < spheres.length; i++) {
+			Sphere s = spheres[i];
+			cx[i] = s.center.x;
+			cy[i] = s.center.y;
+			cz[i] = s.center.z;
+			r2[i] = s.radius * s.radius;
+		}
+	}
+
+	/**
+	 * Build a batch over the given spheres, vectorized if the platform allows.
+	 */
+	public static SphereBatch create(List<Sphere> spheres) {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				String name = singlePrecision ? "ray.surface.VectorFloatSphereBatch" : "ray.surface.VectorSphereBatch";
+				return (SphereBatch) Class.forName(name).getDeclaredConstructor(List.class).newInstance(spheres);
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// Fall through to the scalar version
+			}
+		}
+		return singlePrecision ? new FloatSphereBatch(spheres) : new SphereBatch(spheres);
+	}
+
+	/**
+	 * @return the sphere at index i
+	 */
+	public Sphere get(int i) {
+		return spheres[i];
+	}
+
+	/**
+	 * @return the number of spheres
+	 */
+	public int size() {
+		return spheres.length;
+	}
+
+	/**
+	 * @return a short description of the kernel, for log output
+	 */
+	public String kernel() {
+		return "scalar";
+	}
+
+	/**
+	 * Find the sphere whose hit along the ray is nearest, using exactly the
+	 * acceptance test of Sphere.intersect.  The ray is not modified.
+	 *
+	 * @param ray the ray to intersect
+	 * @param anyIntersection if true, return the first sphere found to be hit
+	 * @return the index of the sphere hit, or -1 if none is
+	 */
+	public int intersect(Ray ray, boolean anyIntersection) {
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		double start = ray.start, end = ray.end;
+		double a = dx * dx + dy * dy + dz * dz;
+		double twoA = 2 * a;
+		double fourA = 4 * a;
+
+		double mint = Double.POSITIVE_INFINITY;
+		int best = -1;
+		for (int i = 0; i < spheres.length; i++) {
+			double ex = ox - cx[i];
+			double ey = oy - cy[i];
+			double ez = oz - cz[i];
+			double b = 2 * (dx * ex + dy * ey + dz * ez);
+			double c = (ex * ex + ey * ey + ez * ez) - r2[i];
+			double discriminant = b * b - fourA * c;
+			if (discriminant < 0) {
+				continue;
+			}
+			double t = (discriminant == 0 ? -b : -b - Math.sqrt(discriminant)) / twoA;
+			if (t > end || t < start) {
+				continue;
+			}
+			if (anyIntersection) {
+				return i;
+			}
+			if (t < mint || best < 0) {
+				mint = t;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The t at which the ray hits sphere i, by the same operations as the loop
+	 * in intersect, or NaN if that loop would not accept the hit (or the t found
+	 * is NaN).
+	 */
+	protected final double hit(int i, double ox, double oy, double oz, double dx, double dy, double dz,
+			double twoA, double fourA, double start, double end) {
+		double ex = ox - cx[i];
+		double ey = oy - cy[i];
+		double ez = oz - cz[i];
+		double b = 2 * (dx * ex + dy * ey + dz * ez);
+		double c = (ex * ex + ey * ey + ez * ez) - r2[i];
+		double discriminant = b * b - fourA * c;
+		if (discriminant < 0) {
+			return Double.NaN;
+		}
+		double t = (discriminant == 0 ? -b : -b - Math.sqrt(discriminant)) / twoA;
+		if (t > end || t < start) {
+			return Double.NaN;
+		}
+		return t;
+	}
+}
@@ -1,7 +1,12 @@
 package ray.surface;
 
+import java.io.IOException;
+import java.util.ArrayList;
+
+import ray.BinaryScene;
 import ray.IntersectionRecord;
 import ray.Ray;
+import ray.math.Point3;
 import ray.shader.Shader;
 
 /**
@@ -17,6 +22,59 @@ public abstract class Surface {
 	public void setShader(Shader material) { this.shader = material; }
 	public Shader getShader() { return shader; }
 	
+	/**
+	 * @param record a hit this surface reported
+	 * @return the shader to shade that hit with; surfaces made of parts, such as
+	 *         Instance, choose it by the part that was hit
+	 */
+	public Shader getShader(IntersectionRecord record) { return shader; }
+	
+	/**
+	 * Most surface classes told apart by the per-class counters in Workspace;
+	 * further classes share the last index.
+	 */
+	public static final int MAX_CLASSES = 32;
+	
+	/** Surface classes by classIndex, in the order they were first constructed. */
+	private static final ArrayList<Class<?>> CLASSES = new ArrayList<Class<?>>();
+	private static final ClassValue<Integer> CLASS_INDEX = new ClassValue<Integer>() {
+		protected Integer computeValue(Class<?> c) {
+			synchronized (CLASSES) {
+				CLASSES.add(c);
+				return Math.min(CLASSES.size(), MAX_CLASSES) - 1;
+			}
+		}
+	};
+	
+	/** A small number naming this surface's class, for counting intersection tests by class. */
+	public final int classIndex = CLASS_INDEX.get(getClass());
+	
+	/**
+	 * @param classIndex a classIndex of some surface
+	 * @return the name of the class with that index, or "other" for the index shared by the overflow
+	 */
+	public static String className(int classIndex) {
+		synchronized (CLASSES) {
+			if (classIndex == MAX_CLASSES - 1 && CLASSES.size() > MAX_CLASSES) {
+				return "other";
+			}
+			return CLASSES.get(classIndex).getSimpleName();
+		}
+	}
+	
+	/** @return how many classIndex values are in use */
+	public static int classCount() {
+		synchronized (CLASSES) {
+			return Math.min(CLASSES.size(), MAX_CLASSES);
+		}
+	}
+	
+	/** The corners of the axis aligned box bounding this surface, set by computeBoundingBox(). */
+	protected final Point3 minBound = new Point3();
+	protected final Point3 maxBound = new Point3();
+	public Point3 getMinBound() { return minBound; }
+	public Point3 getMaxBound() { return maxBound; }
+	
 	/**
 	 * Tests this surface for intersection with ray. If an intersection is found
 	 * record is filled out with the information about the intersection and the
@@ -28,5 +86,34 @@ public abstract class Surface {
 	 * @return true if the surface intersects the ray
 	 */
 	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
+	
+	/**
+	 * Compute minBound and maxBound so that every point this surface can report
+	 * as an intersection lies inside them. Called once after the surface has been
+	 * parsed, before any acceleration structure is built. Surfaces that cannot be
+	 * bounded should set infinite bounds.
+	 */
+	public abstract void computeBoundingBox();
+	
+	/**
+	 * Write the values that define this surface to a binary scene, for read to
+	 * restore; the shader is stored by BinaryScene.  Surfaces that do not
+	 * override this cannot be stored in a binary scene.
+	 *
+	 * @param out the binary scene being written
+	 */
+	public void write(BinaryScene.Output out) throws IOException {
+		throw new UnsupportedOperationException(getClass().getName() + " cannot be stored in a binary scene");
+	}
+	
+	/**
+	 * Restore the values stored by write, on a surface made with the zero
+	 * argument constructor.
+	 *
+	 * @param in the binary scene being read
+	 */
+	public void read(BinaryScene.Input in) {
+		throw new UnsupportedOperationException(getClass().getName() + " cannot be read from a binary scene");
+	}
 
 }
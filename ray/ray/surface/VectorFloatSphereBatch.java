@@ -0,0 +1,120 @@
+package ray.surface;
+
+import java.util.List;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import ray.Ray;
+
+/**
+ * FloatSphereBatch using the incubating Vector API: the float test runs on as
+ * many spheres per step as the preferred float vector holds, twice as many as
+ * VectorSphereBatch's doubles (8 with AVX2, 16 with AVX-512).  The lanes that
+ * pass are tested in double one by one, in lane order, so the result is the
+ * scalar kernel's.  Only loaded by SphereBatch.create when the
+ * jdk.incubator.vector module is available.
+ */
+class VectorFloatSphereBatch extends FloatSphereBatch {
+
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	private static final FloatVector ZERO = FloatVector.zero(SPECIES);
+
+	/** 2^k in lane k.  At most 16 lanes, so any sum of them is exact in float. */
+	private static final FloatVector LANE_BITS;
+	static {
+		float[] bits = new float[SPECIES.length()];
+		for (int k = 0; k < bits.length; k++) {
+			bits[k] = 1 << k;
+		}
+		LANE_BITS = FloatVector.fromArray(SPECIES, bits, 0);
+	}
+
+	VectorFloatSphereBatch(List<Sphere> input) {
+		super(input);
+	}
+
+	/**
+	 * @see SphereBatch#kernel()
+	 */
+	public String kernel() {
+		return "float vector x" + SPECIES.length();
+	}
+
+	/**
+	 * @see SphereBatch#intersect(Ray, boolean)
+	 */
+	public int intersect(Ray ray, boolean anyIntersection) {
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		double start = ray.start, end = ray.end;
+		double a = dx * dx + dy * dy + dz * dz;
+		double twoA = 2 * a;
+		double fourA = 4 * a;
+
+		float fox = (float) ox, foy = (float) oy, foz = (float) oz;
+		float fdx = (float) dx, fdy = (float) dy, fdz = (float) dz;
+		float invA = (float) (1 / a);
+		float invLength = (float) (1 / Math.sqrt(a));
+		double widening = widening(ray);
+		float pad = (float) widening;
+		float tpad = (float) (2 * widening / Math.sqrt(a));
+		float fstart = (float) start, fend = (float) end;
+
+		double mint = Double.POSITIVE_INFINITY;
+		int best = -1;
+		int lanes = SPECIES.length();
+		for (int i = 0; i < fx.length; i += lanes) {
+			// Lanes that passed, tested exactly in the order of the scalar kernel
+			for (long m = pass(fx, fy, fz, fr, i, fox, foy, foz, fdx, fdy, fdz, invA, invLength, pad, tpad, fstart, fend); m != 0;
+					m &= m - 1) {
+				int j = i + Long.numberOfTrailingZeros(m);
+				double t = hit(j, ox, oy, oz, dx, dy, dz, twoA, fourA, start, end);
+				if (t != t) {
+					continue;
+				}
+				if (anyIntersection) {
+					return j;
+				}
+				if (t < mint || best < 0) {
+					mint = t;
+					best = j;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The float test of FloatSphereBatch.intersect on the spheres from i on, one
+	 * vector of them.  Kept apart from the double test of the lanes that pass so
+	 * that no vector or mask is live across a call to hit.  The mask is turned
+	 * into bits by summing LANE_BITS over its lanes: VectorMask.toLong is not an
+	 * intrinsic before JDK 18, and copies the mask into a new array every step.
+	 *
+	 * @return the lanes that pass, as a bit mask
+	 */
+	private static long pass(float[] fx, float[] fy, float[] fz, float[] fr, int i, float fox, float foy, float foz,
+			float fdx, float fdy, float fdz, float invA, float invLength, float pad, float tpad, float fstart,
+			float fend) {
+		FloatVector lx = FloatVector.fromArray(SPECIES, fx, i).sub(fox);
+		FloatVector ly = FloatVector.fromArray(SPECIES, fy, i).sub(foy);
+		FloatVector lz = FloatVector.fromArray(SPECIES, fz, i).sub(foz);
+		FloatVector tca = lx.mul(fdx).add(ly.mul(fdy)).add(lz.mul(fdz)).mul(invA);
+		FloatVector px = lx.sub(tca.mul(fdx));
+		FloatVector py = ly.sub(tca.mul(fdy));
+		FloatVector pz = lz.sub(tca.mul(fdz));
+		FloatVector r = FloatVector.fromArray(SPECIES, fr, i);
+		FloatVector reach = r.add(pad);
+		VectorMask<Float> near = px.mul(px).add(py.mul(py)).add(pz.mul(pz)).compare(VectorOperators.LE, reach.mul(reach));
+		if (!near.anyTrue()) {
+			return 0;
+		}
+		FloatVector slack = tca.abs().mul((float) WIDENING).add(tpad);
+		VectorMask<Float> pass = near.and(tca.add(slack).compare(VectorOperators.GE, fstart))
+				.and(tca.sub(r.mul(invLength)).sub(slack).compare(VectorOperators.LE, fend));
+		return (long) ZERO.blend(LANE_BITS, pass).reduceLanes(VectorOperators.ADD);
+	}
+}
@@ -0,0 +1,91 @@
+package ray.surface;
+
+import java.util.List;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import ray.Ray;
+
+/**
+ * SphereBatch using the incubating Vector API: each step tests the ray against
+ * as many spheres as the preferred double vector holds (4 with AVX2, 8 with
+ * AVX-512).  Only steps with a hit reduce their lanes, so all state carried
+ * across steps is scalar and no vector has to be boxed.  Only loaded by
+ * SphereBatch.create when the jdk.incubator.vector module is available.
+ */
+class VectorSphereBatch extends SphereBatch {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final DoubleVector INFINITY = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+	private static final DoubleVector ZERO = DoubleVector.zero(SPECIES);
+
+	VectorSphereBatch(List<Sphere> input) {
+		super(input);
+	}
+
+	/**
+	 * @see SphereBatch#kernel()
+	 */
+	public String kernel() {
+		return "vector x" + SPECIES.length();
+	}
+
+	/**
+	 * @see SphereBatch#intersect(Ray, boolean)
+	 */
+	public int intersect(Ray ray, boolean anyIntersection) {
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		double a = dx * dx + dy * dy + dz * dz;
+		DoubleVector ox = DoubleVector.broadcast(SPECIES, ray.origin.x);
+		DoubleVector oy = DoubleVector.broadcast(SPECIES, ray.origin.y);
+		DoubleVector oz = DoubleVector.broadcast(SPECIES, ray.origin.z);
+		DoubleVector start = DoubleVector.broadcast(SPECIES, ray.start);
+		DoubleVector end = DoubleVector.broadcast(SPECIES, ray.end);
+		double twoA = 2 * a;
+		double fourA = 4 * a;
+
+		double mint = Double.POSITIVE_INFINITY;
+		int best = -1;
+		int lanes = SPECIES.length();
+		for (int i = 0; i < cx.length; i += lanes) {
+			DoubleVector ex = ox.sub(DoubleVector.fromArray(SPECIES, cx, i));
+			DoubleVector ey = oy.sub(DoubleVector.fromArray(SPECIES, cy, i));
+			DoubleVector ez = oz.sub(DoubleVector.fromArray(SPECIES, cz, i));
+			DoubleVector b = ex.mul(dx).add(ey.mul(dy)).add(ez.mul(dz)).mul(2);
+			DoubleVector c = ex.mul(ex).add(ey.mul(ey)).add(ez.mul(ez))
+					.sub(DoubleVector.fromArray(SPECIES, r2, i));
+			DoubleVector discriminant = b.mul(b).sub(c.mul(fourA));
+			VectorMask<Double> hit = discriminant.compare(VectorOperators.GE, 0);
+			if (!hit.anyTrue()) {
+				continue;
+			}
+
+			// Same as Sphere: a zero discriminant skips the square root
+			DoubleVector root = discriminant.sqrt().blend(ZERO, discriminant.compare(VectorOperators.EQ, 0));
+			DoubleVector t = b.neg().sub(root).div(twoA);
+			hit = hit.andNot(t.compare(VectorOperators.GT, end).or(t.compare(VectorOperators.LT, start)));
+			if (!hit.anyTrue()) {
+				continue;
+			}
+			if (anyIntersection) {
+				return i + hit.firstTrue();
+			}
+
+			// Nearest hit of this step; the first lane and earlier steps win ties
+			DoubleVector candidates = t.blend(INFINITY, hit.not());
+			double stepMin = candidates.reduceLanes(VectorOperators.MIN);
+			if (!(stepMin < Double.POSITIVE_INFINITY)) {
+				// Hits at infinity or NaN; leave the tie breaking to the scalar loop
+				return super.intersect(ray, false);
+			}
+			if (stepMin < mint) {
+				mint = stepMin;
+				best = i + candidates.compare(VectorOperators.EQ, stepMin).firstTrue();
+			}
+		}
+		return best;
+	}
+}
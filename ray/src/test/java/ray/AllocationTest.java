@@ -0,0 +1,59 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ray.accel.AccelStruct;
+import ray.accel.Bvh;
+import ray.surface.SphereBatch;
+
+/**
+ * The render loop allocates nothing once warmed up (see
+ * RayTracer.measureAllocations), with double and with -float bounds, through
+ * the sphere batch and through a Bvh large enough to use float bounds.
+ */
+public class AllocationTest {
+
+	/** Enough surfaces for the Bvh's double bounds to pass FLOAT_BOUNDS_MIN_BYTES. */
+	private static final int LARGE = 20000;
+
+	@AfterEach
+	void restoreOptions() {
+		SphereBatch.singlePrecision = false;
+		AccelStruct.singlePrecision = false;
+		RayTracer.packetSize = 1;
+	}
+
+	@Test
+	void sphereBatch() {
+		assertNoAllocation(false, null);
+	}
+
+	@Test
+	void sphereBatchFloat() {
+		assertNoAllocation(true, null);
+	}
+
+	@Test
+	void bvh() {
+		assertNoAllocation(false, new Bvh());
+	}
+
+	@Test
+	void bvhFloat() {
+		assertNoAllocation(true, new Bvh());
+	}
+
+	private static void assertNoAllocation(boolean singlePrecision, AccelStruct accel) {
+		SphereBatch.singlePrecision = singlePrecision;
+		AccelStruct.singlePrecision = singlePrecision;
+		for (int packetSize : new int[] { 1, 4 }) {
+			RayTracer.packetSize = packetSize;
+			Scene scene = TestScenes.spheres(accel != null ? LARGE : 200, accel, 64);
+			assertEquals(0, RayTracer.measureAllocations(scene),
+					"bytes allocated with -packet " + packetSize + (singlePrecision ? " -float" : ""));
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+import ray.accel.AccelStruct;
+import ray.accel.Bvh;
+import ray.accel.Grid;
+import ray.surface.Instance;
+import ray.surface.Surface;
+
+/**
+ * A scene written by BinaryScene and read back renders exactly as the scene
+ * it was written from, with its acceleration structure restored rather than
+ * built again, its light merge distance kept and shared prototypes stored
+ * once.
+ */
+public class BinarySceneTest {
+
+	/** Three instances of one group, with a shader of the instance's own on the last. */
+	private static final String INSTANCES = "<scene>"
+			+ "<camera><viewPoint>0 2 8</viewPoint><viewDir>0 -2 -8</viewDir><viewUp>0 1 0</viewUp>"
+			+ "<projDistance>2</projDistance><viewWidth>2</viewWidth><viewHeight>2</viewHeight></camera>"
+			+ "<image>64 64</image>"
+			+ "<shader name=\"red\" type=\"Phong\"><diffuseColor>.8 .2 .2</diffuseColor>"
+			+ "<specularColor>.5 .5 .5</specularColor><exponent>30</exponent></shader>"
+			+ "<shader name=\"blue\" type=\"Lambertian\"><diffuseColor>.2 .3 .9</diffuseColor></shader>"
+			+ "<surface type=\"Instance\"><prototype type=\"Group\" name=\"post\">"
+			+ "<surface type=\"Cylinder\"><shader ref=\"red\"/><center>0 0 0</center><radius>.3</radius><height>1.5</height></surface>"
+			+ "<surface type=\"Sphere\"><shader ref=\"blue\"/><center>0 0 .9</center><radius>.4</radius></surface>"
+			+ "</prototype><rotateX>-90</rotateX><translate>-1.5 0 0</translate></surface>"
+			+ "<surface type=\"Instance\"><prototype ref=\"post\"/><rotateX>-90</rotateX></surface>"
+			+ "<surface type=\"Instance\"><prototype ref=\"post\"/><shader ref=\"blue\"/><scale>1 1 .5</scale>"
+			+ "<rotateX>-90</rotateX><translate>1.5 0 0</translate></surface>"
+			+ "<light><position>3 6 5</position><intensity>1 1 1</intensity></light>"
+			+ "</scene>";
+
+	@Test
+	void repositoryScenes() throws IOException {
+		for (String fileName : TestScenes.repositoryScenes()) {
+			assertRoundTrip(fileName, null);
+			assertRoundTrip(fileName, new Bvh());
+			assertRoundTrip(fileName, new Grid());
+		}
+	}
+
+	@Test
+	void instances() throws IOException {
+		File xml = File.createTempFile("instances-", ".xml");
+		try {
+			Files.write(xml.toPath(), INSTANCES.getBytes(StandardCharsets.UTF_8));
+			assertRoundTrip(xml.getPath(), new Bvh());
+		} finally {
+			xml.delete();
+		}
+	}
+
+	@Test
+	void lightMergeDistance() throws IOException {
+		Scene scene = TestScenes.load("../MYTEST/MYTEST.xml", new Bvh());
+		scene.setLightMergeDistance(0.25);
+		File binary = File.createTempFile("scene-", BinaryScene.EXTENSION);
+		try {
+			BinaryScene.write(scene, binary.getPath());
+			assertEquals(0.25, BinaryScene.read(binary.getPath()).getLightMergeDistance(), 0);
+		} finally {
+			binary.delete();
+		}
+	}
+
+	private static void assertRoundTrip(String fileName, AccelStruct accel) throws IOException {
+		Scene scene = TestScenes.load(fileName, accel);
+		File binary = File.createTempFile("scene-", BinaryScene.EXTENSION);
+		try {
+			BinaryScene.write(scene, binary.getPath());
+			Image expected = TestScenes.render(scene);
+
+			Scene read = BinaryScene.read(binary.getPath());
+			String name = fileName + " with " + (accel != null ? accel.getClass().getSimpleName() : "no accel");
+			assertEquals(TestScenes.SIZE, read.getImage().getWidth(), name);
+			assertEquals(TestScenes.SIZE, read.getImage().getHeight(), name);
+			assertEquals(scene.surfaces.size(), read.surfaces.size(), name);
+			if (accel != null) {
+				assertSame(accel.getClass(), read.getAccel().getClass(), name);
+				assertTrue(read.getAccel().isPrebuilt(), name);
+			} else {
+				assertNull(read.getAccel(), name);
+			}
+			assertPrototypesShared(read, name);
+			assertNull(TestScenes.firstDifference(expected, TestScenes.render(read)), name);
+		} finally {
+			binary.delete();
+		}
+	}
+
+	/** Instances that shared a prototype before writing share one after reading. */
+	private static void assertPrototypesShared(Scene scene, String name) {
+		Surface prototype = null;
+		for (Surface surface : scene.surfaces) {
+			if (surface instanceof Instance) {
+				Surface own = ((Instance) surface).getPrototype();
+				if (prototype != null) {
+					assertSame(prototype, own, name);
+				}
+				prototype = own;
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A cost map, on the heap or mapped, selects the same percentiles as sorting
+ * its costs would, and writes them out unchanged.
+ */
+public class CostMapTest {
+
+	private static final int WIDTH = 113;
+	private static final int HEIGHT = 71;
+
+	@AfterEach
+	void restoreOptions() {
+		Image.mapFramebuffers = false;
+	}
+
+	@Test
+	void heap() throws IOException {
+		assertCosts();
+	}
+
+	@Test
+	void mapped() throws IOException {
+		Image.mapFramebuffers = true;
+		assertCosts();
+	}
+
+	private static void assertCosts() throws IOException {
+		CostMap map = new CostMap(CostMap.Measure.TESTS, WIDTH, HEIGHT);
+		float[] expected = new float[WIDTH * HEIGHT];
+		Random random = new Random(1);
+		Workspace work = new Workspace();
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				// Many zeros and repeats, and a long tail
+				long cost = random.nextInt(4) == 0 ? 0 : (long) Math.exp(12 * random.nextDouble());
+				work.surfaceTests[0] = cost;
+				map.add(x, y, work, 0);
+				expected[y * WIDTH + x] = cost;
+			}
+		}
+
+		double total = 0;
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				assertEquals(expected[y * WIDTH + x], map.get(x, y), 0, "pixel " + x + "," + y);
+				total += expected[y * WIDTH + x];
+			}
+		}
+		assertEquals(total / expected.length, map.mean(), 1e-9 * total);
+
+		float[] sorted = expected.clone();
+		Arrays.sort(sorted);
+		double[] fractions = { 0, 0.25, 0.5, 0.9, 0.99, 1 };
+		float[] percentiles = map.percentiles(fractions);
+		for (int k = 0; k < fractions.length; k++) {
+			int rank = (int) Math.min(sorted.length - 1, Math.floor(fractions[k] * sorted.length));
+			assertEquals(sorted[rank], percentiles[k], 0, "percentile " + fractions[k]);
+			assertEquals(sorted[rank], map.percentile(fractions[k]), 0, "percentile " + fractions[k]);
+		}
+
+		File file = File.createTempFile("costs-", "");
+		try {
+			map.write(file.getPath());
+			BufferedImage ramp = ImageIO.read(new File(file.getPath() + ".png"));
+			assertEquals(WIDTH, ramp.getWidth());
+			assertEquals(HEIGHT, ramp.getHeight());
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(new File(file.getPath() + ".pfm").toPath()))) {
+				String header = "Pf\n" + WIDTH + " " + HEIGHT + "\n-1.0\n";
+				byte[] bytes = new byte[header.length()];
+				in.readFully(bytes);
+				assertEquals(header, new String(bytes, "US-ASCII"));
+				for (int i = 0; i < expected.length; i++) {
+					assertEquals(expected[i], Float.intBitsToFloat(Integer.reverseBytes(in.readInt())), 0, "pfm value " + i);
+				}
+			}
+		} finally {
+			map.close();
+			file.delete();
+			new File(file.getPath() + ".png").delete();
+			new File(file.getPath() + ".pfm").delete();
+		}
+	}
+}
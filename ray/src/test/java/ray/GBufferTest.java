@@ -0,0 +1,131 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Renders that replay a GBuffer give exactly the image of a full render of the
+ * edited scene: replaying hits and tracing shadows again after a light moved,
+ * and replaying both after a light's intensity or a shader's color changed.
+ * Each repository scene is copied to a scratch directory, recorded, edited
+ * there and relit.
+ */
+public class GBufferTest {
+
+	private static final Pattern LIGHT_POSITION = Pattern.compile("(<light>\\s*<position>)([^<]*)(</position>)");
+	private static final Pattern LIGHT_INTENSITY = Pattern.compile("(<intensity>)([^<]*)(</intensity>)");
+	private static final Pattern DIFFUSE_COLOR = Pattern.compile("(<diffuseColor>)([^<]*)(</diffuseColor>)");
+
+	private Path directory;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("gbuffer");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	void movedLight() throws IOException {
+		for (String fileName : TestScenes.repositoryScenes()) {
+			String copy = record(fileName);
+			edit(copy, LIGHT_POSITION, "1 4 3");
+			assertRelit(copy, true, false);
+		}
+	}
+
+	@Test
+	void brighterLight() throws IOException {
+		for (String fileName : TestScenes.repositoryScenes()) {
+			String copy = record(fileName);
+			edit(copy, LIGHT_INTENSITY, "0.9 0.7 0.2");
+			assertRelit(copy, true, true);
+		}
+	}
+
+	@Test
+	void editedShader() throws IOException {
+		for (String fileName : TestScenes.repositoryScenes()) {
+			String copy = record(fileName);
+			edit(copy, DIFFUSE_COLOR, "0.3 0.8 0.5");
+			assertRelit(copy, true, true);
+		}
+	}
+
+	/**
+	 * Copy the scene to the scratch directory and render it, recording its buffer.
+	 *
+	 * @return the path of the copy
+	 */
+	private String record(String fileName) throws IOException {
+		Path copy = directory.resolve(new File(fileName).getName());
+		Files.copy(new File(fileName).toPath(), copy);
+		Image recorded = relight(copy.toString(), false, false);
+		assertNull(TestScenes.firstDifference(TestScenes.render(TestScenes.load(copy.toString(), null)), recorded),
+				fileName + " recorded");
+		return copy.toString();
+	}
+
+	/**
+	 * Replace the first match of pattern's second group in the file.
+	 */
+	private static void edit(String fileName, Pattern pattern, String value) throws IOException {
+		Path path = new File(fileName).toPath();
+		String xml = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+		Matcher matcher = pattern.matcher(xml);
+		assertEquals(true, matcher.find(), fileName + " has no " + pattern);
+		xml = xml.substring(0, matcher.start(2)) + value + xml.substring(matcher.end(2));
+		Files.write(path, xml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Relight the edited scene, replaying what the buffer holds, and compare the
+	 * image with a full render.
+	 */
+	private static void assertRelit(String fileName, boolean hits, boolean shadows) throws IOException {
+		Image relit = relight(fileName, hits, shadows);
+		Image full = TestScenes.render(TestScenes.load(fileName, null));
+		assertNull(TestScenes.firstDifference(full, relit), fileName);
+	}
+
+	/**
+	 * Render the scene with its buffer, as RayTracer.renderImage does with -relight.
+	 *
+	 * @param hits whether the buffer should replay hits
+	 * @param shadows whether it should replay shadows too
+	 */
+	private static Image relight(String fileName, boolean hits, boolean shadows) throws IOException {
+		Scene scene = TestScenes.load(fileName, null);
+		scene.initializeLights();
+		GBuffer gbuffer = new GBuffer(scene, fileName + ".gbuf");
+		assertEquals(hits, gbuffer.replaysHits(), fileName + " replays hits");
+		assertEquals(shadows, gbuffer.replaysShadows(), fileName + " replays shadows");
+		scene.setGBuffer(gbuffer);
+		if (!shadows) {
+			scene.initialize();
+		}
+		RayTracer.render(scene);
+		scene.setGBuffer(null);
+		gbuffer.close();
+		return scene.getImage();
+	}
+}
@@ -0,0 +1,74 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Scenes sent to RenderServer and TileServer are parsed from the network, so
+ * the parser must not process DTDs: fetch no external DTD or entity, and
+ * expand no internal entity.
+ */
+public class ParserTest {
+
+	private static final String SCENE = "<scene><image>%s 20</image></scene>";
+
+	@Test
+	void plainScene() throws XMLStreamException {
+		Scene scene = (Scene) new Parser().parse(stream(String.format(SCENE, "30")), Scene.class);
+		assertEquals(30, scene.getImage().getWidth());
+	}
+
+	@Test
+	void externalEntities() throws IOException {
+		AtomicInteger requests = new AtomicInteger();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", exchange -> {
+			requests.incrementAndGet();
+			byte[] body = "<!ENTITY size \"30\">".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+		try {
+			String url = "http://localhost:" + server.getAddress().getPort();
+			for (String doctype : new String[] {
+					"<!DOCTYPE scene SYSTEM \"" + url + "/scene.dtd\">",
+					"<!DOCTYPE scene [<!ENTITY % sizes SYSTEM \"" + url + "/sizes\"> %sizes;]>",
+					"<!DOCTYPE scene [<!ENTITY size SYSTEM \"" + url + "/size\">]>" }) {
+				try {
+					new Parser().parse(stream(doctype + String.format(SCENE, "&size;")), Scene.class);
+				} catch (XMLStreamException e) {
+					// Rejecting the document is fine, as long as nothing was fetched
+				}
+				assertEquals(0, requests.get(), doctype);
+			}
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void internalEntity() {
+		String xml = "<!DOCTYPE scene [<!ENTITY size \"30\">]>" + String.format(SCENE, "&size;");
+		assertThrows(XMLStreamException.class, () -> new Parser().parse(stream(xml), Scene.class));
+	}
+
+	private static InputStream stream(String xml) {
+		return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,94 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+
+import ray.math.Color;
+
+/**
+ * A PNG written by PngWriter decodes to the same pixels as one written by
+ * Image.writeImageIO: in parallel and on the calling thread, at every kind of
+ * deflate level, for images of one band and of several, in memory and mapped.
+ */
+public class PngWriterTest {
+
+	@Test
+	void oneBand() throws IOException {
+		assertSameAsImageIO(noise(new Image(97, 61)));
+	}
+
+	@Test
+	void severalBands() throws IOException {
+		// About 2.4MB of filtered rows, so three bands of BAND_BYTES
+		assertSameAsImageIO(noise(new Image(701, 1200)));
+	}
+
+	@Test
+	void mapped() throws IOException {
+		MappedImage image = new MappedImage(701, 1200);
+		try {
+			assertSameAsImageIO(noise(image));
+		} finally {
+			image.close();
+		}
+	}
+
+	@Test
+	void renderedScene() throws IOException {
+		assertSameAsImageIO(TestScenes.render(TestScenes.load("../MYTEST/MYTEST.xml", null)));
+	}
+
+	private static void assertSameAsImageIO(Image image) throws IOException {
+		File expected = File.createTempFile("imageio-", ".png");
+		File actual = File.createTempFile("pngwriter-", ".png");
+		try {
+			image.writeImageIO(expected.getPath());
+			BufferedImage reference = ImageIO.read(expected);
+			for (boolean parallel : new boolean[] { true, false }) {
+				for (int level : new int[] { 0, PngWriter.DEFAULT_LEVEL, 9 }) {
+					new PngWriter(image, level, parallel).write(actual.getPath());
+					BufferedImage written = ImageIO.read(actual);
+					String writer = (parallel ? "parallel" : "serial") + " writer at level " + level;
+					assertEquals(reference.getWidth(), written.getWidth(), writer);
+					assertEquals(reference.getHeight(), written.getHeight(), writer);
+					for (int y = 0; y < reference.getHeight(); y++) {
+						for (int x = 0; x < reference.getWidth(); x++) {
+							assertEquals(reference.getRGB(x, y), written.getRGB(x, y), writer + ", pixel " + x + "," + y);
+						}
+					}
+				}
+			}
+		} finally {
+			expected.delete();
+			actual.delete();
+		}
+	}
+
+	/**
+	 * Fill the image with random colors, a few of them out of range, and smooth
+	 * runs between, so both the quantizing and the filters see every case.
+	 */
+	private static Image noise(Image image) {
+		Random random = new Random(image.getWidth() * image.getHeight());
+		Color color = new Color();
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				if (x % 16 < 8) {
+					color.set(1.2 * random.nextDouble() - 0.1, 1.2 * random.nextDouble() - 0.1, 1.2 * random.nextDouble() - 0.1);
+				} else {
+					color.set(x / (double) image.getWidth(), y / (double) image.getHeight(), 0.5);
+				}
+				image.setPixelColor(color, x, y);
+			}
+		}
+		return image;
+	}
+}
@@ -0,0 +1,49 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ray.accel.Bvh;
+
+/**
+ * A progressive render ends with the image of a one-pass render, with and
+ * without adaptive antialiasing.
+ */
+public class ProgressiveTest {
+
+	@AfterEach
+	void restoreOptions() {
+		RayTracer.maxSamples = 1;
+	}
+
+	@Test
+	void onePerPixel() throws IOException {
+		assertSameAsOnePass(1);
+	}
+
+	@Test
+	void antialiased() throws IOException {
+		assertSameAsOnePass(4);
+	}
+
+	private static void assertSameAsOnePass(int maxSamples) throws IOException {
+		RayTracer.maxSamples = maxSamples;
+		File snapshot = File.createTempFile("progressive-", ".png");
+		try {
+			for (String fileName : TestScenes.repositoryScenes()) {
+				Image onePass = TestScenes.render(TestScenes.load(fileName, new Bvh()));
+				Scene scene = TestScenes.load(fileName, new Bvh());
+				scene.initialize();
+				RayTracer.renderProgressive(scene, snapshot.getPath());
+				assertNull(TestScenes.firstDifference(onePass, scene.getImage()), fileName + " with -aa " + maxSamples);
+			}
+		} finally {
+			snapshot.delete();
+		}
+	}
+}
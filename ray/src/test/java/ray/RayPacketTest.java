@@ -0,0 +1,100 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ray.accel.AccelStruct;
+import ray.accel.Bvh;
+import ray.accel.Grid;
+
+/**
+ * Tracing camera rays in packets gives exactly the hits of tracing them one by
+ * one, for every way Scene can intersect them, and renders the repository's
+ * scenes exactly as -packet 1 does.
+ */
+public class RayPacketTest {
+
+	private static final int SIZE = 96;
+
+	@AfterEach
+	void restoreOptions() {
+		RayTracer.packetSize = 1;
+		AccelStruct.singlePrecision = false;
+	}
+
+	@Test
+	void repositoryScenes() {
+		for (String fileName : TestScenes.repositoryScenes()) {
+			RayTracer.packetSize = 1;
+			Image single = TestScenes.render(TestScenes.load(fileName, new Bvh()));
+			RayTracer.packetSize = 4;
+			Image packets = TestScenes.render(TestScenes.load(fileName, new Bvh()));
+			assertNull(TestScenes.firstDifference(single, packets), fileName);
+		}
+	}
+
+	@Test
+	void linear() {
+		assertPacketsMatchSingleRays(TestScenes.spheres(300, null, SIZE));
+	}
+
+	@Test
+	void bvh() {
+		assertPacketsMatchSingleRays(TestScenes.spheres(300, new Bvh(), SIZE));
+	}
+
+	@Test
+	void bvhFloat() {
+		AccelStruct.singlePrecision = true;
+		assertPacketsMatchSingleRays(TestScenes.spheres(20000, new Bvh(), SIZE));
+	}
+
+	@Test
+	void grid() {
+		assertPacketsMatchSingleRays(TestScenes.spheres(300, new Grid(), SIZE));
+	}
+
+	private static void assertPacketsMatchSingleRays(Scene scene) {
+		scene.initialize();
+		Camera camera = scene.getCamera();
+		Workspace work = new Workspace();
+		RayPacket packet = new RayPacket();
+		Ray ray = new Ray();
+		IntersectionRecord record = new IntersectionRecord();
+		int hits = 0;
+		for (int side : new int[] { 2, 4 }) {
+			for (int y0 = 0; y0 < SIZE; y0 += side) {
+				for (int x0 = 0; x0 < SIZE; x0 += side) {
+					packet.size = 0;
+					for (int y = y0; y < y0 + side; y++) {
+						for (int x = x0; x < x0 + side; x++) {
+							camera.getRay(packet.rays[packet.size++], (x + 0.5) / SIZE, (y + 0.5) / SIZE);
+						}
+					}
+					packet.setup();
+					scene.intersectPacket(packet, work);
+
+					for (int i = 0; i < packet.size; i++) {
+						int x = x0 + i % side;
+						int y = y0 + i / side;
+						camera.getRay(ray, (x + 0.5) / SIZE, (y + 0.5) / SIZE);
+						boolean hit = scene.intersect(record, ray, false, work);
+						String pixel = "pixel " + x + "," + y + " in a packet of " + side + "x" + side;
+						assertEquals(hit, packet.hit[i], pixel);
+						if (hit) {
+							hits++;
+							assertSame(record.surface, packet.records[i].surface, pixel);
+							assertEquals(record.t, packet.records[i].t, 0, pixel);
+						}
+					}
+				}
+			}
+		}
+		// The scene fills much of the view, so a packet path that never hits would not pass
+		assertEquals(true, hits > SIZE * SIZE / 2, "hits " + hits);
+	}
+}
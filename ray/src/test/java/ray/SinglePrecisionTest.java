@@ -0,0 +1,60 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ray.accel.AccelStruct;
+import ray.accel.Bvh;
+import ray.surface.SphereBatch;
+
+/**
+ * Renders with -float stay within one 8 bit level of the double path on the
+ * repository's scenes.  Sphere scenes large enough for the sphere batch and
+ * the Bvh to go single precision render exactly as in double, since every hit
+ * the float tests let through is confirmed in double.
+ */
+public class SinglePrecisionTest {
+
+	@AfterEach
+	void restoreOptions() {
+		SphereBatch.singlePrecision = false;
+		AccelStruct.singlePrecision = false;
+	}
+
+	@Test
+	void repositoryScenes() {
+		for (String fileName : TestScenes.repositoryScenes()) {
+			Image exact = TestScenes.render(TestScenes.load(fileName, new Bvh()));
+			setSinglePrecision(true);
+			Image rounded = TestScenes.render(TestScenes.load(fileName, new Bvh()));
+			setSinglePrecision(false);
+			assertTrue(TestScenes.maxLevelDifference(exact, rounded) <= 1, fileName);
+		}
+	}
+
+	@Test
+	void sphereBatch() {
+		Image exact = TestScenes.render(TestScenes.spheres(2000, null, 96));
+		setSinglePrecision(true);
+		Scene scene = TestScenes.spheres(2000, null, 96);
+		Image rounded = TestScenes.render(scene);
+		assertTrue(scene.getSphereBatch().kernel().startsWith("float"), scene.getSphereBatch().kernel());
+		assertEquals(0, TestScenes.maxLevelDifference(exact, rounded), "hits are confirmed in double");
+	}
+
+	@Test
+	void bvh() {
+		Image exact = TestScenes.render(TestScenes.spheres(20000, new Bvh(), 96));
+		setSinglePrecision(true);
+		Image rounded = TestScenes.render(TestScenes.spheres(20000, new Bvh(), 96));
+		assertEquals(0, TestScenes.maxLevelDifference(exact, rounded), "hits are confirmed in double");
+	}
+
+	private static void setSinglePrecision(boolean single) {
+		SphereBatch.singlePrecision = single;
+		AccelStruct.singlePrecision = single;
+	}
+}
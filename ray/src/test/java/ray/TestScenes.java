@@ -0,0 +1,182 @@
+package ray;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ray.accel.AccelStruct;
+import ray.light.Light;
+import ray.math.Color;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.shader.Lambertian;
+import ray.shader.Phong;
+import ray.surface.Box;
+import ray.surface.Cylinder;
+import ray.surface.Sphere;
+
+/**
+ * Scenes for the tests: the repository's TEST2 scenes and MYTEST, rendered
+ * small, and scenes built in code of random spheres in a cube, with a few
+ * boxes and a cylinder among them, seen from outside the cube.  Tests run with
+ * the ray module as working directory.
+ */
+public final class TestScenes {
+
+	/** Width and height the repository's scenes are rendered at. */
+	public static final int SIZE = 64;
+
+	private TestScenes() { }
+
+	/**
+	 * @return the paths of every TEST2 scene and of MYTEST.xml
+	 */
+	public static List<String> repositoryScenes() {
+		List<String> files = new ArrayList<String>();
+		String[] names = new File("../TEST2").list();
+		Arrays.sort(names);
+		for (String name : names) {
+			if (name.endsWith(".xml")) {
+				files.add("../TEST2/" + name);
+			}
+		}
+		files.add("../MYTEST/MYTEST.xml");
+		return files;
+	}
+
+	/**
+	 * @param fileName the scene file
+	 * @param accel the acceleration structure, or null for none
+	 * @return the scene with an image of SIZE x SIZE, not yet initialized
+	 */
+	public static Scene load(String fileName, AccelStruct accel) {
+		Scene scene = RayTracer.loadScene(fileName);
+		scene.setImage(new Image(SIZE, SIZE));
+		scene.setAccel(accel);
+		return scene;
+	}
+
+	/**
+	 * Initialize and render the scene with RayTracer's current options.
+	 *
+	 * @return the scene's image
+	 */
+	public static Image render(Scene scene) {
+		scene.initialize();
+		RayTracer.render(scene);
+		return scene.getImage();
+	}
+
+	/**
+	 * @return the first pixel whose color differs between the two images, as "x,y", or null if none does
+	 */
+	public static String firstDifference(Image a, Image b) {
+		Color p = new Color();
+		Color q = new Color();
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				a.getPixelColor(p, x, y);
+				b.getPixelColor(q, x, y);
+				if (p.r != q.r || p.g != q.g || p.b != q.b) {
+					return x + "," + y;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the largest difference between the two images in any channel, in
+	 *         the 8 bit levels they are written with
+	 */
+	public static int maxLevelDifference(Image a, Image b) {
+		Color p = new Color();
+		Color q = new Color();
+		int max = 0;
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				a.getPixelColor(p, x, y);
+				b.getPixelColor(q, x, y);
+				int u = p.toInt();
+				int v = q.toInt();
+				for (int shift = 0; shift < 24; shift += 8) {
+					max = Math.max(max, Math.abs((u >> shift & 255) - (v >> shift & 255)));
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @param spheres the number of spheres
+	 * @param accel the acceleration structure, or null for none
+	 * @param size the width and height of the image
+	 * @return the scene, not yet initialized
+	 */
+	public static Scene spheres(int spheres, AccelStruct accel, int size) {
+		Random random = new Random(spheres);
+		Scene scene = new Scene();
+
+		Camera camera = new Camera();
+		camera.setViewPoint(new Point3(0, 0, 8));
+		camera.setViewDir(new Vector3(0, 0, -1));
+		camera.setProjNormal(new Vector3(0, 0, 1));
+		camera.setViewUp(new Vector3(0, 1, 0));
+		camera.setprojDistance(2);
+		camera.setViewWidth(1.5);
+		camera.setViewHeight(1.5);
+		scene.setCamera(camera);
+		scene.setImage(new Image(size, size));
+
+		Phong shiny = new Phong();
+		shiny.setDiffuseColor(new Color(0.6, 0.3, 0.2));
+		shiny.setSpecularColor(new Color(0.5, 0.5, 0.5));
+		shiny.setExponent(40);
+		Lambertian matte = new Lambertian();
+		matte.setDiffuseColor(new Color(0.2, 0.4, 0.8));
+		scene.addShader(shiny);
+		scene.addShader(matte);
+
+		// Radii shrink with the count so that the cube stays about as full
+		double radius = 1.5 / Math.cbrt(spheres);
+		for (int i = 0; i < spheres; i++) {
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Point3(coordinate(random), coordinate(random), coordinate(random)));
+			sphere.setRadius(radius * (0.5 + random.nextDouble()));
+			sphere.setShader(i % 2 == 0 ? shiny : matte);
+			scene.addSurface(sphere);
+		}
+		for (int i = 0; i < 3; i++) {
+			Box box = new Box();
+			Point3 min = new Point3(coordinate(random), coordinate(random), coordinate(random));
+			box.setMinPt(min);
+			box.setMaxPt(new Point3(min.x + 0.5, min.y + 0.3, min.z + 0.4));
+			box.setShader(matte);
+			scene.addSurface(box);
+		}
+		Cylinder cylinder = new Cylinder();
+		cylinder.setCenter(new Point3(0.5, -0.5, 0));
+		cylinder.setRadius(0.4);
+		cylinder.setHeight(1.2);
+		cylinder.setShader(shiny);
+		scene.addSurface(cylinder);
+
+		Light key = new Light();
+		key.setPosition(new Point3(5, 6, 10));
+		key.setIntensity(new Color(0.8, 0.8, 0.8));
+		Light fill = new Light();
+		fill.setPosition(new Point3(-6, -2, 4));
+		fill.setIntensity(new Color(0.3, 0.3, 0.4));
+		scene.addLight(key);
+		scene.addLight(fill);
+
+		scene.setAccel(accel);
+		return scene;
+	}
+
+	private static double coordinate(Random random) {
+		return 4 * random.nextDouble() - 2;
+	}
+}
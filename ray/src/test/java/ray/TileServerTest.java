@@ -0,0 +1,79 @@
+package ray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import ray.accel.Bvh;
+
+/**
+ * Frames rendered on a worker match local renders, and binary scenes the
+ * worker lets go of leave no copy behind once no connection renders them.
+ */
+public class TileServerTest {
+
+	private static final byte[] SECRET = "tile server test".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	void evictedScenesAreDeleted() throws IOException, InterruptedException {
+		TileServer server = new TileServer(0, SECRET);
+		TileCoordinator coordinator = new TileCoordinator(
+				Collections.singletonList(new InetSocketAddress(server.getAddress(), server.getPort())), SECRET);
+		List<File> files = new ArrayList<File>();
+		try {
+			List<String> scenes = TestScenes.repositoryScenes().subList(0, TileServer.CACHED_SCENES + 1);
+			for (String fileName : scenes) {
+				File binary = File.createTempFile("tiletest-", "-" + new File(fileName).getName() + BinaryScene.EXTENSION);
+				files.add(binary);
+				BinaryScene.write(TestScenes.load(fileName, new Bvh()), binary.getPath());
+
+				Image local = TestScenes.render(BinaryScene.read(binary.getPath()));
+				Scene remote = BinaryScene.read(binary.getPath());
+				coordinator.render(remote, binary.getPath());
+				assertNull(TestScenes.firstDifference(local, remote.getImage()), fileName);
+			}
+
+			// The first scene left the cache when the last was loaded
+			assertEquals(0, awaitCopies(files.get(0), 0), "copies of the evicted scene");
+			for (File binary : files.subList(1, files.size())) {
+				assertEquals(1, copies(binary), "copies of " + binary.getName());
+			}
+		} finally {
+			server.stop();
+			for (File binary : files) {
+				binary.delete();
+			}
+		}
+	}
+
+	/**
+	 * Wait a while for the worker's sessions to finish and the number of copies
+	 * to drop to expected.
+	 */
+	private static int awaitCopies(File binary, int expected) throws InterruptedException {
+		for (int i = 0; i < 100 && copies(binary) != expected; i++) {
+			Thread.sleep(50);
+		}
+		return copies(binary);
+	}
+
+	/** @return how many copies of binary the worker has written to the temporary directory */
+	private static int copies(File binary) {
+		int count = 0;
+		for (File file : new File(System.getProperty("java.io.tmpdir")).listFiles()) {
+			if (file.getName().startsWith("tile-") && file.getName().endsWith(binary.getName())) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
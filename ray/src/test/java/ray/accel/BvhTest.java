@@ -0,0 +1,83 @@
+package ray.accel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ray.Image;
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.Scene;
+import ray.TestScenes;
+import ray.Workspace;
+
+/**
+ * A Bvh finds the same closest hit as testing every surface: the same
+ * surface at the same t for random rays, and the same image for every
+ * repository scene.
+ */
+public class BvhTest {
+
+	@Test
+	void repositoryScenes() {
+		for (String fileName : TestScenes.repositoryScenes()) {
+			Image linear = TestScenes.render(TestScenes.load(fileName, null));
+			Image bvh = TestScenes.render(TestScenes.load(fileName, new Bvh()));
+			assertNull(TestScenes.firstDifference(linear, bvh), fileName);
+		}
+	}
+
+	@Test
+	void randomRays() {
+		assertSameClosestHits(new Bvh());
+	}
+
+	/**
+	 * Trace random rays through a scene of many surfaces with and without the
+	 * structure, and check that both find the same hit.
+	 */
+	static void assertSameClosestHits(AccelStruct accel) {
+		Scene scene = TestScenes.spheres(2000, null, 8);
+		Random random = new Random(7);
+		Ray[] rays = new Ray[20000];
+		for (int i = 0; i < rays.length; i++) {
+			Ray ray = new Ray();
+			ray.origin.set(6 * random.nextGaussian(), 6 * random.nextGaussian(), 6 * random.nextGaussian());
+			ray.direction.set(random.nextGaussian() - ray.origin.x / 6, random.nextGaussian() - ray.origin.y / 6,
+					random.nextGaussian() - ray.origin.z / 6);
+			ray.start = 0;
+			ray.end = Double.POSITIVE_INFINITY;
+			rays[i] = ray;
+		}
+
+		Workspace work = new Workspace();
+		scene.initialize();
+		IntersectionRecord[] expected = new IntersectionRecord[rays.length];
+		for (int i = 0; i < rays.length; i++) {
+			IntersectionRecord record = new IntersectionRecord();
+			if (scene.intersect(record, rays[i], false, work)) {
+				expected[i] = record;
+			}
+		}
+
+		scene.setAccel(accel);
+		scene.initialize();
+		IntersectionRecord actual = new IntersectionRecord();
+		int hits = 0;
+		for (int i = 0; i < rays.length; i++) {
+			boolean hit = expected[i] != null;
+			assertEquals(hit, scene.intersect(actual, rays[i], false, work), "ray " + i);
+			assertEquals(hit, scene.intersect(null, rays[i], true, work), "any hit of ray " + i);
+			if (hit) {
+				hits++;
+				assertSame(expected[i].surface, actual.surface, "ray " + i);
+				assertEquals(expected[i].t, actual.t, 0, "ray " + i);
+			}
+		}
+		assertEquals(true, hits > rays.length / 10, "hits " + hits);
+	}
+}
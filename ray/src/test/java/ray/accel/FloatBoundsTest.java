@@ -0,0 +1,103 @@
+package ray.accel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ray.math.Point3;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+
+/**
+ * Float bounds, as -float keeps them, hold the double boxes they replace, so
+ * traversal never skips a box the double test would enter.
+ */
+public class FloatBoundsTest {
+
+	@AfterEach
+	void restoreOptions() {
+		AccelStruct.singlePrecision = false;
+	}
+
+	@Test
+	void roundedOutwards() {
+		Random random = new Random(1);
+		double[] bounds = new double[6 * 10000];
+		for (int i = 0; i < bounds.length; i += 6) {
+			// Magnitudes from tiny to huge, so every exponent range rounds somewhere
+			double scale = Math.pow(10, random.nextInt(40) - 20);
+			for (int k = 0; k < 3; k++) {
+				double a = scale * random.nextGaussian();
+				double b = scale * random.nextGaussian();
+				bounds[i + k] = Math.min(a, b);
+				bounds[i + 3 + k] = Math.max(a, b);
+			}
+		}
+		// Values a float holds exactly, infinite ones, and ones just past a float
+		double[] edges = { 0, -0.0, 1, -1, 0.1, -0.1, Float.MAX_VALUE, -Float.MAX_VALUE,
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Math.nextUp(1.0), Math.nextDown(-1.0),
+				Math.nextUp((double) Float.MAX_VALUE), Double.MIN_VALUE, -Double.MIN_VALUE };
+		for (int i = 0; i < edges.length; i++) {
+			bounds[6 * i] = bounds[6 * i + 1] = bounds[6 * i + 2] = edges[i];
+			bounds[6 * i + 3] = bounds[6 * i + 4] = bounds[6 * i + 5] = edges[i];
+		}
+
+		assertContains(bounds, AccelStruct.toFloatBounds(bounds, bounds.length), bounds.length);
+	}
+
+	@Test
+	void bvhBounds() {
+		List<Surface> surfaces = spheres(20000);
+		Bvh exact = new Bvh();
+		exact.build(surfaces);
+		assertNull(exact.floatNodeBounds);
+
+		AccelStruct.singlePrecision = true;
+		Bvh rounded = new Bvh();
+		rounded.build(surfaces);
+		assertNotNull(rounded.floatNodeBounds, "a tree this large keeps float bounds");
+		assertEquals(exact.nodeTotal, rounded.nodeTotal);
+		assertContains(exact.nodeBounds, rounded.floatNodeBounds, 6 * exact.nodeTotal);
+		assertContains(exact.surfaceBounds, rounded.floatSurfaceBounds, exact.surfaceBounds.length);
+	}
+
+	@Test
+	void smallBvhKeepsDoubles() {
+		AccelStruct.singlePrecision = true;
+		Bvh bvh = new Bvh();
+		bvh.build(spheres(100));
+		assertNull(bvh.floatNodeBounds);
+		assertNotNull(bvh.nodeBounds);
+	}
+
+	private static void assertContains(double[] exact, float[] rounded, int length) {
+		for (int i = 0; i < length; i += 6) {
+			for (int k = 0; k < 3; k++) {
+				assertTrue(rounded[i + k] <= exact[i + k], "min " + k + " of box " + i / 6 + ": " + exact[i + k]);
+				assertTrue(rounded[i + 3 + k] >= exact[i + 3 + k], "max " + k + " of box " + i / 6 + ": " + exact[i + 3 + k]);
+			}
+		}
+	}
+
+	private static List<Surface> spheres(int count) {
+		Random random = new Random(count);
+		List<Surface> spheres = new ArrayList<Surface>();
+		for (int i = 0; i < count; i++) {
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Point3(1000 * random.nextDouble() + 0.1, 3 * random.nextDouble() - 1.7,
+					random.nextDouble() / 3));
+			sphere.setRadius(0.01 + 0.07 * random.nextDouble());
+			sphere.computeBoundingBox();
+			spheres.add(sphere);
+		}
+		return spheres;
+	}
+}
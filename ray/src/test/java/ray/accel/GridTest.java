@@ -0,0 +1,29 @@
+package ray.accel;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import ray.Image;
+import ray.TestScenes;
+
+/**
+ * A Grid finds the same closest hit as testing every surface, as BvhTest
+ * checks for the Bvh.
+ */
+public class GridTest {
+
+	@Test
+	void repositoryScenes() {
+		for (String fileName : TestScenes.repositoryScenes()) {
+			Image linear = TestScenes.render(TestScenes.load(fileName, null));
+			Image grid = TestScenes.render(TestScenes.load(fileName, new Grid()));
+			assertNull(TestScenes.firstDifference(linear, grid), fileName);
+		}
+	}
+
+	@Test
+	void randomRays() {
+		BvhTest.assertSameClosestHits(new Grid());
+	}
+}
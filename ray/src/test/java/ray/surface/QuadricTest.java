@@ -0,0 +1,226 @@
+package ray.surface;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ray.IntersectionRecord;
+import ray.Ray;
+import ray.math.Point3;
+import ray.math.Vector3;
+
+/**
+ * Cylinder and Cone, built on Quadric, hit what the standalone Cylinder and
+ * Cone they replaced hit, at the same t and with the same normal.  The old
+ * intersection code is kept here, as it was, for the comparison.
+ */
+public class QuadricTest {
+
+	private static final int RAYS = 20000;
+
+	@Test
+	void cylinders() {
+		Random random = new Random(1);
+		int hits = 0;
+		for (int shape = 0; shape < 20; shape++) {
+			Cylinder cylinder = new Cylinder();
+			cylinder.setCenter(new Point3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian()));
+			cylinder.setRadius(0.2 + random.nextDouble());
+			cylinder.setHeight(0.2 + 2 * random.nextDouble());
+			cylinder.computeBoundingBox();
+			for (int i = 0; i < RAYS / 20; i++) {
+				Ray ray = randomRay(random, cylinder.center);
+				IntersectionRecord expected = new IntersectionRecord();
+				boolean hit = legacyCylinder(cylinder, expected, copy(ray));
+				hits += assertSameHit(cylinder, ray, hit, expected) ? 1 : 0;
+			}
+		}
+		assertTrue(hits > RAYS / 5, "hits " + hits);
+	}
+
+	@Test
+	void cones() {
+		Random random = new Random(2);
+		int hits = 0;
+		for (int shape = 0; shape < 20; shape++) {
+			Cone cone = new Cone();
+			Point3 center = new Point3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+			cone.setCenter(center);
+			cone.setRadius(0.2 + random.nextDouble());
+			double height = 0.2 + 2 * random.nextDouble();
+			cone.setHeight(height);
+			// Tips above, below and within the truncation planes, so double cones too
+			cone.setTipz(center.z + (shape % 2 == 0 ? 1 : -1) * height * (0.2 + 1.5 * random.nextDouble()));
+			cone.computeBoundingBox();
+			for (int i = 0; i < RAYS / 20; i++) {
+				Ray ray = randomRay(random, center);
+				IntersectionRecord expected = new IntersectionRecord();
+				boolean hit = legacyCone(cone, expected, copy(ray));
+				hits += assertSameHit(cone, ray, hit, expected) ? 1 : 0;
+			}
+		}
+		assertTrue(hits > RAYS / 5, "hits " + hits);
+	}
+
+	/**
+	 * A ray from near or far toward somewhere around center, sometimes starting
+	 * further along or ending early, as shadow rays do.
+	 */
+	private static Ray randomRay(Random random, Point3 center) {
+		double reach = random.nextBoolean() ? 1 : 8;
+		Point3 origin = new Point3(center.x + reach * random.nextGaussian(), center.y + reach * random.nextGaussian(),
+				center.z + reach * random.nextGaussian());
+		Vector3 direction = new Vector3(center.x + random.nextGaussian() - origin.x,
+				center.y + random.nextGaussian() - origin.y, center.z + random.nextGaussian() - origin.z);
+		double start = random.nextInt(4) == 0 ? random.nextDouble() : 0;
+		double end = random.nextInt(4) == 0 ? start + 2 * random.nextDouble() : Double.POSITIVE_INFINITY;
+		Ray ray = new Ray(origin, direction);
+		ray.start = start;
+		ray.end = end;
+		return ray;
+	}
+
+	private static Ray copy(Ray ray) {
+		Ray copy = new Ray(ray.origin, ray.direction);
+		copy.start = ray.start;
+		copy.end = ray.end;
+		return copy;
+	}
+
+	private static boolean assertSameHit(Surface surface, Ray ray, boolean hit, IntersectionRecord expected) {
+		IntersectionRecord record = new IntersectionRecord();
+		String name = surface + " and ray " + ray.origin + " " + ray.direction + " [" + ray.start + ", " + ray.end + "]";
+		assertEquals(hit, surface.intersect(record, copy(ray)), name);
+		if (hit) {
+			double tolerance = 1e-9 * Math.max(1, Math.abs(expected.t));
+			assertEquals(expected.t, record.t, tolerance, name);
+			assertEquals(expected.normal.x, record.normal.x, 1e-9, name);
+			assertEquals(expected.normal.y, record.normal.y, 1e-9, name);
+			assertEquals(expected.normal.z, record.normal.z, 1e-9, name);
+		}
+		return hit;
+	}
+
+	/** Cylinder.intersect before Quadric: a z axis and the ray's candidates checked one by one. */
+	private static boolean legacyCylinder(Cylinder cylinder, IntersectionRecord outRecord, Ray rayIn) {
+		Point3 center = cylinder.center;
+		double radius = cylinder.radius;
+		double height = cylinder.height;
+		Point3 o = rayIn.origin;
+		Vector3 d = rayIn.direction;
+		double ex = o.x - center.x;
+		double ey = o.y - center.y;
+		double ez = o.z - center.z;
+
+		double a = d.x * d.x + d.y * d.y;
+		double b = 2 * (d.x * ex + d.y * ey);
+		double c = ex * ex + ey * ey - radius * radius;
+		double discriminant = b * b - 4 * a * c;
+		if (discriminant < 0) {
+			return false;
+		}
+
+		double sqrtDiscriminant = Math.sqrt(discriminant);
+		double t1 = Math.min((-b + sqrtDiscriminant) / (2 * a), (-b - sqrtDiscriminant) / (2 * a));
+		double t2 = (height / 2.0 - ez) / d.z;
+		double t3 = (-height / 2.0 - ez) / d.z;
+
+		double t = Double.POSITIVE_INFINITY;
+		double normalZ = 0;
+		if (Math.abs(d.z * t1 + o.z - center.z) < height / 2.0) {
+			t = t1;
+		}
+		if (t2 < t && onCap(center, o, d, t2, radius * radius)) {
+			t = t2;
+			normalZ = 1;
+		}
+		if (t3 < t && onCap(center, o, d, t3, radius * radius)) {
+			t = t3;
+			normalZ = -1;
+		}
+
+		if (t == Double.POSITIVE_INFINITY || t > rayIn.end || t < rayIn.start) {
+			return false;
+		}
+		outRecord.t = t;
+		outRecord.location.set(o.x + d.x * t, o.y + d.y * t, o.z + d.z * t);
+		if (normalZ == 0) {
+			outRecord.normal.set(outRecord.location.x - center.x, outRecord.location.y - center.y, 0);
+			outRecord.normal.normalize();
+		} else {
+			outRecord.normal.set(0, 0, normalZ);
+		}
+		return true;
+	}
+
+	/** Cone.intersect before Quadric. */
+	private static boolean legacyCone(Cone cone, IntersectionRecord outRecord, Ray rayIn) {
+		Point3 center = cone.center;
+		double height = cone.height;
+		Point3 o = rayIn.origin;
+		Vector3 d = rayIn.direction;
+		double ex = o.x - center.x;
+		double ey = o.y - center.y;
+		double ez = o.z - center.z;
+
+		double H = cone.tipz - center.z;
+		double R = cone.radius;
+		double s = (R * R) / (H * H);
+
+		double a = d.x * d.x + d.y * d.y - s * (d.z * d.z);
+		double b = 2 * (d.x * ex + d.y * ey - s * (ez - H) * d.z);
+		double c = ex * ex + ey * ey - s * ((ez - H) * (ez - H));
+		double discriminant = b * b - 4 * a * c;
+		if (discriminant < 0) {
+			return false;
+		}
+
+		double t1a = (-b + Math.sqrt(discriminant)) / (2 * a);
+		double t1b = (-b - Math.sqrt(discriminant)) / (2 * a);
+		double t2 = (height / 2.0 - ez) / d.z;
+		double t3 = (-height / 2.0 - ez) / d.z;
+
+		double t = Double.POSITIVE_INFINITY;
+		double normalZ = 0;
+		if (Math.abs(d.z * t1a + o.z - center.z) < height / 2) {
+			t = t1a;
+		}
+		if (t1b < t && Math.abs(d.z * t1b + o.z - center.z) < height / 2) {
+			t = t1b;
+		}
+		double capRadius = (R / H) * (H - height / 2);
+		if (t2 < t && onCap(center, o, d, t2, capRadius * capRadius)) {
+			t = t2;
+			normalZ = 1;
+		}
+		capRadius = (R / H) * (H + height / 2);
+		if (t3 < t && onCap(center, o, d, t3, capRadius * capRadius)) {
+			t = t3;
+			normalZ = -1;
+		}
+
+		if (t == Double.POSITIVE_INFINITY || t > rayIn.end || t < rayIn.start) {
+			return false;
+		}
+		outRecord.t = t;
+		outRecord.location.set(o.x + d.x * t, o.y + d.y * t, o.z + d.z * t);
+		if (normalZ == 0) {
+			outRecord.normal.set(outRecord.location.x - center.x, outRecord.location.y - center.y, 0);
+			outRecord.normal.normalize();
+			outRecord.normal.add(0, 0, R / H);
+			outRecord.normal.normalize();
+		} else {
+			outRecord.normal.set(0, 0, normalZ);
+		}
+		return true;
+	}
+
+	private static boolean onCap(Point3 center, Point3 o, Vector3 d, double t, double capRadiusSquared) {
+		double px = d.x * t + o.x - center.x;
+		double py = d.y * t + o.y - center.y;
+		return px * px + py * py - capRadiusSquared <= 0;
+	}
+}
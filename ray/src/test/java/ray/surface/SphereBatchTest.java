@@ -0,0 +1,77 @@
+package ray.surface;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ray.Ray;
+import ray.math.Point3;
+
+/**
+ * Every kernel finds the same sphere as SphereBatch for every ray:
+ * VectorSphereBatch, and the single precision FloatSphereBatch and
+ * VectorFloatSphereBatch.  Both kinds of query are checked, from inside and
+ * outside the spheres, with counts that do and do not fill the last vector.
+ */
+public class SphereBatchTest {
+
+	@Test
+	void doubleKernels() {
+		for (int count : new int[] { 8, 13, 100, 1001 }) {
+			List<Sphere> spheres = spheres(count);
+			assertSameHits(new SphereBatch(spheres), new VectorSphereBatch(spheres), count);
+		}
+	}
+
+	@Test
+	void floatKernels() {
+		for (int count : new int[] { 8, 13, 100, 1001 }) {
+			List<Sphere> spheres = spheres(count);
+			assertSameHits(new SphereBatch(spheres), new FloatSphereBatch(spheres), count);
+			assertSameHits(new SphereBatch(spheres), new VectorFloatSphereBatch(spheres), count);
+		}
+	}
+
+	private static void assertSameHits(SphereBatch expected, SphereBatch batch, int count) {
+		Random random = new Random(count);
+		Ray ray = new Ray();
+		Point3 target = new Point3();
+		int hits = 0;
+		for (int i = 0; i < 20000; i++) {
+			// Half the rays start among the spheres, half well outside
+			double reach = i % 2 == 0 ? 2 : 10;
+			ray.origin.set(reach * (2 * random.nextDouble() - 1), reach * (2 * random.nextDouble() - 1),
+					reach * (2 * random.nextDouble() - 1));
+			target.set(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+			ray.direction.sub(target, ray.origin);
+			ray.start = 0;
+			ray.end = random.nextInt(4) == 0 ? 1 : Double.POSITIVE_INFINITY;
+
+			int nearest = expected.intersect(ray, false);
+			assertEquals(nearest, batch.intersect(ray, false), batch.kernel() + ", ray " + i);
+			assertEquals(expected.intersect(ray, true) >= 0, batch.intersect(ray, true) >= 0,
+					batch.kernel() + ", any hit of ray " + i);
+			if (nearest >= 0) {
+				hits++;
+			}
+		}
+		assertEquals(true, hits > 1000, "hits " + hits);
+	}
+
+	private static List<Sphere> spheres(int count) {
+		Random random = new Random(count);
+		List<Sphere> spheres = new ArrayList<Sphere>();
+		for (int i = 0; i < count; i++) {
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Point3(4 * random.nextDouble() - 2, 4 * random.nextDouble() - 2,
+					4 * random.nextDouble() - 2));
+			sphere.setRadius(0.05 + 0.3 * random.nextDouble());
+			spheres.add(sphere);
+		}
+		return spheres;
+	}
+}